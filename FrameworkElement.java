@@ -22,6 +22,7 @@
 package org.finroc.core;
 
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.rrlib.finroc_core_utils.jc.ArrayWrapper;
 import org.rrlib.finroc_core_utils.jc.GarbageCollector;
@@ -135,6 +136,15 @@ public class FrameworkElement extends Annotatable {
     /** children - may contain null entries (for efficient thread-safe unsynchronized iteration) */
     protected final SafeConcurrentlyIterableList<Link> children;
 
+    /** Number of children from which on child name index is maintained */
+    private static final int CHILD_NAME_INDEX_THRESHOLD = 8;
+
+    /**
+     * Index: link name => links to children with this name (usually only one)
+     * Only created for elements with many children. Modified with runtime registry lock - may be read without.
+     */
+    private volatile ConcurrentHashMap<String, Link[]> childNameIndex;
+
     /**
      * Defines lock order in which framework elements can be locked.
      * Generally the framework element tree is locked from root to leaves.
@@ -309,7 +319,7 @@ public class FrameworkElement extends Annotatable {
         synchronized (getRegistryLock()) { // synchronize, C++ strings may not be thread safe...
             assert(isConstructing());
             assert(isCreator());
-            primary.name = name;
+            renameLink(primary, name);
         }
     }
 
@@ -323,7 +333,99 @@ public class FrameworkElement extends Annotatable {
         synchronized (getRegistryLock()) { // synchronize, C++ strings may not be thread safe...
             assert(isConstructing());
             assert(isCreator());
-            getLink(linkIndex).name = name;
+            renameLink(getLink(linkIndex), name);
+        }
+    }
+
+    /**
+     * Changes name of link - and updates child name index of parent
+     * (may only be called in runtime-registry-synchronized context)
+     *
+     * @param link Link to rename
+     * @param name New name
+     */
+    private void renameLink(Link link, String name) {
+        if (link.parent != null) {
+            link.parent.removeFromChildNameIndex(link);
+        }
+        link.name = name;
+        if (link.parent != null) {
+            link.parent.addToChildNameIndex(link);
+        }
+    }
+
+    /**
+     * Adds link to child name index - creates index if element has reached threshold number of children
+     * (may only be called in runtime-registry-synchronized context - after link has been added to children)
+     *
+     * @param link Link to child
+     */
+    private void addToChildNameIndex(Link link) {
+        ConcurrentHashMap<String, Link[]> index = childNameIndex;
+        if (index == null) {
+            if (children.size() >= CHILD_NAME_INDEX_THRESHOLD) {
+                index = new ConcurrentHashMap<String, Link[]>(CHILD_NAME_INDEX_THRESHOLD * 4);
+                ArrayWrapper<Link> iterable = children.getIterable();
+                for (int i = 0, n = iterable.size(); i < n; i++) {
+                    Link child = iterable.get(i);
+                    if (child != null) {
+                        addToChildNameIndex(index, child);
+                    }
+                }
+                childNameIndex = index;
+            }
+            return;
+        }
+        addToChildNameIndex(index, link);
+    }
+
+    /**
+     * Helper for above
+     */
+    private static void addToChildNameIndex(ConcurrentHashMap<String, Link[]> index, Link link) {
+        Link[] links = index.get(link.name);
+        if (links == null) {
+            index.put(link.name, new Link[] {link});
+            return;
+        }
+        for (Link l : links) {
+            if (l == link) {
+                return;
+            }
+        }
+        Link[] newLinks = new Link[links.length + 1];
+        System.arraycopy(links, 0, newLinks, 0, links.length);
+        newLinks[links.length] = link;
+        index.put(link.name, newLinks); // replace array (readers may iterate old one concurrently)
+    }
+
+    /**
+     * Removes link from child name index
+     * (may only be called in runtime-registry-synchronized context)
+     *
+     * @param link Link to child
+     */
+    private void removeFromChildNameIndex(Link link) {
+        ConcurrentHashMap<String, Link[]> index = childNameIndex;
+        if (index == null) {
+            return;
+        }
+        Link[] links = index.get(link.name);
+        if (links == null) {
+            return;
+        }
+        for (int i = 0; i < links.length; i++) {
+            if (links[i] == link) {
+                if (links.length == 1) {
+                    index.remove(link.name);
+                } else {
+                    Link[] newLinks = new Link[links.length - 1];
+                    System.arraycopy(links, 0, newLinks, 0, i);
+                    System.arraycopy(links, i + 1, newLinks, i, links.length - i - 1);
+                    index.put(link.name, newLinks);
+                }
+                return;
+            }
         }
     }
 
@@ -405,7 +507,9 @@ public class FrameworkElement extends Annotatable {
             // detach from former parent
             if (child.parent != null) {
                 //assert(!child.parent.isInitialized()) : "This is truly strange - should not happen";
+                child.parent.removeFromChildNameIndex(child);
                 child.parent.children.remove(child);
+                child.parent = null; // so that renaming below does not touch former parent's name index
 
                 // JavaOnlyBlock
                 /*if (treeNode != null) {
@@ -425,6 +529,7 @@ public class FrameworkElement extends Annotatable {
 
             child.parent = this;
             children.add(child, false);
+            addToChildNameIndex(child);
             // child.init(); - do this separately
 
             // JavaOnlyBlock
@@ -464,18 +569,47 @@ public class FrameworkElement extends Annotatable {
      */
     protected FrameworkElement getChildElement(String name, int nameIndex, boolean onlyGloballyUniqueChildren, FrameworkElement root) {
 
-        // lock runtime (might not be absolutely necessary... ensures, however, that result is valid)
-        synchronized (getRegistryLock()) {
+        // no runtime lock required: children list and name index may be read concurrently - and result may be deleted anytime after returning anyway
+        if (isDeleted()) {
+            return null;
+        }
 
-            if (isDeleted()) {
-                return null;
-            }
+        if (name.charAt(nameIndex) == '/') {
+            return root.getChildElement(name, nameIndex + 1, onlyGloballyUniqueChildren, root);
+        }
 
-            if (name.charAt(nameIndex) == '/') {
-                return root.getChildElement(name, nameIndex + 1, onlyGloballyUniqueChildren, root);
+        onlyGloballyUniqueChildren &= (!getFlag(Flag.GLOBALLY_UNIQUE_LINK));
+        ConcurrentHashMap<String, Link[]> index = childNameIndex;
+        if (index != null) {
+
+            // try all prefixes up to next '/' (links may contain '/')
+            int end = name.indexOf('/', nameIndex);
+            while (true) {
+                Link[] links = index.get(name.substring(nameIndex, end < 0 ? name.length() : end));
+                if (links != null) {
+                    for (Link child : links) {
+                        if (child.getChild().isDeleted()) {
+                            continue;
+                        }
+                        if (end < 0) {
+                            if (!onlyGloballyUniqueChildren || child.getChild().getFlag(Flag.GLOBALLY_UNIQUE_LINK)) {
+                                return child.getChild();
+                            }
+                        } else {
+                            FrameworkElement result = child.getChild().getChildElement(name, end + 1, onlyGloballyUniqueChildren, root);
+                            if (result != null) {
+                                return result;
+                            }
+                        }
+                    }
+                }
+                if (end < 0) {
+                    return null;
+                }
+                end = name.indexOf('/', end + 1);
             }
 
-            onlyGloballyUniqueChildren &= (!getFlag(Flag.GLOBALLY_UNIQUE_LINK));
+        } else {
             ArrayWrapper<Link> iterable = children.getIterable();
             for (int i = 0, n = iterable.size(); i < n; i++) {
                 Link child = iterable.get(i);
@@ -495,7 +629,6 @@ public class FrameworkElement extends Annotatable {
                 }
             }
             return null;
-
         }
     }
 
@@ -748,6 +881,7 @@ public class FrameworkElement extends Annotatable {
                     // remove from hierarchy
                     for (Link l = primary; l != null;) {
                         if (l != dontDetach && l.parent != null) {
+                            l.parent.removeFromChildNameIndex(l);
                             l.parent.children.remove(l);
                         }
                         l = l.next;
@@ -785,6 +919,7 @@ public class FrameworkElement extends Annotatable {
         }
 
         children.clear();
+        childNameIndex = null;
 
         // JavaOnlyBlock
         /*if (treeNode != null) {
@@ -1002,6 +1137,28 @@ public class FrameworkElement extends Annotatable {
      * @return Returns first child with specified name - null if none exists
      */
     public FrameworkElement getChild(String name) {
+        ConcurrentHashMap<String, Link[]> index = childNameIndex;
+        if (index != null) {
+            Link[] links = index.get(name);
+            if (links == null) {
+                return null;
+            }
+            for (Link child : links) {
+                if (child.getChild().isReady()) {
+                    return child.getChild();
+                }
+                synchronized (getRegistryLock()) {
+                    if (isDeleted()) {
+                        return null;
+                    }
+                    if (!child.getChild().isDeleted()) {
+                        return child.getChild();
+                    }
+                }
+            }
+            return null;
+        }
+
         ArrayWrapper<Link> iterable = children.getIterable();
         for (int i = 0, n = iterable.size(); i < n; i++) {
             Link child = iterable.get(i);
@@ -23,6 +23,7 @@ package org.finroc.core;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.rrlib.finroc_core_utils.jc.GarbageCollector;
@@ -40,10 +41,12 @@ import org.finroc.core.datatype.XML;
 import org.finroc.core.plugin.Plugins;
 import org.finroc.core.port.ThreadLocalCache;
 import org.finroc.core.port.AbstractPort;
+import org.finroc.core.port.net.ChunkedStructureDump;
 import org.finroc.core.port.stream.StreamCommitThread;
 import org.finroc.core.portdatabase.DataTypeUtil;
 import org.finroc.core.remote.RemoteTypeAdapter;
 import org.finroc.core.thread.ExecutionControl;
+import org.finroc.core.thread.TimerWheel;
 
 /**
  * @author Max Reichardt
@@ -68,6 +71,13 @@ public class RuntimeEnvironment extends FrameworkElement implements FrameworkEle
         /** Edges dealing with linked ports */
         private final ConcurrentHashMap<String, LinkEdge> linkEdges = new ConcurrentHashMap<String, LinkEdge>();
 
+        /**
+         * Cache: qualified link (with leading '/') => port (contains only ports that were ready when looked up - and
+         * only if key is one of the port's qualified links, so that entries are removed when ports with this link are
+         * added or removed) - may be read without lock.
+         */
+        private final ConcurrentHashMap<String, AbstractPort> portLinkCache = new ConcurrentHashMap<String, AbstractPort>();
+
         /** List with runtime listeners */
         private final RuntimeListenerManager listeners = new RuntimeListenerManager();
 
@@ -80,6 +90,9 @@ public class RuntimeEnvironment extends FrameworkElement implements FrameworkEle
         /** Alternative roots for links (usually remote runtime environments mapped into this one) */
         private ArrayList<FrameworkElement> alternativeLinkRoots = new ArrayList<FrameworkElement>();
 
+        /** Journal with structure changes (and structure version) */
+        private final StructureJournal structureJournal = new StructureJournal(StructureJournal.DEFAULT_CAPACITY);
+
         /** Mutex */
         public final MutexLockOrder objMutex = new MutexLockOrder(LockOrderLevels.RUNTIME_REGISTER);
     }
@@ -303,27 +316,52 @@ public class RuntimeEnvironment extends FrameworkElement implements FrameworkEle
 
 
     /**
+     * (Lookups of ready ports are cached - so repeated lookups of the same link are O(1))
+     *
      * @param linkName (relative) Fully qualified name of port
      * @return Port with this name - or null if it does not exist
      */
     public AbstractPort getPort(String linkName) {
-        synchronized (registry) {
+        String key = (linkName.length() > 0 && linkName.charAt(0) == '/') ? linkName : ("/" + linkName);
+        AbstractPort cached = registry.portLinkCache.get(key);
+        if (cached != null) {
+            if (cached.isReady()) {
+                return cached;
+            }
+            registry.portLinkCache.remove(key, cached);
+        }
 
-            FrameworkElement fe = getChildElement(linkName, false);
-            if (fe == null) {
+        // tree lookup does not require lock (see FrameworkElement.getChildElement()) - alternative roots do
+        FrameworkElement fe = getChildElement(linkName, false);
+        if (fe == null) {
+            synchronized (registry) {
                 for (int i = 0; i < registry.alternativeLinkRoots.size(); i++) {
                     FrameworkElement altRoot = registry.alternativeLinkRoots.get(i);
                     fe = altRoot.getChildElement(linkName, 0, true, altRoot);
                     if (fe != null && !fe.isDeleted()) {
-                        assert fe.isPort();
-                        return (AbstractPort)fe;
+                        break;
                     }
+                    fe = null;
                 }
+            }
+            if (fe == null) {
                 return null;
             }
-            assert fe.isPort();
-            return (AbstractPort)fe;
         }
+        assert fe.isPort();
+        AbstractPort port = (AbstractPort)fe;
+        if (port.isReady()) {
+            // only cache if linkName is one of the port's qualified links (otherwise, e.g. for lookups via alternative link roots, entry would not be invalidated)
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < port.getLinkCount(); i++) {
+                port.getQualifiedLink(sb, i);
+                if (key.contentEquals(sb)) {
+                    registry.portLinkCache.put(key, port);
+                    break;
+                }
+            }
+        }
+        return port;
     }
 
     /**
@@ -459,11 +497,20 @@ public class RuntimeEnvironment extends FrameworkElement implements FrameworkEle
                     }
                 }
 
+                if (changeType == RuntimeListener.REMOVE && element.isPort()) { // remove from link cache
+                    AbstractPort ap = (AbstractPort)element;
+                    for (int i = 0; i < ap.getLinkCount(); i++) {
+                        ap.getQualifiedLink(registry.tempBuffer, i);
+                        registry.portLinkCache.remove(registry.tempBuffer.toString(), ap);
+                    }
+                }
+
                 if (changeType == RuntimeListener.ADD && element.isPort()) { // check links
                     AbstractPort ap = (AbstractPort)element;
                     for (int i = 0; i < ap.getLinkCount(); i++) {
                         ap.getQualifiedLink(registry.tempBuffer, i);
                         String s = registry.tempBuffer.toString();
+                        registry.portLinkCache.remove(s); // port might have precedence over cached one (e.g. from alternative link root)
                         Log.log(LogLevel.DEBUG_VERBOSE_2, this, "Checking link " + s + " with respect to link edges");
                         LinkEdge le = registry.linkEdges.get(s);
                         while (le != null) {
@@ -474,6 +521,7 @@ public class RuntimeEnvironment extends FrameworkElement implements FrameworkEle
 
                 }
 
+                registry.structureJournal.append(changeType, element.getHandle(), edgeTarget != null ? edgeTarget.getHandle() : -1);
                 registry.listeners.notify(element, edgeTarget, changeType);
             }
         }
@@ -495,6 +543,56 @@ public class RuntimeEnvironment extends FrameworkElement implements FrameworkEle
         return creationTime;
     }
 
+    /**
+     * @return Identifies this runtime environment instance's structure versions (structure versions of different instances are not comparable)
+     */
+    public long getStructureEpoch() {
+        return creationTime;
+    }
+
+    /**
+     * @return Current structure version (incremented on every structure change - framework elements and edges)
+     */
+    public long getStructureVersion() {
+        return registry.structureJournal.getVersion();
+    }
+
+    /**
+     * Creates writer for a structure dump.
+     * Structure epoch and version are captured while holding the registry lock - so the dump
+     * contains at least all changes up to this version. Elements are to be written afterwards
+     * (without holding the lock). Changes after this version may already be reflected in the dump:
+     * Clients must therefore apply the changes since the dump's version idempotently
+     * (ADD of an existing element updates it, REMOVE of an unknown element is ignored).
+     *
+     * @param elementsPerChunk Maximum number of elements per chunk
+     * @param sink Receives complete chunks
+     * @return Writer to write elements to
+     */
+    public ChunkedStructureDump.Writer createStructureDumpWriter(int elementsPerChunk, ChunkedStructureDump.ChunkSink sink) {
+        synchronized (registry) {
+            return new ChunkedStructureDump.Writer(getStructureEpoch(), registry.structureJournal.getVersion(), elementsPerChunk, sink);
+        }
+    }
+
+    /**
+     * Obtains structure changes since specified version - e.g. for a client that reconnects
+     * and has mirrored the structure up to this version.
+     * Changes are to be sent to client in order. Elements in ADD and CHANGE entries
+     * should be serialized with their current state (they might have been removed meanwhile).
+     *
+     * @param epoch Structure epoch known by client (see getStructureEpoch())
+     * @param version Structure version known by client
+     * @param result List to add changes to
+     * @return True if changes were available. False if client needs a complete structure dump (nothing is added to list in this case).
+     */
+    public boolean getStructureChangesSince(long epoch, long version, List<StructureJournal.Change> result) {
+        if (epoch != getStructureEpoch()) {
+            return false;
+        }
+        return registry.structureJournal.getChangesSince(version, result);
+    }
+
     /**
      * Using only the basic constructs from this framework - things should shutdown
      * cleanly without calling anything.
@@ -503,6 +601,7 @@ public class RuntimeEnvironment extends FrameworkElement implements FrameworkEle
      * at the end of the program in order to shut everything down cleanly.
      */
     public static void shutdown() {
+        TimerWheel.stopAll();
     }
 
     /**
@@ -122,6 +122,15 @@ public class RuntimeSettings extends FrameworkElement implements PortListener<Co
      */
     private static boolean duplicateQualifiedNamesAllowed;
 
+    /**
+     * Directory in which type tables of remote runtime environments are cached (see RemoteTypes)
+     * (null until set or queried; disabled if set to null explicitly)
+     */
+    private static File typeCacheDir;
+
+    /** Has typeCacheDir been set or initialized? */
+    private static boolean typeCacheDirSet;
+
     /** List with listeners for update times */
     private final UpdateTimeChangeListener.Manager updateTimeListener = new UpdateTimeChangeListener.Manager();
 
@@ -291,6 +300,27 @@ public class RuntimeSettings extends FrameworkElement implements PortListener<Co
         return duplicateQualifiedNamesAllowed;
     }
 
+    /**
+     * @return Directory in which type tables of remote runtime environments are cached (null if caching is disabled)
+     */
+    public synchronized static File getTypeCacheDir() {
+        if (!typeCacheDirSet) {
+            typeCacheDirSet = true;
+            if (!(ANDROID_PLATFORM || runningInApplet)) {
+                typeCacheDir = new File(System.getProperty("user.home"), ".finroc" + File.separator + "type_cache");
+            }
+        }
+        return typeCacheDir;
+    }
+
+    /**
+     * @param typeCacheDir Directory in which type tables of remote runtime environments are cached (null disables caching)
+     */
+    public synchronized static void setTypeCacheDir(File typeCacheDir) {
+        RuntimeSettings.typeCacheDir = typeCacheDir;
+        typeCacheDirSet = true;
+    }
+
     /**
      * @param runningInApplet Is runtime instantiated in Java Applet
      */
@@ -0,0 +1,147 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core;
+
+import java.util.List;
+
+/**
+ * @author Max Reichardt
+ *
+ * Append-only journal of structure changes in a runtime environment
+ * (framework elements added, changed or removed - and edges added or removed).
+ *
+ * Every change increments the structure version. The journal retains the
+ * latest changes (up to its capacity) - so that clients mirroring the structure
+ * that reconnect with a known version can be sent only the changes since then.
+ * If the journal does not reach back far enough, clients need a complete structure dump.
+ *
+ * (all methods are thread-safe)
+ */
+public class StructureJournal {
+
+    /** Default number of changes retained */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /**
+     * Single change in journal
+     */
+    public static class Change {
+
+        /** Structure version after this change */
+        public final long version;
+
+        /** Type of change (see RuntimeListener constants) */
+        public final byte changeType;
+
+        /** Handle of framework element that changed (source port in case of edge change) */
+        public final int handle;
+
+        /** Handle of edge's target port in case of edge change (otherwise -1) */
+        public final int edgeTargetHandle;
+
+        private Change(long version, byte changeType, int handle, int edgeTargetHandle) {
+            this.version = version;
+            this.changeType = changeType;
+            this.handle = handle;
+            this.edgeTargetHandle = edgeTargetHandle;
+        }
+
+        /**
+         * @return Is this a change of an edge?
+         */
+        public boolean isEdgeChange() {
+            return edgeTargetHandle >= 0;
+        }
+
+        public String toString() {
+            return "Change " + version + ": " + changeType + " " + handle + (isEdgeChange() ? (" -> " + edgeTargetHandle) : "");
+        }
+    }
+
+    /** Ring buffers with changes - change with version v is stored at index (v - 1) % capacity */
+    private final byte[] changeTypes;
+    private final int[] handles, edgeTargetHandles;
+
+    /** Current structure version (number of changes so far) */
+    private long version;
+
+    /**
+     * @param capacity Number of changes retained
+     */
+    public StructureJournal(int capacity) {
+        if (capacity <= 0) {
+            throw new RuntimeException("Capacity must be positive");
+        }
+        changeTypes = new byte[capacity];
+        handles = new int[capacity];
+        edgeTargetHandles = new int[capacity];
+    }
+
+    /**
+     * Appends change to journal
+     *
+     * @param changeType Type of change (see RuntimeListener constants)
+     * @param handle Handle of framework element that changed (source port in case of edge change)
+     * @param edgeTargetHandle Handle of edge's target port in case of edge change (otherwise -1)
+     * @return Structure version after this change
+     */
+    public synchronized long append(byte changeType, int handle, int edgeTargetHandle) {
+        int index = (int)(version % changeTypes.length);
+        changeTypes[index] = changeType;
+        handles[index] = handle;
+        edgeTargetHandles[index] = edgeTargetHandle;
+        version++;
+        return version;
+    }
+
+    /**
+     * @return Current structure version (number of changes so far)
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return Oldest version that changes can be obtained for (see getChangesSince)
+     */
+    public synchronized long getOldestAvailableVersion() {
+        return Math.max(0, version - changeTypes.length);
+    }
+
+    /**
+     * Obtains all changes since specified version
+     *
+     * @param sinceVersion Structure version known by client
+     * @param result List to add changes to (in order)
+     * @return True if changes were available. False if journal does not reach back to this version (or version is invalid) - in this case, nothing is added to list.
+     */
+    public synchronized boolean getChangesSince(long sinceVersion, List<Change> result) {
+        if (sinceVersion < getOldestAvailableVersion() || sinceVersion > version) {
+            return false;
+        }
+        for (long v = sinceVersion; v < version; v++) {
+            int index = (int)(v % changeTypes.length);
+            result.add(new Change(v + 1, changeTypes[index], handles[index], edgeTargetHandles[index]));
+        }
+        return true;
+    }
+}
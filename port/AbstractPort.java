@@ -111,6 +111,9 @@ public abstract class AbstractPort extends FrameworkElement implements HasDestru
     /** Minimum network update interval. Value < 0 means default for this type */
     protected short minNetUpdateTime;
 
+    /** Filter for values published via this port (null if there is none) */
+    protected volatile PublishFilter publishFilter;
+
     /**
      * Strategy to use, when this port is target
      * -1:     not connected at all
@@ -759,6 +762,29 @@ public abstract class AbstractPort extends FrameworkElement implements HasDestru
         }
     }
 
+    /**
+     * @return Filter for values published via this port (null if there is none)
+     */
+    public PublishFilter getPublishFilter() {
+        return publishFilter;
+    }
+
+    /**
+     * Attaches filter for values published via this port (as annotation).
+     * Only one filter can be attached to a port.
+     *
+     * @param filter Publish filter (e.g. to suppress unchanged values or to limit publish rate)
+     */
+    public void setPublishFilter(PublishFilter filter) {
+        synchronized (getRegistryLock()) {
+            if (publishFilter != null) {
+                throw new RuntimeException("Port already has a publish filter");
+            }
+            addAnnotation(filter);
+            publishFilter = filter;
+        }
+    }
+
     /**
      * Send information about changed Minimum Network Update Interval to clients.
      */
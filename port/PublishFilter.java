@@ -0,0 +1,355 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port;
+
+import org.finroc.core.FinrocAnnotation;
+import org.finroc.core.port.cc.CCPortBase;
+import org.finroc.core.port.cc.CCPortDataManager;
+import org.finroc.core.port.cc.CCPortDataManagerTL;
+import org.finroc.core.port.std.PortBase;
+import org.finroc.core.port.std.PortDataManager;
+import org.finroc.core.portdatabase.FinrocTypeInfo;
+import org.finroc.core.thread.TimerWheel;
+import org.rrlib.logging.Log;
+import org.rrlib.logging.LogLevel;
+import org.rrlib.serialization.NumericRepresentation;
+import org.rrlib.serialization.Serialization;
+import org.rrlib.serialization.rtti.DataType;
+import org.rrlib.serialization.rtti.DataTypeBase;
+import org.rrlib.serialization.rtti.GenericObject;
+
+/**
+ * @author Max Reichardt
+ *
+ * Filter for values published via an (output) port - attached to the port
+ * as annotation (see AbstractPort.setPublishFilter()).
+ *
+ * Values that are rejected are not assigned to the port - so they cause no
+ * listener notification, no fan-out to connected ports and no network traffic.
+ *
+ * Suppress unchanged: values equal to the port's current value are dropped
+ * (compared using equals() for "cheap copy" types that override it and Serialization.equals() otherwise).
+ * Deadband: values with a numeric representation are dropped if they differ from the
+ * port's current value by no more than the deadband.
+ * Max. publish rate: values are published at most every minInterval ms. If values are
+ * published more frequently, the latest one is published when the interval elapses.
+ */
+public class PublishFilter extends FinrocAnnotation {
+
+    /** Data Type */
+    public static DataTypeBase TYPE = new DataType<PublishFilter>(PublishFilter.class);
+
+    /** Drop values equal to current value? */
+    private final boolean suppressUnchanged;
+
+    /** Deadband for values with numeric representation (0 if not used) */
+    private final double deadband;
+
+    /** Minimum interval between two published values in ms (0 if publish rate is not limited) */
+    private final int minInterval;
+
+    /** Time when value was published last */
+    private long lastPublishTime = Long.MIN_VALUE;
+
+    /** Latest value that was deferred due to rate limit (CCPortDataManager or locked PortDataManager - null if there is none) */
+    private Object pending;
+
+    /** Thread currently publishing deferred value (bypasses rate limit) */
+    private volatile Thread pendingPublisher;
+
+    /** Number of values published - and value of this counter when deferred value was taken for publishing */
+    private int publishCount, pendingPublishCount;
+
+    /** Buffer for comparing values of "cheap copy" ports */
+    private GenericObject compareBuffer;
+
+    /** Does class of "cheap copy" values override equals()? (null if not determined yet) */
+    private Boolean overridesEquals;
+
+    /** Entry for scheduling publishing of deferred value (in shared timer wheel) */
+    private final TimerWheel.Entry timerEntry = new TimerWheel.Entry(new TimerWheel.Callback() {
+        @Override
+        public void timerExpired(Object owner) {
+            publishPending();
+        }
+    });
+
+    /** Possible decisions on published value */
+    private static final int PUBLISH = 0, DROP = 1, DEFER = 2;
+
+    /**
+     * @param suppressUnchanged Drop values equal to current value?
+     * @param deadband Deadband for values with numeric representation (0 if not used)
+     * @param minInterval Minimum interval between two published values in ms (0 if publish rate is not limited)
+     */
+    public PublishFilter(boolean suppressUnchanged, double deadband, int minInterval) {
+        if (deadband < 0 || minInterval < 0) {
+            throw new RuntimeException("Publish filter parameters must not be negative");
+        }
+        this.suppressUnchanged = suppressUnchanged;
+        this.deadband = deadband;
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * Dummy constructor. Generic instantiation is not supported.
+     */
+    public PublishFilter() {
+        throw new RuntimeException("Unsupported");
+    }
+
+    /**
+     * @return Are values equal to current value dropped?
+     */
+    public boolean suppressesUnchanged() {
+        return suppressUnchanged;
+    }
+
+    /**
+     * @return Deadband for values with numeric representation (0 if not used)
+     */
+    public double getDeadband() {
+        return deadband;
+    }
+
+    /**
+     * @return Minimum interval between two published values in ms (0 if publish rate is not limited)
+     */
+    public int getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * (only for use by port classes)
+     *
+     * Decides whether value is to be published via "cheap copy" port.
+     * If false is returned, the filter has taken care of the buffer (recycled or deferred it).
+     *
+     * @param port Port that value is published via
+     * @param data Value to publish
+     * @return True if value is to be published
+     */
+    public boolean accept(CCPortBase port, CCPortDataManagerTL data) {
+        synchronized (this) {
+            GenericObject current = null;
+            if (comparesValues()) {
+                if (compareBuffer == null) {
+                    compareBuffer = data.getObject().getType().createInstanceGeneric(null);
+                }
+                port.getRaw(compareBuffer, true);
+                current = compareBuffer;
+            }
+            int decision = decide(data.getObject(), current);
+            if (decision == PUBLISH) {
+                return true;
+            } else if (decision == DEFER) {
+                CCPortDataManager copy = ThreadLocalCache.get().getUnusedInterThreadBuffer(data.getObject().getType());
+                copy.getObject().deepCopyFrom(data.getObject(), null);
+                releasePending();
+                pending = copy;
+            }
+        }
+
+        // recycle
+        data.addLock();
+        data.releaseLock();
+        return false;
+    }
+
+    /**
+     * (only for use by port classes)
+     *
+     * Decides whether value is to be published via std port.
+     * If false is returned, the filter has taken care of the buffer (recycled or deferred it).
+     *
+     * @param port Port that value is published via
+     * @param data Value to publish
+     * @return True if value is to be published
+     */
+    public boolean accept(PortBase port, PortDataManager data) {
+        PortDataManager current = comparesValues() ? port.lockCurrentValueForRead() : null;
+        try {
+            synchronized (this) {
+                int decision = decide(data.getObject(), current != null ? current.getObject() : null);
+                if (decision == PUBLISH) {
+                    return true;
+                } else if (decision == DEFER) {
+                    data.addLock();
+                    releasePending();
+                    pending = data;
+                    return false;
+                }
+            }
+        } finally {
+            if (current != null) {
+                current.releaseLock();
+            }
+        }
+
+        // recycle
+        data.addLock();
+        data.releaseLock();
+        return false;
+    }
+
+    /**
+     * @return Does filter need to compare new values with current value?
+     */
+    private boolean comparesValues() {
+        return suppressUnchanged || deadband > 0;
+    }
+
+    /**
+     * (needs to be called with lock on filter)
+     *
+     * @param newValue Value to publish
+     * @param currentValue Current value of port (null if not required)
+     * @return Decision on value (see constants)
+     */
+    private int decide(GenericObject newValue, GenericObject currentValue) {
+        if (currentValue != null && isUnchanged(newValue, currentValue)) {
+            releasePending(); // latest value equals current value
+            return DROP;
+        }
+        long now = System.currentTimeMillis();
+        if (pendingPublisher == Thread.currentThread()) {
+            if (publishCount != pendingPublishCount) {
+                return DROP; // newer value was published meanwhile
+            }
+        } else if (minInterval > 0 && lastPublishTime != Long.MIN_VALUE) {
+            long due = lastPublishTime + minInterval;
+            if (now < due) {
+                if (!timerEntry.isScheduled()) {
+                    TimerWheel.getShared().schedule(timerEntry, due - now);
+                }
+                return DEFER;
+            }
+        }
+        lastPublishTime = now;
+        publishCount++;
+        releasePending(); // superseded
+        return PUBLISH;
+    }
+
+    /**
+     * @param newValue Value to publish
+     * @param currentValue Current value of port
+     * @return True if new value is to be considered unchanged
+     */
+    private boolean isUnchanged(GenericObject newValue, GenericObject currentValue) {
+        if (deadband > 0 && newValue.getData() instanceof NumericRepresentation && currentValue.getData() instanceof NumericRepresentation) {
+            double n = ((NumericRepresentation)newValue.getData()).getNumericRepresentation().doubleValue();
+            double c = ((NumericRepresentation)currentValue.getData()).getNumericRepresentation().doubleValue();
+            return Math.abs(n - c) <= deadband;
+        }
+        if (!suppressUnchanged) {
+            return false;
+        }
+        if (FinrocTypeInfo.isCCType(newValue.getType()) && overridesEquals(newValue.getData())) {
+            return newValue.getData().equals(currentValue.getData());
+        }
+        try {
+            return Serialization.equals(newValue, currentValue);
+        } catch (Exception e) {
+            Log.log(LogLevel.ERROR, this, e);
+            return false;
+        }
+    }
+
+    /**
+     * (needs to be called with lock on filter)
+     *
+     * @param data Value of "cheap copy" port
+     * @return True if class of value overrides equals() (otherwise equals() compares identity - which is of no use here)
+     */
+    private boolean overridesEquals(Object data) {
+        if (overridesEquals == null) {
+            try {
+                overridesEquals = data.getClass().getMethod("equals", Object.class).getDeclaringClass() != Object.class;
+            } catch (NoSuchMethodException e) {
+                overridesEquals = false;
+            }
+        }
+        return overridesEquals;
+    }
+
+    /**
+     * Releases deferred value (needs to be called with lock on filter)
+     */
+    private void releasePending() {
+        if (pending instanceof CCPortDataManager) {
+            ((CCPortDataManager)pending).recycle2();
+        } else if (pending instanceof PortDataManager) {
+            ((PortDataManager)pending).releaseLock();
+        }
+        pending = null;
+    }
+
+    /**
+     * Publishes deferred value (called by timer thread)
+     */
+    private void publishPending() {
+        Object value;
+        synchronized (this) {
+            value = pending;
+            pending = null;
+            pendingPublishCount = publishCount;
+        }
+        Object port = getAnnotated();
+        if (value == null) {
+            return;
+        }
+        pendingPublisher = Thread.currentThread();
+        try {
+            if (value instanceof CCPortDataManager) {
+                CCPortDataManager itc = (CCPortDataManager)value;
+                if (port instanceof CCPortBase && ((CCPortBase)port).isReady()) {
+                    ThreadLocalCache tc = ThreadLocalCache.get();
+                    CCPortDataManagerTL buffer = tc.getUnusedBuffer(itc.getObject().getType());
+                    buffer.getObject().deepCopyFrom(itc.getObject(), null);
+                    ((CCPortBase)port).publish(tc, buffer);
+                }
+                itc.recycle2();
+            } else {
+                PortDataManager manager = (PortDataManager)value;
+                if (port instanceof PortBase && ((PortBase)port).isReady()) {
+                    ((PortBase)port).publish(manager);
+                }
+                manager.releaseLock();
+            }
+        } finally {
+            pendingPublisher = null;
+        }
+    }
+
+    @Override
+    protected void annotatedObjectToBeDeleted() {
+        synchronized (this) {
+            TimerWheel.getShared().cancel(timerEntry);
+            releasePending();
+        }
+    }
+
+    public String toString() {
+        return "PublishFilter (" + (suppressUnchanged ? "suppress unchanged, " : "") + "deadband " + deadband + ", min. interval " + minInterval + " ms)";
+    }
+}
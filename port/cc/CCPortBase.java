@@ -35,6 +35,7 @@ import org.finroc.core.port.AbstractPort;
 import org.finroc.core.port.PortCreationInfo;
 import org.finroc.core.port.PortListener;
 import org.finroc.core.port.PortListenerManager;
+import org.finroc.core.port.PublishFilter;
 import org.finroc.core.port.ThreadLocalCache;
 import org.finroc.core.portdatabase.FinrocTypeInfo;
 
@@ -293,6 +294,11 @@ public class CCPortBase extends AbstractPort { /*implements Callable<PullCall>*/
             return;
         }
 
+        PublishFilter filter = publishFilter;
+        if (filter != null && !reverse && !browserPublish && !filter.accept(this, data)) {
+            return;
+        }
+
         ArrayWrapper<CCPortBase> dests = reverse ? edgesDest.getIterable() : edgesSrc.getIterable();
 
         // assign
@@ -0,0 +1,398 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.finroc.core.FrameworkElementFlags;
+import org.finroc.core.RuntimeSettings;
+import org.finroc.core.portdatabase.FinrocTypeInfo;
+import org.finroc.core.thread.TimerWheel;
+
+/**
+ * @author Max Reichardt
+ *
+ * Adapts network update intervals of the ports of one connection to the
+ * bandwidth that is actually available.
+ *
+ * The network transport reports sent bytes and the time values spent in its
+ * send queue. Once per sample period, the controller checks the average queueing
+ * delay: If it exceeds the target delay, update intervals are increased
+ * multiplicatively (bulk ports first - express ports only when bulk ports are
+ * already at their maximum interval). If the delay is well below the target,
+ * intervals are decreased again (express ports first).
+ *
+ * Sample periods are evaluated by a timer - so a stalled connection (values are
+ * enqueued, but nothing is sent) also leads to larger intervals. For this, the
+ * transport needs to report enqueued values as well (see reportEnqueued).
+ *
+ * The effective interval of a port is its configured interval (see getConfiguredUpdateInterval)
+ * multiplied by the current factor - bounded by the configured minimum and maximum.
+ * Changes of effective intervals are reported to the controller's Listener (per port).
+ */
+public class AdaptiveUpdateRateController {
+
+    /** Factor by which intervals are increased when connection is congested */
+    private static final double INCREASE_FACTOR = 1.5;
+
+    /** Factor by which intervals are decreased when connection has spare capacity */
+    private static final double DECREASE_FACTOR = 0.9;
+
+    /** Bounds for effective update intervals in ms */
+    private final short minInterval, maxInterval;
+
+    /** Queueing delay (in ms) above which connection is considered congested */
+    private final long targetDelay;
+
+    /** Sample period in ms */
+    private final long samplePeriod;
+
+    /** Current factors for bulk and express ports */
+    private double bulkFactor = 1, expressFactor = 1;
+
+    /** States of ports of connection (index of port is stored in its state) */
+    private final ArrayList<PortState> ports = new ArrayList<PortState>();
+
+    /** Measurements in current sample period */
+    private long periodStart = System.currentTimeMillis(), bytesSent, delaySum, delayCount;
+
+    /** Number of values in send queue (enqueued, but not sent yet) */
+    private final AtomicInteger pendingValues = new AtomicInteger();
+
+    /** Time (in ms) since when values are pending without any value being sent */
+    private volatile long pendingSince;
+
+    /** Throughput in last sample period (bytes/s) */
+    private volatile long throughput;
+
+    /** Average queueing delay in last sample period (ms) */
+    private volatile long averageDelay;
+
+    /** Listener that is notified on changes of effective intervals (may be null) */
+    private volatile Listener listener;
+
+    /** Entry for timer that evaluates sample periods (scheduled in shared timer wheel) */
+    private final TimerWheel.Entry timerEntry = new TimerWheel.Entry(new TimerWheel.Callback() {
+        @Override
+        public void timerExpired(Object owner) {
+            AdaptiveUpdateRateController.this.timerExpired();
+        }
+    });
+
+    /** Temporary list with ports whose intervals changed (only used with lock held) */
+    private final ArrayList<PortState> changedPorts = new ArrayList<PortState>();
+
+    /**
+     * Listener for changes of effective update intervals
+     */
+    public interface Listener {
+
+        /**
+         * Called whenever the effective update interval of a port changes
+         *
+         * @param port Port whose interval changed
+         * @param interval New effective update interval of port in ms
+         */
+        void effectiveIntervalChanged(NetPort port, short interval);
+    }
+
+    /**
+     * State of port controlled by an update rate controller (stored in NetPort)
+     */
+    static class PortState {
+
+        /** Controller that port belongs to */
+        final AdaptiveUpdateRateController controller;
+
+        /** Port */
+        final NetPort port;
+
+        /** Current effective update interval of port in ms */
+        volatile short effectiveInterval;
+
+        /** Index of state in controller's list (only accessed with controller lock held) */
+        int index;
+
+        PortState(AdaptiveUpdateRateController controller, NetPort port) {
+            this.controller = controller;
+            this.port = port;
+        }
+    }
+
+    /**
+     * @param minInterval Minimum effective update interval in ms
+     * @param maxInterval Maximum effective update interval in ms
+     * @param targetDelay Queueing delay (in ms) above which connection is considered congested
+     * @param samplePeriod Sample period in ms
+     */
+    public AdaptiveUpdateRateController(int minInterval, int maxInterval, long targetDelay, long samplePeriod) {
+        if (minInterval < 0 || maxInterval < minInterval || maxInterval > Short.MAX_VALUE) {
+            throw new RuntimeException("Invalid interval bounds");
+        }
+        this.minInterval = (short)minInterval;
+        this.maxInterval = (short)maxInterval;
+        this.targetDelay = targetDelay;
+        this.samplePeriod = samplePeriod;
+    }
+
+    /**
+     * @param port Port of connection whose update interval is to be controlled
+     * (a port can only be controlled by one controller - it is removed from any previous controller)
+     */
+    public void addPort(NetPort port) {
+        PortState previous = port.rateState;
+        if (previous != null && previous.controller != this) {
+            previous.controller.removePort(port);
+        }
+        synchronized (this) {
+            if (port.rateState != null && port.rateState.controller == this) {
+                return;
+            }
+            PortState state = new PortState(this, port);
+            state.effectiveInterval = computeInterval(port);
+            state.index = ports.size();
+            ports.add(state);
+            port.rateState = state;
+            if (ports.size() == 1) {
+                periodStart = System.currentTimeMillis();
+                TimerWheel.getShared().schedule(timerEntry, samplePeriod);
+            }
+        }
+    }
+
+    /**
+     * @param port Port to remove
+     */
+    public synchronized void removePort(NetPort port) {
+        PortState state = port.rateState;
+        if (state != null && state.controller == this) {
+            PortState last = ports.remove(ports.size() - 1);
+            if (last != state) {
+                ports.set(state.index, last);
+                last.index = state.index;
+            }
+            port.rateState = null;
+            if (ports.isEmpty()) {
+                TimerWheel.getShared().cancel(timerEntry);
+            }
+        }
+    }
+
+    /**
+     * Reports value that was put into the connection's send queue
+     * (to be called by network transport - optional, enables detection of stalled connections)
+     */
+    public void reportEnqueued() {
+        if (pendingValues.getAndIncrement() <= 0) {
+            pendingSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Reports value that was removed from the connection's send queue without being sent
+     * (to be called by network transport for values that were reported via reportEnqueued)
+     */
+    public void reportDiscarded() {
+        pendingValues.decrementAndGet();
+    }
+
+    /**
+     * Reports value that was sent over the connection
+     * (to be called by network transport)
+     *
+     * @param bytes Number of bytes sent
+     * @param queueDelay Time that value spent in send queue in ms
+     */
+    public void reportSent(int bytes, long queueDelay) {
+        long now = System.currentTimeMillis();
+        pendingValues.decrementAndGet();
+        pendingSince = now;
+        boolean changed = false;
+        synchronized (this) {
+            bytesSent += bytes;
+            delaySum += queueDelay;
+            delayCount++;
+            if (now - periodStart >= samplePeriod) {
+                changed = evaluate(now);
+            }
+        }
+        if (changed) {
+            notifyChanges();
+        }
+    }
+
+    /**
+     * @param port Port
+     * @return Current effective update interval of port in ms (configured interval if port is not controlled by this controller)
+     */
+    public short getEffectiveUpdateInterval(NetPort port) {
+        PortState state = port.rateState;
+        return (state != null && state.controller == this) ? state.effectiveInterval : getConfiguredUpdateInterval(port);
+    }
+
+    /**
+     * @return Throughput in last sample period (bytes/s)
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * @return Average queueing delay in last sample period (ms)
+     */
+    public long getAverageQueueDelay() {
+        return averageDelay;
+    }
+
+    /**
+     * @param listener Listener that is notified whenever the effective interval of a port changes (null to remove listener)
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param port Port
+     * @return Configured update interval of port: port-specific setting of subscribers, type-specific setting or global default (in ms)
+     */
+    public static short getConfiguredUpdateInterval(NetPort port) {
+        short interval = port.getPort().getMinNetworkUpdateIntervalForSubscription();
+        if (interval < 0) {
+            interval = FinrocTypeInfo.get(port.getPort().getDataType()).getUpdateTime();
+        }
+        if (interval < 0) {
+            interval = RuntimeSettings.DEFAULT_MINIMUM_NETWORK_UPDATE_TIME.getValue().shortValue();
+        }
+        return interval;
+    }
+
+    /**
+     * Called by timer: evaluates sample period if no value was sent that did so
+     */
+    private void timerExpired() {
+        boolean changed = false;
+        synchronized (this) {
+            if (ports.isEmpty()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long elapsed = now - periodStart;
+            if (elapsed >= samplePeriod) {
+                changed = evaluate(now);
+                elapsed = 0;
+            }
+            TimerWheel.getShared().schedule(timerEntry, samplePeriod - elapsed);
+        }
+        if (changed) {
+            notifyChanges();
+        }
+    }
+
+    /**
+     * Evaluates measurements of sample period and adapts factors (lock must be held)
+     * Ports with changed intervals are added to changedPorts.
+     *
+     * @return True if intervals of any ports changed
+     */
+    private boolean evaluate(long now) {
+        long duration = Math.max(1, now - periodStart);
+        throughput = bytesSent * 1000 / duration;
+        if (delayCount > 0) {
+            averageDelay = delaySum / delayCount;
+        } else {
+            // nothing sent in sample period: connection is either idle or stalled
+            averageDelay = pendingValues.get() > 0 ? now - pendingSince : 0;
+        }
+        periodStart = now;
+        bytesSent = 0;
+        delaySum = 0;
+        delayCount = 0;
+
+        double maxFactor = minInterval == 0 ? Short.MAX_VALUE : ((double)maxInterval) / Math.max(1, minInterval);
+        if (averageDelay > targetDelay) {
+            if (bulkFactor < maxFactor && hasPorts(false)) {
+                bulkFactor = Math.min(maxFactor, bulkFactor * INCREASE_FACTOR);
+            } else {
+                expressFactor = Math.min(maxFactor, expressFactor * INCREASE_FACTOR);
+            }
+        } else if (averageDelay < targetDelay / 2) {
+            if (expressFactor > 1) {
+                expressFactor = Math.max(1, expressFactor * DECREASE_FACTOR);
+            } else {
+                bulkFactor = Math.max(1, bulkFactor * DECREASE_FACTOR);
+            }
+        }
+
+        for (int i = 0; i < ports.size(); i++) {
+            PortState state = ports.get(i);
+            short interval = computeInterval(state.port);
+            if (interval != state.effectiveInterval) {
+                state.effectiveInterval = interval;
+                changedPorts.add(state);
+            }
+        }
+        return changedPorts.size() > 0;
+    }
+
+    /**
+     * @param express Look for express ports? (otherwise bulk ports)
+     * @return True if controller has ports of this kind
+     */
+    private boolean hasPorts(boolean express) {
+        for (int i = 0; i < ports.size(); i++) {
+            if (ports.get(i).port.getPort().getFlag(FrameworkElementFlags.EXPRESS_PORT) == express) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Effective update interval of port with current factors
+     */
+    private short computeInterval(NetPort port) {
+        double factor = port.getPort().getFlag(FrameworkElementFlags.EXPRESS_PORT) ? expressFactor : bulkFactor;
+        long interval = Math.round(Math.max(1, getConfiguredUpdateInterval(port)) * factor);
+        return (short)Math.max(minInterval, Math.min(maxInterval, interval));
+    }
+
+    /**
+     * Notifies listener about changed intervals
+     * (listener is called without holding the lock; only one thread notifies at a time)
+     */
+    private void notifyChanges() {
+        synchronized (changedPorts) {
+            PortState[] changed;
+            synchronized (this) {
+                changed = changedPorts.toArray(new PortState[changedPorts.size()]);
+                changedPorts.clear();
+            }
+            Listener l = listener;
+            if (l != null) {
+                for (PortState state : changed) {
+                    l.effectiveIntervalChanged(state.port, state.effectiveInterval);
+                }
+            }
+        }
+    }
+}
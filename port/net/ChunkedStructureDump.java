@@ -0,0 +1,274 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.MemoryBuffer;
+
+/**
+ * @author Max Reichardt
+ *
+ * Compressed, chunked transfer of bulk structure dumps (e.g. info on all framework elements
+ * for clients with StructureExchange COMPLETE_STRUCTURE or FINSTRUCT).
+ *
+ * Instead of serializing the whole structure into one message, the sending side writes
+ * elements to a Writer that emits a chunk every 'elementsPerChunk' elements.
+ * Chunks are compressed (see LZ4Compressor) and can be sent right away -
+ * so the receiving side can start building its model from the first chunks
+ * (see Reader) while the rest of the dump is still being transferred.
+ *
+ * Each chunk carries the structure epoch and version that the dump reflects
+ * (see RuntimeEnvironment.getStructureVersion()). After the dump, clients receive
+ * (or request) the structure changes since this version.
+ * As elements are written without holding the registry lock, the dump is no consistent snapshot:
+ * Changes after its version may already be reflected. Clients must apply the changes since
+ * this version idempotently. Writers for the local runtime should be obtained via
+ * RuntimeEnvironment.createStructureDumpWriter() - which captures the version under the registry lock.
+ *
+ * How elements are serialized is up to the network transport. Writer and Reader
+ * create plain streams for elements - transports may override createElementStream()
+ * e.g. to attach type encoders.
+ */
+public class ChunkedStructureDump {
+
+    /** Default number of elements per chunk */
+    public static final int DEFAULT_ELEMENTS_PER_CHUNK = 256;
+
+    /** Flags in chunk header */
+    private static final byte LAST_CHUNK = 1;
+
+    /**
+     * Receives chunks from writer
+     */
+    public interface ChunkSink {
+
+        /**
+         * @param chunk Serialized chunk (only valid during call)
+         * @param last Is this the last chunk of the dump?
+         */
+        public void sendChunk(MemoryBuffer chunk, boolean last);
+    }
+
+    /**
+     * Writes structure dump in chunks
+     * (not thread-safe - use one writer per dump)
+     */
+    public static class Writer {
+
+        /** Structure epoch and version that dump reflects */
+        private final long epoch, version;
+
+        /** Maximum number of elements per chunk */
+        private final int elementsPerChunk;
+
+        /** Receives complete chunks */
+        private final ChunkSink sink;
+
+        /** Compresses chunk payloads */
+        private final LZ4Compressor compressor = new LZ4Compressor(LZ4Compressor.DEFAULT_THRESHOLD);
+
+        /** Buffer for complete chunks */
+        private final MemoryBuffer chunkBuffer = new MemoryBuffer();
+
+        /** Stream that elements of current chunk are written to (null if current chunk has no elements yet) */
+        private BinaryOutputStream elementStream;
+
+        /** Number of elements in current chunk */
+        private int elementCount;
+
+        /** Index of current chunk */
+        private int chunkIndex;
+
+        /** Has dump been finished? */
+        private boolean finished;
+
+        /**
+         * @param epoch Structure epoch that dump reflects
+         * @param version Structure version that dump reflects (all changes up to this version must be contained in the dump)
+         * @param elementsPerChunk Maximum number of elements per chunk
+         * @param sink Receives complete chunks
+         */
+        public Writer(long epoch, long version, int elementsPerChunk, ChunkSink sink) {
+            if (elementsPerChunk <= 0) {
+                throw new RuntimeException("Number of elements per chunk must be positive");
+            }
+            this.epoch = epoch;
+            this.version = version;
+            this.elementsPerChunk = elementsPerChunk;
+            this.sink = sink;
+        }
+
+        /**
+         * @return Stream to write next element to (call elementWritten() afterwards)
+         */
+        public BinaryOutputStream getElementStream() {
+            if (finished) {
+                throw new RuntimeException("Dump already finished");
+            }
+            if (elementStream == null) {
+                elementStream = createElementStream(compressor.getPayloadBuffer());
+            }
+            return elementStream;
+        }
+
+        /**
+         * Notifies writer that element was written to element stream.
+         * Emits chunk if it is complete.
+         */
+        public void elementWritten() {
+            elementCount++;
+            if (elementCount >= elementsPerChunk) {
+                flush(false);
+            }
+        }
+
+        /**
+         * Completes dump (emits last chunk - possibly without elements)
+         */
+        public void finish() {
+            if (!finished) {
+                flush(true);
+                finished = true;
+            }
+        }
+
+        /**
+         * @param buffer Buffer that elements are to be written to
+         * @return Stream that elements are written to (may be overridden e.g. to attach type encoder)
+         */
+        protected BinaryOutputStream createElementStream(MemoryBuffer buffer) {
+            return new BinaryOutputStream(buffer);
+        }
+
+        /**
+         * Emits current chunk
+         *
+         * @param last Is this the last chunk?
+         */
+        private void flush(boolean last) {
+            if (elementStream == null) {
+                elementStream = createElementStream(compressor.getPayloadBuffer());
+            }
+            elementStream.close();
+            BinaryOutputStream stream = new BinaryOutputStream(chunkBuffer);
+            stream.writeByte(last ? LAST_CHUNK : 0);
+            stream.writeLong(epoch);
+            stream.writeLong(version);
+            stream.writeInt(chunkIndex);
+            stream.writeInt(elementCount);
+            compressor.writeCompressed(stream);
+            stream.close();
+            sink.sendChunk(chunkBuffer, last);
+            elementStream = null;
+            elementCount = 0;
+            chunkIndex++;
+        }
+    }
+
+    /**
+     * Reads structure dump chunk by chunk
+     * (not thread-safe - use one reader per dump)
+     */
+    public static class Reader {
+
+        /** Decompresses chunk payloads */
+        private final LZ4Compressor compressor = new LZ4Compressor(LZ4Compressor.DEFAULT_THRESHOLD);
+
+        /** Structure epoch and version that dump reflects */
+        private long epoch, version;
+
+        /** Number of elements in chunk read last */
+        private int elementCount;
+
+        /** Index of next expected chunk */
+        private int nextChunkIndex;
+
+        /** Has last chunk been read? */
+        private boolean complete;
+
+        /**
+         * Reads next chunk
+         *
+         * @param stream Stream to read chunk from
+         * @return Stream to deserialize the chunk's elements from (getElementCount() elements; valid until next call)
+         */
+        public BinaryInputStream readChunk(BinaryInputStream stream) throws Exception {
+            if (complete) {
+                throw new Exception("Structure dump already complete");
+            }
+            byte flags = stream.readByte();
+            long chunkEpoch = stream.readLong();
+            long chunkVersion = stream.readLong();
+            int index = stream.readInt();
+            int count = stream.readInt();
+            if (index != nextChunkIndex || count < 0) {
+                throw new Exception("Unexpected chunk " + index + " (expected " + nextChunkIndex + ")");
+            }
+            if (index > 0 && (chunkEpoch != epoch || chunkVersion != version)) {
+                throw new Exception("Chunk belongs to another structure dump");
+            }
+            epoch = chunkEpoch;
+            version = chunkVersion;
+            elementCount = count;
+            nextChunkIndex++;
+            complete = (flags & LAST_CHUNK) != 0;
+            return createElementStream(compressor.readCompressedPayload(stream));
+        }
+
+        /**
+         * @param buffer Buffer containing the chunk's elements
+         * @return Stream to deserialize elements from (may be overridden e.g. to attach type encoder)
+         */
+        protected BinaryInputStream createElementStream(MemoryBuffer buffer) {
+            return new BinaryInputStream(buffer);
+        }
+
+        /**
+         * @return Number of elements in chunk read last
+         */
+        public int getElementCount() {
+            return elementCount;
+        }
+
+        /**
+         * @return Has last chunk of dump been read?
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * @return Structure epoch that dump reflects
+         */
+        public long getStructureEpoch() {
+            return epoch;
+        }
+
+        /**
+         * @return Structure version that dump reflects (client should obtain changes since this version afterwards)
+         */
+        public long getStructureVersion() {
+            return version;
+        }
+    }
+}
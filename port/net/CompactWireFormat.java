@@ -0,0 +1,463 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import java.nio.ByteBuffer;
+
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.MemoryBuffer;
+
+/**
+ * @author Max Reichardt
+ *
+ * Compact wire encoding for port value streams (protocol revision REVISION_COMPACT).
+ *
+ * Handles and lengths are written as variable-length integers (7 bits per byte).
+ * Values sent together - possibly of different ports - are preceded by a frame header
+ * (see FrameHeader) that contains the number of values, their change types (packed, 2 bits each)
+ * and - optionally - their timestamps as deltas to the frame's base time.
+ * Each value follows as: handle (varint), length (varint), encoded value.
+ * The length allows skipping values of unknown handles. Frames are assembled using a FrameWriter.
+ *
+ * Which revision is used on a connection is negotiated by the network transport
+ * at connect time (see negotiate()).
+ */
+public class CompactWireFormat {
+
+    /** Protocol revisions: Legacy encoding (fixed-width integers, per-value framing) and compact encoding */
+    public static final byte REVISION_LEGACY = 0, REVISION_COMPACT = 1;
+
+    /** Latest protocol revision supported by this implementation */
+    public static final byte CURRENT_REVISION = REVISION_COMPACT;
+
+    /** Maximum size of a variable-length integer in bytes */
+    public static final int MAX_VARINT_SIZE = 10;
+
+    /**
+     * @param localRevision Latest revision supported locally
+     * @param remoteRevision Latest revision supported by peer
+     * @return Revision to use on connection
+     */
+    public static byte negotiate(byte localRevision, byte remoteRevision) {
+        return (byte)Math.max(REVISION_LEGACY, Math.min(localRevision, remoteRevision));
+    }
+
+    /**
+     * Writes unsigned variable-length integer
+     *
+     * @param stream Stream to write to
+     * @param value Value (interpreted as unsigned)
+     */
+    public static void writeVarint(BinaryOutputStream stream, long value) {
+        while ((value & ~0x7FL) != 0) {
+            stream.writeByte((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        stream.writeByte((byte)value);
+    }
+
+    /**
+     * Reads unsigned variable-length integer
+     *
+     * @param stream Stream to read from
+     * @return Value
+     */
+    public static long readVarint(BinaryInputStream stream) throws Exception {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = stream.readByte();
+            if (shift == 63 && (b & 0x7E) != 0) {
+                throw new Exception("Variable-length integer exceeds 64 bits");
+            }
+            result |= ((long)(b & 0x7F)) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new Exception("Malformed variable-length integer");
+    }
+
+    /**
+     * Reads unsigned variable-length integer that must fit into an int (e.g. handles and lengths)
+     *
+     * @param stream Stream to read from
+     * @return Value
+     */
+    public static int readVarint32(BinaryInputStream stream) throws Exception {
+        long value = readVarint(stream);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new Exception("Variable-length integer out of range: " + value);
+        }
+        return (int)value;
+    }
+
+    /**
+     * Writes unsigned variable-length integer to array
+     *
+     * @param array Array to write to (must have at least MAX_VARINT_SIZE bytes left)
+     * @param offset Offset in array
+     * @param value Value (interpreted as unsigned)
+     * @return Offset after written integer
+     */
+    public static int writeVarint(byte[] array, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            array[offset++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        array[offset++] = (byte)value;
+        return offset;
+    }
+
+    /**
+     * Writes unsigned variable-length integer to buffer
+     *
+     * @param buffer Buffer to write to (at its current position; must have at least MAX_VARINT_SIZE bytes remaining)
+     * @param value Value (interpreted as unsigned)
+     */
+    public static void writeVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    /**
+     * Writes signed variable-length integer (zigzag-encoded, so that small negative values are short as well)
+     *
+     * @param stream Stream to write to
+     * @param value Value
+     */
+    public static void writeSignedVarint(BinaryOutputStream stream, long value) {
+        writeVarint(stream, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Reads signed variable-length integer
+     *
+     * @param stream Stream to read from
+     * @return Value
+     */
+    public static long readSignedVarint(BinaryInputStream stream) throws Exception {
+        long value = readVarint(stream);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Header of a frame of values.
+     *
+     * Layout: number of values and timestamp flag (varint: count * 2 + flag), change types (2 bits per value, packed, LSB first),
+     * if timestamps are sent: base time in ns (signed varint) and - for each value after the first -
+     * the difference to the base time in ns (signed varint).
+     *
+     * Header objects can be reused for multiple frames.
+     */
+    public static class FrameHeader {
+
+        /** Number of values in frame */
+        private int count;
+
+        /** Change types of values */
+        private byte[] changeTypes = new byte[8];
+
+        /** Timestamps of values in ns */
+        private long[] timestamps = new long[8];
+
+        /** Were timestamps contained in last frame that was read? */
+        private boolean hasTimestamps;
+
+        /**
+         * Clears header (to add values for a new frame)
+         */
+        public void clear() {
+            count = 0;
+        }
+
+        /**
+         * Adds value to frame
+         *
+         * @param changeType Change type of value (AbstractPort.CHANGED etc.)
+         * @param timestamp Timestamp of value in ns (ignored if timestamps are not sent)
+         */
+        public void add(byte changeType, long timestamp) {
+            if (changeType < 0 || changeType > 3) {
+                throw new RuntimeException("Change type does not fit in 2 bits: " + changeType);
+            }
+            if (count == changeTypes.length) {
+                byte[] newChangeTypes = new byte[count * 2];
+                long[] newTimestamps = new long[count * 2];
+                System.arraycopy(changeTypes, 0, newChangeTypes, 0, count);
+                System.arraycopy(timestamps, 0, newTimestamps, 0, count);
+                changeTypes = newChangeTypes;
+                timestamps = newTimestamps;
+            }
+            changeTypes[count] = changeType;
+            timestamps[count] = timestamp;
+            count++;
+        }
+
+        /**
+         * @return Number of values in frame
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @param index Index of value
+         * @return Change type of value
+         */
+        public byte getChangeType(int index) {
+            return changeTypes[index];
+        }
+
+        /**
+         * @return True if timestamps were contained in last frame that was read
+         */
+        public boolean hasTimestamps() {
+            return hasTimestamps;
+        }
+
+        /**
+         * @param index Index of value
+         * @return Timestamp of value in ns (only valid if timestamps were read)
+         */
+        public long getTimestamp(int index) {
+            return timestamps[index];
+        }
+
+        /**
+         * Writes header to stream (values are written after header)
+         *
+         * @param stream Stream to write to
+         * @param writeTimestamps Write timestamps?
+         */
+        public void write(BinaryOutputStream stream, boolean writeTimestamps) {
+            writeVarint(stream, (((long)count) << 1) | (writeTimestamps ? 1 : 0));
+            for (int i = 0; i < count; i += 4) {
+                int packed = 0;
+                for (int j = 0; j < 4 && i + j < count; j++) {
+                    packed |= changeTypes[i + j] << (2 * j);
+                }
+                stream.writeByte((byte)packed);
+            }
+            if (writeTimestamps && count > 0) {
+                long base = timestamps[0];
+                writeSignedVarint(stream, base);
+                for (int i = 1; i < count; i++) {
+                    writeSignedVarint(stream, timestamps[i] - base);
+                }
+            }
+        }
+
+        /**
+         * Reads header from stream
+         *
+         * @param stream Stream to read from
+         */
+        public void read(BinaryInputStream stream) throws Exception {
+            long countAndFlag = readVarint(stream);
+            if (countAndFlag < 0 || (countAndFlag >>> 1) > stream.remaining()) {
+                throw new Exception("Invalid number of values in frame: " + (countAndFlag >>> 1));
+            }
+            int newCount = (int)(countAndFlag >>> 1);
+            hasTimestamps = (countAndFlag & 1) != 0;
+            clear();
+            for (int i = 0; i < newCount; i += 4) {
+                int packed = stream.readByte() & 0xFF;
+                for (int j = 0; j < 4 && i + j < newCount; j++) {
+                    add((byte)((packed >>> (2 * j)) & 3), 0);
+                }
+            }
+            if (hasTimestamps && count > 0) {
+                long base = readSignedVarint(stream);
+                timestamps[0] = base;
+                for (int i = 1; i < count; i++) {
+                    timestamps[i] = base + readSignedVarint(stream);
+                }
+            }
+        }
+    }
+
+    /**
+     * Assembles a frame of values (possibly of different ports) for sending.
+     *
+     * Values are serialized to the stream returned by beginValue() and added with endValue().
+     * All values in a frame either have timestamps or not (see canAdd()).
+     * Writer objects are meant to be reused for multiple frames.
+     *
+     * Handles, lengths and contents of values are collected in a (direct) byte buffer - each value
+     * is copied there once after serialization. When the frame is complete, the header is written
+     * separately (see writeHeader()) and the buffer with the values is handed over to the network
+     * transport as the body of the message (see detachValues()) - without copying it again.
+     */
+    public static class FrameWriter {
+
+        /** Initial capacity of buffer for values */
+        private static final int INITIAL_CAPACITY = 4096;
+
+        /** Header of current frame */
+        private final FrameHeader header = new FrameHeader();
+
+        /** Buffer and stream for serializing current value */
+        private final MemoryBuffer valueBuffer = new MemoryBuffer();
+        private final BinaryOutputStream valueStream = new BinaryOutputStream();
+
+        /** Pool that buffers for values are obtained from (null if heap buffers are to be used) */
+        private final DirectBufferPool pool;
+
+        /** Handles, lengths and contents of values in current frame (from 0 to position; null if there is no buffer yet) */
+        private ByteBuffer values;
+
+        /** Do values in current frame have timestamps? */
+        private boolean timestamps;
+
+        /**
+         * Creates frame writer that uses heap buffers
+         */
+        public FrameWriter() {
+            this(null);
+        }
+
+        /**
+         * @param pool Pool that direct buffers for values are obtained from (null if heap buffers are to be used)
+         */
+        public FrameWriter(DirectBufferPool pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * @return True if frame contains no values
+         */
+        public boolean isEmpty() {
+            return header.getCount() == 0;
+        }
+
+        /**
+         * @return Number of values in current frame
+         */
+        public int getCount() {
+            return header.getCount();
+        }
+
+        /**
+         * @return Size of values in current frame in bytes (excluding header)
+         */
+        public int getLength() {
+            return values != null ? values.position() : 0;
+        }
+
+        /**
+         * @param withTimestamp Does value to add have a timestamp?
+         * @return True if value can be added to current frame (otherwise frame needs to be written and cleared first)
+         */
+        public boolean canAdd(boolean withTimestamp) {
+            return isEmpty() || timestamps == withTimestamp;
+        }
+
+        /**
+         * @return Stream to serialize next value to (complete with endValue())
+         */
+        public BinaryOutputStream beginValue() {
+            valueStream.reset(valueBuffer);
+            return valueStream;
+        }
+
+        /**
+         * Adds value that was serialized to stream returned by beginValue()
+         *
+         * @param handle Handle of port that value belongs to
+         * @param changeType Change type of value
+         * @param withTimestamp Does value have a timestamp? (canAdd(withTimestamp) must be true)
+         * @param timestamp Timestamp of value in ns (ignored if withTimestamp is false)
+         */
+        public void endValue(int handle, byte changeType, boolean withTimestamp, long timestamp) {
+            if (!canAdd(withTimestamp)) {
+                throw new RuntimeException("Values with and without timestamps cannot be mixed in one frame");
+            }
+            valueStream.close();
+            int valueLength = valueBuffer.getSize();
+            ensureRemaining(2 * MAX_VARINT_SIZE + valueLength);
+            header.add(changeType, timestamp);
+            timestamps = withTimestamp;
+            writeVarint(values, handle);
+            writeVarint(values, valueLength);
+            valueBuffer.getBuffer().get(0, values, valueLength);
+        }
+
+        /**
+         * Writes frame header to stream (values are sent after header - see detachValues())
+         *
+         * @param stream Stream to write to
+         */
+        public void writeHeader(BinaryOutputStream stream) {
+            header.write(stream, timestamps);
+        }
+
+        /**
+         * Hands over buffer with values of current frame and clears frame
+         *
+         * @return Values of frame (one reference - caller is responsible for releasing it)
+         */
+        public SharedBuffer detachValues() {
+            ByteBuffer result = values != null ? values : ByteBuffer.allocate(0);
+            result.flip();
+            values = null;
+            clear();
+            return new SharedBuffer(result, pool);
+        }
+
+        /**
+         * Clears frame (to add values for a new frame)
+         */
+        public void clear() {
+            header.clear();
+            if (values != null) {
+                values.clear();
+            }
+            timestamps = false;
+        }
+
+        /**
+         * Makes sure that buffer for values has the specified number of bytes remaining
+         * (obtains a larger buffer and copies values that were added so far if necessary)
+         */
+        private void ensureRemaining(int required) {
+            if (values != null && values.remaining() >= required) {
+                return;
+            }
+            int length = getLength();
+            int capacity = Math.max(length + required, values != null ? 2 * values.capacity() : INITIAL_CAPACITY);
+            ByteBuffer newValues = pool != null ? pool.acquire(capacity) : ByteBuffer.allocate(capacity);
+            newValues.limit(newValues.capacity());
+            if (values != null) {
+                values.flip();
+                newValues.put(values);
+                if (pool != null) {
+                    pool.release(values);
+                }
+            }
+            values = newValues;
+        }
+    }
+}
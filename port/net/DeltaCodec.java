@@ -0,0 +1,363 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.MemoryBuffer;
+import org.rrlib.serialization.Serialization.DataEncoding;
+import org.rrlib.serialization.rtti.GenericObject;
+
+/**
+ * @author Max Reichardt
+ *
+ * Delta codec for successive values of one network port in one direction.
+ *
+ * The sender keeps the serialized form of the last value it sent.
+ * Subsequent values are sent as binary diff (runs of changed bytes) -
+ * or as keyframe (complete serialized value) if this is not smaller,
+ * if there is no reference value yet, or periodically for resynchronization.
+ * The receiver keeps the last reconstructed value and applies the diffs.
+ * Run offsets and lengths are written as variable-length integers.
+ *
+ * Every encoded value carries a (one byte, wrapping) sequence number - and deltas
+ * additionally the sequence number of the value they are based on. If an encoded
+ * value does not reach the receiver (e.g. because a network transport discarded
+ * a serialized message), the receiver detects the mismatch and rejects deltas
+ * until the next keyframe - instead of reconstructing corrupted values.
+ * Network transports that may discard serialized values can avoid this by enabling
+ * explicit commits (setExplicitCommit): A value then only becomes the sender's
+ * reference when commit() is called after it has been committed to the connection.
+ *
+ * Both sides of a connection must have enabled delta encoding (negotiated by
+ * the network transport - see NetPort.setDeltaEncoding).
+ */
+public class DeltaCodec {
+
+    /** Default number of values after which a keyframe is sent */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 50;
+
+    /** Unchanged gaps smaller than this are included in runs (saves run headers) */
+    private static final int MIN_GAP = 4;
+
+    /** Modes in stream */
+    private static final byte KEYFRAME = 0, DELTA = 1;
+
+    /** Number of values after which a keyframe is sent */
+    private final int keyframeInterval;
+
+    /** Serialized form of last value (reference for next delta) */
+    private byte[] reference = new byte[0];
+    private int referenceLength;
+
+    /** Is there a valid reference value? */
+    private boolean hasReference;
+
+    /** Sequence number of reference value */
+    private byte referenceSequence;
+
+    /** Serialized form of current value (sender) */
+    private byte[] current = new byte[0];
+    private int currentLength;
+
+    /** Sequence number of last encoded value (sender) */
+    private byte sequence;
+
+    /** Number of values sent since last keyframe (in reference value and in current value) */
+    private int valuesSinceKeyframe, currentValuesSinceKeyframe;
+
+    /** Does current value only become reference when commit() is called? */
+    private boolean explicitCommit;
+
+    /** Has current value been encoded and not been committed yet? (explicit commit only) */
+    private boolean uncommitted;
+
+    /** Buffer and reusable streams for serializing values */
+    private final MemoryBuffer buffer = new MemoryBuffer();
+    private final BinaryOutputStream writer = new BinaryOutputStream();
+    private final BinaryInputStream reader = new BinaryInputStream();
+
+    /** Statistics: Size of values in bytes - serialized completely and as actually encoded */
+    private long rawBytes, encodedBytes;
+
+    /**
+     * @param keyframeInterval Number of values after which a keyframe is sent
+     */
+    public DeltaCodec(int keyframeInterval) {
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+    }
+
+    /**
+     * @param explicitCommit Does an encoded value only become the reference for the next delta when commit() is called?
+     *                       (otherwise this happens immediately in encode())
+     */
+    public synchronized void setExplicitCommit(boolean explicitCommit) {
+        this.explicitCommit = explicitCommit;
+        uncommitted = false;
+    }
+
+    /**
+     * Encodes value to stream
+     * (with explicit commits, a previously encoded value that was not committed is discarded)
+     *
+     * @param stream Stream to write to
+     * @param value Value to encode
+     * @param dataEncoding Data encoding to serialize value with
+     */
+    public synchronized void encode(BinaryOutputStream stream, GenericObject value, DataEncoding dataEncoding) {
+        writer.reset(buffer);
+        value.serialize(writer, dataEncoding);
+        writer.close();
+        int length = buffer.getSize();
+        current = ensureCapacity(current, length, false);
+        buffer.getBuffer().get(0, current, 0, length);
+        currentLength = length;
+        sequence++;
+
+        int keyframeSize = 2 + varintSize(length) + length;
+        int deltaSize = hasReference && valuesSinceKeyframe < keyframeInterval ? deltaSize() : Integer.MAX_VALUE;
+        if (deltaSize < keyframeSize) {
+            stream.writeByte(DELTA);
+            stream.writeByte(sequence);
+            stream.writeByte(referenceSequence);
+            writeDelta(stream);
+            currentValuesSinceKeyframe = valuesSinceKeyframe + 1;
+            encodedBytes += deltaSize;
+        } else {
+            stream.writeByte(KEYFRAME);
+            stream.writeByte(sequence);
+            CompactWireFormat.writeVarint(stream, length);
+            stream.write(current, 0, length);
+            currentValuesSinceKeyframe = 0;
+            encodedBytes += keyframeSize;
+        }
+        rawBytes += length;
+
+        if (explicitCommit) {
+            uncommitted = true;
+        } else {
+            promoteCurrent();
+        }
+    }
+
+    /**
+     * Marks the value last encoded as committed to the connection (explicit commit only):
+     * it becomes the reference for the next delta.
+     */
+    public synchronized void commit() {
+        if (uncommitted) {
+            uncommitted = false;
+            promoteCurrent();
+        }
+    }
+
+    /**
+     * Current value becomes reference (sender)
+     */
+    private void promoteCurrent() {
+        byte[] temp = reference;
+        reference = current;
+        current = temp;
+        referenceLength = currentLength;
+        referenceSequence = sequence;
+        valuesSinceKeyframe = currentValuesSinceKeyframe;
+        hasReference = true;
+    }
+
+    /**
+     * Decodes value from stream
+     *
+     * @param stream Stream to read from
+     * @param value Object to deserialize value to
+     * @param dataEncoding Data encoding that value was serialized with
+     */
+    public synchronized void decode(BinaryInputStream stream, GenericObject value, DataEncoding dataEncoding) throws Exception {
+        byte mode = stream.readByte();
+        byte valueSequence = stream.readByte();
+        if (mode == KEYFRAME) {
+            int length = CompactWireFormat.readVarint32(stream);
+            if (length > stream.remaining()) {
+                hasReference = false;
+                throw new Exception("Invalid keyframe length " + length);
+            }
+            reference = ensureCapacity(reference, length, false);
+            stream.readFully(reference, 0, length);
+            referenceLength = length;
+            hasReference = true;
+        } else if (mode == DELTA) {
+            byte baseSequence = stream.readByte();
+            if (!hasReference) {
+                throw new Exception("Received delta without keyframe");
+            }
+            if (baseSequence != referenceSequence) {
+                hasReference = false; // reject further deltas until next keyframe
+                throw new Exception("Received delta for another reference value (a value was lost) - waiting for keyframe");
+            }
+            int length = CompactWireFormat.readVarint32(stream);
+            int runCount = CompactWireFormat.readVarint32(stream);
+            if (length > referenceLength + stream.remaining() || runCount > stream.remaining()) { // bytes after reference value need to be in stream
+                hasReference = false;
+                throw new Exception("Invalid delta length " + length);
+            }
+            reference = ensureCapacity(reference, length, true);
+            int offset = 0;
+            for (int i = 0; i < runCount; i++) {
+                offset += CompactWireFormat.readVarint32(stream); // relative to end of previous run
+                int runLength = CompactWireFormat.readVarint32(stream);
+                if (offset + runLength > length || offset + runLength < 0) {
+                    hasReference = false;
+                    throw new Exception("Invalid delta run");
+                }
+                stream.readFully(reference, offset, runLength);
+                offset += runLength;
+            }
+            referenceLength = length;
+        } else {
+            throw new Exception("Invalid delta codec mode " + mode);
+        }
+        referenceSequence = valueSequence;
+
+        writer.reset(buffer);
+        writer.write(reference, 0, referenceLength);
+        writer.close();
+        reader.reset(buffer);
+        value.deserialize(reader, dataEncoding);
+    }
+
+    /**
+     * Invalidates reference value (next value will be a keyframe)
+     * (e.g. after reconnecting)
+     */
+    public synchronized void reset() {
+        hasReference = false;
+        uncommitted = false;
+        referenceLength = 0;
+        valuesSinceKeyframe = 0;
+    }
+
+    /**
+     * @return Ratio of encoded size to raw size of all values so far (1 if nothing has been encoded yet)
+     */
+    public synchronized double getCompressionRatio() {
+        return rawBytes == 0 ? 1 : ((double)encodedBytes) / rawBytes;
+    }
+
+    /**
+     * @return Size of delta encoding of current value (compared to reference) - including mode and sequence numbers
+     */
+    private int deltaSize() {
+        int size = 3;
+        int runCount = 0;
+        int i = 0, previousEnd = 0;
+        while ((i = nextChange(i)) < currentLength) {
+            int end = runEnd(i);
+            size += varintSize(i - previousEnd) + varintSize(end - i) + (end - i);
+            runCount++;
+            previousEnd = end;
+            i = end;
+        }
+        return size + varintSize(currentLength) + varintSize(runCount);
+    }
+
+    /**
+     * Writes delta encoding of current value (compared to reference)
+     */
+    private void writeDelta(BinaryOutputStream stream) {
+        int runCount = 0;
+        int i = 0;
+        while ((i = nextChange(i)) < currentLength) {
+            i = runEnd(i);
+            runCount++;
+        }
+        CompactWireFormat.writeVarint(stream, currentLength);
+        CompactWireFormat.writeVarint(stream, runCount);
+        i = 0;
+        int previousEnd = 0;
+        while ((i = nextChange(i)) < currentLength) {
+            int end = runEnd(i);
+            CompactWireFormat.writeVarint(stream, i - previousEnd);
+            CompactWireFormat.writeVarint(stream, end - i);
+            stream.write(current, i, end - i);
+            previousEnd = end;
+            i = end;
+        }
+    }
+
+    /**
+     * @return Index of next changed byte at or after index (currentLength if there is none)
+     */
+    private int nextChange(int index) {
+        int end = Math.min(currentLength, referenceLength);
+        while (index < end && current[index] == reference[index]) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return End of run of changed bytes that starts at index (unchanged gaps smaller than MIN_GAP are included)
+     */
+    private int runEnd(int index) {
+        int end = index;
+        int unchanged = 0;
+        while (index < currentLength && unchanged < MIN_GAP) {
+            if (index >= referenceLength || current[index] != reference[index]) {
+                unchanged = 0;
+                end = index + 1;
+            } else {
+                unchanged++;
+            }
+            index++;
+        }
+        return end;
+    }
+
+    /**
+     * @param value Non-negative value
+     * @return Number of bytes of value as variable-length integer
+     */
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @param array Array
+     * @param length Required length
+     * @param keepContents Keep contents if array is enlarged?
+     * @return Array with at least the required length
+     */
+    private static byte[] ensureCapacity(byte[] array, int length, boolean keepContents) {
+        if (array.length >= length) {
+            return array;
+        }
+        byte[] result = new byte[Math.max(length, array.length * 2)];
+        if (keepContents) {
+            System.arraycopy(array, 0, result, 0, array.length);
+        }
+        return result;
+    }
+}
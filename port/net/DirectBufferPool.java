@@ -0,0 +1,149 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Max Reichardt
+ *
+ * Pool of direct byte buffers for network I/O.
+ *
+ * Network transports serialize outgoing data into these buffers, so that
+ * the data can be passed to the kernel without further copying.
+ * Buffers are organized in size classes (powers of two). Buffers larger
+ * than the largest size class are allocated on demand and not pooled.
+ *
+ * Pool is thread-safe.
+ */
+public class DirectBufferPool {
+
+    /** Smallest and largest size class (log2 of capacity) */
+    private static final int MIN_SIZE_CLASS = 10, MAX_SIZE_CLASS = 24;
+
+    /** Default maximum number of pooled buffers per size class */
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 64;
+
+    /** Pooled buffers (index is size class - MIN_SIZE_CLASS) */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] pools;
+
+    /** Number of pooled buffers per size class */
+    private final AtomicInteger[] poolSizes;
+
+    /** Maximum number of pooled buffers per size class */
+    private final int maxPooledBuffers;
+
+    /** Number of buffers allocated and reused */
+    private final AtomicLong allocations = new AtomicLong(), reuses = new AtomicLong();
+
+    public DirectBufferPool() {
+        this(DEFAULT_MAX_POOLED_BUFFERS);
+    }
+
+    /**
+     * @param maxPooledBuffers Maximum number of pooled buffers per size class
+     */
+    @SuppressWarnings("unchecked")
+    public DirectBufferPool(int maxPooledBuffers) {
+        this.maxPooledBuffers = maxPooledBuffers;
+        pools = new ConcurrentLinkedQueue[MAX_SIZE_CLASS - MIN_SIZE_CLASS + 1];
+        poolSizes = new AtomicInteger[pools.length];
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            poolSizes[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param capacity Required capacity
+     * @return Cleared direct buffer with at least the required capacity (limit is set to capacity)
+     */
+    public ByteBuffer acquire(int capacity) {
+        int sizeClass = getSizeClass(capacity);
+        if (sizeClass > MAX_SIZE_CLASS) {
+            allocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        int index = sizeClass - MIN_SIZE_CLASS;
+        ByteBuffer buffer = pools[index].poll();
+        if (buffer != null) {
+            poolSizes[index].decrementAndGet();
+            reuses.incrementAndGet();
+            buffer.clear();
+        } else {
+            allocations.incrementAndGet();
+            buffer = ByteBuffer.allocateDirect(1 << sizeClass);
+        }
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Returns buffer to pool
+     * (buffer must not be used any more by the caller)
+     *
+     * @param buffer Buffer that was obtained using acquire()
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int sizeClass = Integer.numberOfTrailingZeros(capacity);
+        if (sizeClass < MIN_SIZE_CLASS || sizeClass > MAX_SIZE_CLASS) {
+            return;
+        }
+        int index = sizeClass - MIN_SIZE_CLASS;
+        if (poolSizes[index].incrementAndGet() <= maxPooledBuffers) {
+            pools[index].add(buffer);
+        } else {
+            poolSizes[index].decrementAndGet();
+        }
+    }
+
+    /**
+     * @return Number of buffers that were allocated
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * @return Number of times a pooled buffer was reused
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /**
+     * @return Size class (log2 of buffer capacity) for buffers with the specified capacity
+     */
+    private static int getSizeClass(int capacity) {
+        if (capacity <= (1 << MIN_SIZE_CLASS)) {
+            return MIN_SIZE_CLASS;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+}
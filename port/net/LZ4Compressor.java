@@ -0,0 +1,406 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.MemoryBuffer;
+
+/**
+ * @author Max Reichardt
+ *
+ * Compresses payloads of network port values in one direction of a connection.
+ *
+ * Uses a pure-Java implementation of the LZ4 block format (fast, moderate compression).
+ * Payloads smaller than the threshold are sent uncompressed. Buffers are kept
+ * and reused, so compressing does not create garbage in steady state.
+ * Both sides of a connection must have enabled compression
+ * (negotiated by the network transport - see NetPort.setCompression).
+ */
+public class LZ4Compressor {
+
+    /** Default size threshold in bytes */
+    public static final int DEFAULT_THRESHOLD = 512;
+
+    /** Modes in stream */
+    private static final byte RAW = 0, COMPRESSED = 1;
+
+    /** LZ4 constants */
+    private static final int MIN_MATCH = 4, MF_LIMIT = 12, LAST_LITERALS = 5, MAX_DISTANCE = 65535, HASH_LOG = 12;
+
+    /** Payloads smaller than this are not compressed */
+    private final int threshold;
+
+    /** Reusable buffers */
+    private byte[] raw = new byte[0], compressed = new byte[0];
+    private final int[] hashTable = new int[1 << HASH_LOG];
+    private final MemoryBuffer buffer = new MemoryBuffer();
+
+    /** Reusable streams for uncompressed payload in buffer */
+    private final BinaryOutputStream payloadWriter = new BinaryOutputStream();
+    private final BinaryInputStream payloadReader = new BinaryInputStream();
+
+    /** Statistics */
+    private final Statistics statistics = new Statistics();
+
+    /**
+     * Compression statistics of one port
+     */
+    public static class Statistics {
+
+        /** Number of payloads that were compressed and sent raw */
+        private final AtomicLong compressedPayloads = new AtomicLong(), rawPayloads = new AtomicLong();
+
+        /** Size of compressed payloads before and after compression */
+        private final AtomicLong bytesBefore = new AtomicLong(), bytesAfter = new AtomicLong();
+
+        /** CPU time spent compressing and decompressing in ns */
+        private final AtomicLong compressionTime = new AtomicLong(), decompressionTime = new AtomicLong();
+
+        /**
+         * @return Ratio of compressed size to original size of compressed payloads (1 if nothing was compressed yet)
+         */
+        public double getCompressionRatio() {
+            long before = bytesBefore.get();
+            return before == 0 ? 1 : ((double)bytesAfter.get()) / before;
+        }
+
+        /**
+         * @return Number of payloads that were compressed
+         */
+        public long getCompressedPayloadCount() {
+            return compressedPayloads.get();
+        }
+
+        /**
+         * @return Number of payloads that were sent raw (below threshold or incompressible)
+         */
+        public long getRawPayloadCount() {
+            return rawPayloads.get();
+        }
+
+        /**
+         * @return Bytes saved by compression
+         */
+        public long getSavedBytes() {
+            return bytesBefore.get() - bytesAfter.get();
+        }
+
+        /**
+         * @return CPU time spent compressing in ns
+         */
+        public long getCompressionTime() {
+            return compressionTime.get();
+        }
+
+        /**
+         * @return CPU time spent decompressing in ns
+         */
+        public long getDecompressionTime() {
+            return decompressionTime.get();
+        }
+
+        public String toString() {
+            return "compressed: " + compressedPayloads.get() + ", raw: " + rawPayloads.get() + ", ratio: " + getCompressionRatio() +
+                   ", compression time: " + (compressionTime.get() / 1000000) + " ms, decompression time: " + (decompressionTime.get() / 1000000) + " ms";
+        }
+    }
+
+    /**
+     * @param threshold Payloads smaller than this are not compressed
+     */
+    public LZ4Compressor(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return Compression statistics
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return Buffer to serialize payload to (contents are passed to writeCompressed)
+     */
+    MemoryBuffer getPayloadBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return Stream to serialize payload with (reused - writes to emptied payload buffer; close() before calling writeCompressed)
+     */
+    BinaryOutputStream getPayloadWriter() {
+        payloadWriter.reset(buffer);
+        return payloadWriter;
+    }
+
+    /**
+     * Writes contents of payload buffer to stream - compressed if larger than threshold
+     *
+     * @param stream Stream to write to
+     */
+    synchronized void writeCompressed(BinaryOutputStream stream) {
+        int length = buffer.getSize();
+        raw = ensureCapacity(raw, length);
+        buffer.getBuffer().get(0, raw, 0, length);
+
+        int compressedLength = Integer.MAX_VALUE;
+        if (length >= threshold) {
+            long start = System.nanoTime();
+            compressed = ensureCapacity(compressed, maxCompressedLength(length));
+            compressedLength = compress(raw, length, compressed);
+            statistics.compressionTime.addAndGet(System.nanoTime() - start);
+        }
+        if (compressedLength < length) {
+            stream.writeByte(COMPRESSED);
+            stream.writeInt(length);
+            stream.writeInt(compressedLength);
+            stream.write(compressed, 0, compressedLength);
+            statistics.compressedPayloads.incrementAndGet();
+            statistics.bytesBefore.addAndGet(length);
+            statistics.bytesAfter.addAndGet(compressedLength);
+        } else {
+            stream.writeByte(RAW);
+            stream.writeInt(length);
+            stream.write(raw, 0, length);
+            statistics.rawPayloads.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads (possibly compressed) payload from stream
+     *
+     * @param stream Stream to read from
+     * @return Stream to read uncompressed payload from (reused - valid until next call)
+     */
+    synchronized BinaryInputStream readCompressed(BinaryInputStream stream) throws Exception {
+        payloadReader.reset(readCompressedPayload(stream));
+        return payloadReader;
+    }
+
+    /**
+     * Reads (possibly compressed) payload from stream
+     *
+     * @param stream Stream to read from
+     * @return Buffer containing uncompressed payload (valid until next call)
+     */
+    synchronized MemoryBuffer readCompressedPayload(BinaryInputStream stream) throws Exception {
+        byte mode = stream.readByte();
+        int length = stream.readInt();
+        if (length < 0) {
+            throw new Exception("Invalid payload length");
+        }
+        if (length > stream.remaining() * 255L + 16) {
+            throw new Exception("Invalid payload length");
+        }
+        raw = ensureCapacity(raw, length);
+        if (mode == COMPRESSED) {
+            int compressedLength = stream.readInt();
+            if (compressedLength < 0 || compressedLength > stream.remaining()) {
+                throw new Exception("Invalid payload length");
+            }
+            compressed = ensureCapacity(compressed, compressedLength);
+            stream.readFully(compressed, 0, compressedLength);
+            long start = System.nanoTime();
+            decompress(compressed, compressedLength, raw, length);
+            statistics.decompressionTime.addAndGet(System.nanoTime() - start);
+        } else if (mode == RAW) {
+            if (length > stream.remaining()) {
+                throw new Exception("Invalid payload length");
+            }
+            stream.readFully(raw, 0, length);
+        } else {
+            throw new Exception("Invalid compression mode " + mode);
+        }
+
+        payloadWriter.reset(buffer);
+        payloadWriter.write(raw, 0, length);
+        payloadWriter.close();
+        return buffer;
+    }
+
+    /**
+     * @param length Length of uncompressed data
+     * @return Maximum length of compressed data
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses data (LZ4 block format)
+     *
+     * @param src Data to compress
+     * @param srcLength Length of data to compress
+     * @param dest Buffer for compressed data (must have at least maxCompressedLength(srcLength) bytes)
+     * @return Length of compressed data
+     */
+    public int compress(byte[] src, int srcLength, byte[] dest) {
+        int ip = 0, anchor = 0, op = 0;
+        if (srcLength >= MF_LIMIT + 1) {
+            Arrays.fill(hashTable, -1);
+            int limit = srcLength - MF_LIMIT;
+            int matchLimit = srcLength - LAST_LITERALS;
+            while (ip < limit) {
+                int sequence = readInt(src, ip);
+                int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+                int ref = hashTable[hash];
+                hashTable[hash] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip++;
+                    continue;
+                }
+
+                // extend match backwards and forwards
+                while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+
+                // write sequence
+                int literalLength = ip - anchor;
+                int tokenPos = op++;
+                int token = (Math.min(literalLength, 15) << 4) | Math.min(matchLength - MIN_MATCH, 15);
+                op = writeLength(dest, op, literalLength);
+                System.arraycopy(src, anchor, dest, op, literalLength);
+                op += literalLength;
+                int offset = ip - ref;
+                dest[op++] = (byte)offset;
+                dest[op++] = (byte)(offset >>> 8);
+                op = writeLength(dest, op, matchLength - MIN_MATCH);
+                dest[tokenPos] = (byte)token;
+
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+
+        // last literals
+        int literalLength = srcLength - anchor;
+        dest[op++] = (byte)(Math.min(literalLength, 15) << 4);
+        op = writeLength(dest, op, literalLength);
+        System.arraycopy(src, anchor, dest, op, literalLength);
+        return op + literalLength;
+    }
+
+    /**
+     * Decompresses data (LZ4 block format)
+     *
+     * @param src Compressed data
+     * @param srcLength Length of compressed data
+     * @param dest Buffer for decompressed data
+     * @param destLength Length of decompressed data
+     */
+    public static void decompress(byte[] src, int srcLength, byte[] dest, int destLength) throws Exception {
+        int ip = 0, op = 0;
+        while (ip < srcLength) {
+            int token = src[ip++] & 0xFF;
+
+            // literals
+            int literalLength = token >>> 4;
+            if (literalLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcLength) {
+                        throw new Exception("Corrupt compressed data");
+                    }
+                    b = src[ip++] & 0xFF;
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (ip + literalLength > srcLength || op + literalLength > destLength) {
+                throw new Exception("Corrupt compressed data");
+            }
+            System.arraycopy(src, ip, dest, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip >= srcLength) {
+                break; // last literals
+            }
+
+            // match
+            if (ip + 2 > srcLength) {
+                throw new Exception("Corrupt compressed data");
+            }
+            int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+            ip += 2;
+            int matchLength = token & 0xF;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= srcLength) {
+                        throw new Exception("Corrupt compressed data");
+                    }
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int ref = op - offset;
+            if (offset == 0 || ref < 0 || op + matchLength > destLength) {
+                throw new Exception("Corrupt compressed data");
+            }
+            if (offset >= matchLength) {
+                System.arraycopy(dest, ref, dest, op, matchLength);
+                op += matchLength;
+            } else {
+                for (int i = 0; i < matchLength; i++) { // overlapping match (repeats last 'offset' bytes)
+                    dest[op++] = dest[ref++];
+                }
+            }
+        }
+        if (op != destLength) {
+            throw new Exception("Corrupt compressed data");
+        }
+    }
+
+    /**
+     * Writes length extension bytes (for lengths >= 15)
+     */
+    private static int writeLength(byte[] dest, int op, int length) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dest[op++] = (byte)255;
+                length -= 255;
+            }
+            dest[op++] = (byte)length;
+        }
+        return op;
+    }
+
+    private static int readInt(byte[] array, int index) {
+        return (array[index] & 0xFF) | ((array[index + 1] & 0xFF) << 8) | ((array[index + 2] & 0xFF) << 16) | ((array[index + 3] & 0xFF) << 24);
+    }
+
+    private static byte[] ensureCapacity(byte[] array, int length) {
+        return array.length >= length ? array : new byte[Math.max(length, array.length * 2)];
+    }
+}
@@ -25,6 +25,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.finroc.core.FrameworkElementFlags;
+import org.finroc.core.datatype.SIUnit;
+import org.finroc.core.datatype.Timestamp;
 import org.finroc.core.port.AbstractPort;
 import org.finroc.core.port.PortCreationInfo;
 import org.finroc.core.port.ThreadLocalCache;
@@ -39,9 +41,11 @@ import org.finroc.core.portdatabase.FinrocTypeInfo;
 import org.finroc.core.remote.RemoteType;
 import org.rrlib.finroc_core_utils.jc.ArrayWrapper;
 import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
 import org.rrlib.serialization.Serialization;
 import org.rrlib.serialization.Serialization.DataEncoding;
 import org.rrlib.serialization.rtti.DataTypeBase;
+import org.rrlib.serialization.rtti.GenericObject;
 
 /**
  * @author Max Reichardt
@@ -88,6 +92,24 @@ public abstract class NetPort implements PortListener {
     /** Attached extra provider of remote edges (null if none is attached) */
     private ExtraEdgeProvider extraEdgeProvider = null;
 
+    /** Delta codecs for values sent and received (null if delta encoding is not used on this connection) */
+    private volatile DeltaCodec sendDeltaCodec, receiveDeltaCodec;
+
+    /** Compressors for values sent and received (null if compression is not used on this connection) */
+    private volatile LZ4Compressor sendCompressor, receiveCompressor;
+
+    /** Scheduling state if port is registered with a NetPortSendScheduler (otherwise null) */
+    volatile NetPortSendScheduler.PortState sendState;
+
+    /** State if port's update interval is controlled by an AdaptiveUpdateRateController (otherwise null) */
+    volatile AdaptiveUpdateRateController.PortState rateState;
+
+    /** Filter for values sent - with state (null if all values are sent) */
+    private volatile SubscriptionFilter.State sendFilter;
+
+    /** Reusable buffer for values received in one burst */
+    private final ReceivedValues receivedValues = new ReceivedValues();
+
 
     public NetPort(PortCreationInfo pci, Object belongsTo) {
         // keep most these flags
@@ -185,6 +207,46 @@ public abstract class NetPort implements PortListener {
         this.lastUpdate = lastUpdate;
     }
 
+    /**
+     * @param filter Filter for values sent via this port (as requested by subscriber; null if all values are to be sent)
+     */
+    public void setSendFilter(SubscriptionFilter filter) {
+        sendFilter = filter == null ? null : new SubscriptionFilter.State(filter);
+    }
+
+    /**
+     * @return Filter for values sent via this port (null if all values are sent)
+     */
+    public SubscriptionFilter getSendFilter() {
+        SubscriptionFilter.State state = sendFilter;
+        return state == null ? null : state.getFilter();
+    }
+
+    /**
+     * Evaluates send filter - to be called by transport before serializing value.
+     * If port is registered with a NetPortSendScheduler, a suppressed value is
+     * rescheduled if the filter demands it being sent later (interval limits).
+     *
+     * @param value Value that is about to be sent
+     * @return True if value is to be sent
+     */
+    public boolean passesSendFilter(Object value) {
+        SubscriptionFilter.State state = sendFilter;
+        if (state == null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (state.accept(value, now)) {
+            return true;
+        }
+        long retryDelay = state.getRetryDelay(now);
+        NetPortSendScheduler.PortState schedulerState = sendState;
+        if (retryDelay >= 0 && schedulerState != null) {
+            schedulerState.scheduler.defer(this, retryDelay);
+        }
+        return false;
+    }
+
     /**
      * @return TCPServerConnection or RemoteServer instance that this port belongs to
      */
@@ -269,34 +331,356 @@ public abstract class NetPort implements PortListener {
      * @param readTimestamp Read timestamp from stream?
      */
     public void receiveDataFromStream(BinaryInputStream stream, DataEncoding dataEncoding, boolean readTimestamp) throws Exception {
-        boolean anotherValue = false;
-        do {
-            byte changeType = stream.readByte();
-            if (isStdType() || isTransactionType() || remoteType != null) {
-                StdNetPort pb = (StdNetPort)wrapped;
-                PortDataManager manager = pb.getUnusedBufferRaw();
+        ReceivedValues values = receivedValues;
+        synchronized (values) {
+            try {
+                values.begin();
+                boolean anotherValue = false;
+                do {
+                    byte changeType = stream.readByte();
+                    Object buffer = decodeReceivedValue(values.tc, stream, dataEncoding, readTimestamp);
+                    values.add(buffer, changeType);
+                    anotherValue = stream.readBoolean();
+                } while (anotherValue);
+                values.publish();
+            } finally {
+                values.clear();
+            }
+        }
+    }
+
+    /**
+     * Decode incoming value of a frame in compact wire encoding from stream
+     * (see CompactWireFormat - value was written using writeValue)
+     *
+     * @param stream Stream to read from (positioned at encoded value)
+     * @param dataEncoding Data encoding to use
+     * @param header Header of frame that value belongs to (provides change type and timestamp)
+     * @param index Index of value in frame
+     */
+    public void receiveCompactValueFromStream(BinaryInputStream stream, DataEncoding dataEncoding, CompactWireFormat.FrameHeader header, int index) throws Exception {
+        ReceivedValues values = receivedValues;
+        synchronized (values) {
+            try {
+                values.begin();
+                Object buffer = decodeReceivedValue(values.tc, stream, dataEncoding, false);
+                values.add(buffer, header.getChangeType(index));
+                if (header.hasTimestamps()) {
+                    Timestamp timestamp = (buffer instanceof PortDataManager) ? ((PortDataManager)buffer).getTimestamp() : ((CCPortDataManagerTL)buffer).getTimestamp();
+                    timestamp.setValue(header.getTimestamp(index), SIUnit.NANOSECOND);
+                }
+                values.publish();
+            } finally {
+                values.clear();
+            }
+        }
+    }
+
+    /**
+     * Decodes single value received from the network to an unused buffer
+     *
+     * @param tc Thread local cache (only required for cc types)
+     * @param stream Stream to read from
+     * @param dataEncoding Data encoding to use
+     * @param readTimestamp Read timestamp from stream?
+     * @return Buffer with value (PortDataManager or CCPortDataManagerTL)
+     */
+    private Object decodeReceivedValue(ThreadLocalCache tc, BinaryInputStream stream, DataEncoding dataEncoding, boolean readTimestamp) throws Exception {
+        if (isStdType() || isTransactionType() || remoteType != null) {
+            PortDataManager manager = ((StdNetPort)wrapped).getUnusedBufferRaw();
+            try {
                 if (readTimestamp) {
                     manager.getTimestamp().deserialize(stream);
                 }
                 if (remoteType == null) {
-                    manager.getObject().deserialize(stream, dataEncoding);
+                    readValue(stream, manager.getObject(), dataEncoding);
                 } else {
                     remoteType.deserialize(stream, manager.getObject());
                 }
-                pb.publishFromNet(manager, changeType);
-            } else if (isCCType()) {
-                CCNetPort pb = (CCNetPort)wrapped;
-                CCPortDataManagerTL manager = ThreadLocalCache.get().getUnusedBuffer(pb.getDataType());
+            } catch (Exception e) {
+                manager.recycleUnused();
+                throw e;
+            }
+            return manager;
+        } else {
+            CCPortDataManagerTL manager = tc.getUnusedBuffer(wrapped.getDataType());
+            try {
                 if (readTimestamp) {
                     manager.getTimestamp().deserialize(stream);
                 }
                 manager.getObject().deserialize(stream, dataEncoding);
-                pb.publishFromNet(manager, changeType);
-            } else { // interface port
+            } catch (Exception e) {
+                manager.recycleUnused();
+                throw e;
+            }
+            return manager;
+        }
+    }
+
+    /**
+     * Encodes value for sending it to the network
+     * (to be used by network transports - counterpart to value decoding in receiveDataFromStream)
+     *
+     * @param stream Stream to write to
+     * @param value Value to write
+     * @param dataEncoding Data encoding to use
+     */
+    public void writeValue(BinaryOutputStream stream, GenericObject value, DataEncoding dataEncoding) {
+        LZ4Compressor compressor = sendCompressor;
+        if (compressor == null) {
+            encodeValue(stream, value, dataEncoding);
+            return;
+        }
+        synchronized (compressor) {
+            BinaryOutputStream payload = compressor.getPayloadWriter();
+            encodeValue(payload, value, dataEncoding);
+            payload.close();
+            compressor.writeCompressed(stream);
+        }
+    }
+
+    /**
+     * @return True if writeValue() does not depend on connection-specific state (no delta encoding or compression) -
+     *         so that serialized values can be shared among connections (as long as encoding and type tables match)
+     */
+    public boolean hasStatelessValueEncoding() {
+        return sendDeltaCodec == null && sendCompressor == null && remoteType == null;
+    }
+
+    /**
+     * Encodes value (delta encoded if enabled)
+     */
+    private void encodeValue(BinaryOutputStream stream, GenericObject value, DataEncoding dataEncoding) {
+        DeltaCodec codec = sendDeltaCodec;
+        if (codec != null) {
+            codec.encode(stream, value, dataEncoding);
+        } else {
+            value.serialize(stream, dataEncoding);
+        }
+    }
+
+    /**
+     * Decodes value received from the network
+     *
+     * @param stream Stream to read from
+     * @param value Object to deserialize value to
+     * @param dataEncoding Data encoding to use
+     */
+    private void readValue(BinaryInputStream stream, GenericObject value, DataEncoding dataEncoding) throws Exception {
+        LZ4Compressor compressor = receiveCompressor;
+        if (compressor == null) {
+            decodeValue(stream, value, dataEncoding);
+            return;
+        }
+        synchronized (compressor) {
+            decodeValue(compressor.readCompressed(stream), value, dataEncoding);
+        }
+    }
+
+    /**
+     * Decodes value (delta encoded if enabled)
+     */
+    private void decodeValue(BinaryInputStream stream, GenericObject value, DataEncoding dataEncoding) throws Exception {
+        DeltaCodec codec = receiveDeltaCodec;
+        if (codec != null) {
+            codec.decode(stream, value, dataEncoding);
+        } else {
+            value.deserialize(stream, dataEncoding);
+        }
+    }
+
+    /**
+     * Enables or disables compression of values on this connection.
+     * Must be called with the same value on both sides of the connection
+     * (negotiated by network transport) before values are exchanged.
+     * Only has an effect on std types.
+     *
+     * @param enabled Compress values?
+     * @param threshold Values whose serialized size is smaller than this are not compressed (in bytes)
+     */
+    public void setCompression(boolean enabled, int threshold) {
+        if (enabled && (isStdType() || isTransactionType()) && remoteType == null) {
+            sendCompressor = new LZ4Compressor(threshold);
+            receiveCompressor = new LZ4Compressor(threshold);
+        } else {
+            sendCompressor = null;
+            receiveCompressor = null;
+        }
+    }
+
+    /**
+     * @return Compression statistics of values sent to the network (null if compression is not used)
+     */
+    public LZ4Compressor.Statistics getSendCompressionStatistics() {
+        LZ4Compressor compressor = sendCompressor;
+        return compressor == null ? null : compressor.getStatistics();
+    }
+
+    /**
+     * @return Compression statistics of values received from the network (null if compression is not used)
+     */
+    public LZ4Compressor.Statistics getReceiveCompressionStatistics() {
+        LZ4Compressor compressor = receiveCompressor;
+        return compressor == null ? null : compressor.getStatistics();
+    }
+
+    /**
+     * Enables or disables delta encoding of values on this connection.
+     * Must be called with the same value on both sides of the connection
+     * (negotiated by network transport) before values are exchanged.
+     * Only has an effect on std types (cc types are small anyway).
+     *
+     * @param keyframeInterval Number of values after which a keyframe is sent (0 disables delta encoding)
+     */
+    public void setDeltaEncoding(int keyframeInterval) {
+        if (keyframeInterval > 0 && (isStdType() || isTransactionType()) && remoteType == null) {
+            sendDeltaCodec = new DeltaCodec(keyframeInterval);
+            receiveDeltaCodec = new DeltaCodec(keyframeInterval);
+        } else {
+            sendDeltaCodec = null;
+            receiveDeltaCodec = null;
+        }
+    }
+
+    /**
+     * @return Codec for values sent to the network (null if delta encoding is not used)
+     */
+    public DeltaCodec getSendDeltaCodec() {
+        return sendDeltaCodec;
+    }
+
+    /**
+     * @return True if any receiver of values from the network has an input queue (so that no values may be dropped)
+     */
+    private boolean hasQueuedReceivers() {
+        return wrapped.getStrategy() > 1 || wrapped.getFlag(FrameworkElementFlags.HAS_QUEUE);
+    }
+
+    /**
+     * Publishes value received from the network
+     *
+     * @param tc Thread local cache (only required for cc types)
+     * @param buffer Buffer with value (PortDataManager or CCPortDataManagerTL)
+     * @param changeType Change type of value
+     */
+    private void publishFromNet(ThreadLocalCache tc, Object buffer, byte changeType) {
+        if (buffer instanceof PortDataManager) {
+            ((StdNetPort)wrapped).publishFromNet((PortDataManager)buffer, changeType);
+        } else {
+            ((CCNetPort)wrapped).publishFromNet(tc, (CCPortDataManagerTL)buffer, changeType);
+        }
+    }
+
+    /**
+     * Returns buffer that was decoded, but superseded by a newer value, to its pool
+     *
+     * @param buffer Buffer (PortDataManager or CCPortDataManagerTL)
+     */
+    private void recycleUnpublished(Object buffer) {
+        if (buffer instanceof PortDataManager) {
+            ((PortDataManager)buffer).recycleUnused();
+        } else {
+            ((CCPortDataManagerTL)buffer).recycleUnused();
+        }
+    }
+
+    /**
+     * Values received in one burst (one instance per port - reused for every burst).
+     *
+     * Values are decoded first. Superseded values are dropped - unless receivers have queues.
+     * In this case, all values are published in one pass after decoding.
+     * Buffers that are not published (e.g. because decoding of a later value failed) are
+     * returned to their pools in clear().
+     */
+    private class ReceivedValues {
+
+        /** Thread local cache (only required for cc types) */
+        ThreadLocalCache tc;
+
+        /** Drop superseded values? */
+        boolean conflate;
+
+        /** Last decoded value that has not been published yet */
+        Object pending;
+        byte pendingChangeType;
+
+        /** Decoded values (if there are multiple and they are not conflated) */
+        Object[] burst = new Object[0];
+        byte[] burstChangeTypes = new byte[0];
+        int burstSize;
+
+        /**
+         * Prepares object for receiving new burst of values
+         */
+        void begin() {
+            if (!(isStdType() || isTransactionType() || remoteType != null || isCCType())) { // interface port
                 throw new RuntimeException("Method calls are not handled using this mechanism");
             }
-            anotherValue = stream.readBoolean();
-        } while (anotherValue);
+            tc = isCCType() ? ThreadLocalCache.get() : null;
+            conflate = !hasQueuedReceivers();
+        }
+
+        /**
+         * @param buffer Decoded value (PortDataManager or CCPortDataManagerTL)
+         * @param changeType Change type of value
+         */
+        void add(Object buffer, byte changeType) {
+            if (pending != null) {
+                if (conflate) {
+                    recycleUnpublished(pending);
+                } else {
+                    if (burstSize == burst.length) {
+                        int newLength = Math.max(4, burst.length * 2);
+                        Object[] newBurst = new Object[newLength];
+                        byte[] newChangeTypes = new byte[newLength];
+                        System.arraycopy(burst, 0, newBurst, 0, burstSize);
+                        System.arraycopy(burstChangeTypes, 0, newChangeTypes, 0, burstSize);
+                        burst = newBurst;
+                        burstChangeTypes = newChangeTypes;
+                    }
+                    burst[burstSize] = pending;
+                    burstChangeTypes[burstSize] = pendingChangeType;
+                    burstSize++;
+                }
+            }
+            pending = buffer;
+            pendingChangeType = changeType;
+        }
+
+        /**
+         * Publishes all values that were not dropped
+         */
+        void publish() {
+            for (int i = 0; i < burstSize; i++) {
+                Object buffer = burst[i];
+                burst[i] = null; // published: must not be recycled in clear()
+                publishFromNet(tc, buffer, burstChangeTypes[i]);
+            }
+            burstSize = 0;
+            if (pending != null) {
+                Object buffer = pending;
+                pending = null;
+                publishFromNet(tc, buffer, pendingChangeType);
+            }
+        }
+
+        /**
+         * Returns any buffers that were not published to their pools - and clears object for the next burst
+         */
+        void clear() {
+            for (int i = 0; i < burstSize; i++) {
+                if (burst[i] != null) {
+                    recycleUnpublished(burst[i]);
+                    burst[i] = null;
+                }
+            }
+            burstSize = 0;
+            if (pending != null) {
+                recycleUnpublished(pending);
+                pending = null;
+            }
+            tc = null;
+        }
     }
 
     /**
@@ -310,6 +694,10 @@ public abstract class NetPort implements PortListener {
         }
 
         public void publishFromNet(CCPortDataManagerTL readObject, byte changedFlag) {
+            publishFromNet(ThreadLocalCache.getFast(), readObject, changedFlag);
+        }
+
+        public void publishFromNet(ThreadLocalCache tc, CCPortDataManagerTL readObject, byte changedFlag) {
 
             // Publish all pushed data from the network. This avoids problems in finstruct.
             // Compared to tranferring the stuff over the network,
@@ -318,7 +706,6 @@ public abstract class NetPort implements PortListener {
               check ...
             }*/
 
-            ThreadLocalCache tc = ThreadLocalCache.getFast();
             if (isOutputPort()) {
 
                 super.publish(tc, readObject, false, changedFlag);
@@ -696,6 +1083,10 @@ public abstract class NetPort implements PortListener {
     @Override
     public void portChanged(AbstractPort origin, Object value) {
         portChanged();
+        NetPortSendScheduler.PortState state = sendState;
+        if (state != null) {
+            state.scheduler.portChanged(this);
+        }
     }
 
 //    /**
@@ -0,0 +1,229 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.finroc.core.thread.TimerWheel;
+
+/**
+ * @author Max Reichardt
+ *
+ * Schedules sending of network port values - for use by any network transport.
+ *
+ * Instead of scanning all subscribed ports every tick, ports are enqueued
+ * when their value changes: immediately if their minimum update interval
+ * has elapsed since the last update - otherwise when it elapses (using a
+ * hashed timer wheel). The transport takes due ports from the ready queue
+ * (pollReadyPort()) and sends their current values. Cost is therefore
+ * O(changed ports) - independent of the number of subscribed ports.
+ *
+ * A port that changes multiple times before it is sent is enqueued only once
+ * (the transport sends the current value).
+ */
+public class NetPortSendScheduler {
+
+    /**
+     * Is notified when ports become ready for sending
+     */
+    public interface Listener {
+
+        /**
+         * Called whenever a port was added to the ready queue
+         * (may be called by any thread - including the timer thread)
+         *
+         * @param scheduler Scheduler whose ready queue contains ports
+         */
+        public void portsReady(NetPortSendScheduler scheduler);
+    }
+
+    /** Ports that are due for sending */
+    private final ConcurrentLinkedQueue<NetPort> readyPorts = new ConcurrentLinkedQueue<NetPort>();
+
+    /** Listener that is notified when ports become ready */
+    private final Listener listener;
+
+    /** Controller that determines update intervals (null if configured intervals are used) */
+    private volatile AdaptiveUpdateRateController rateController;
+
+    /**
+     * @param listener Listener that is notified when ports become ready (may be null if transport polls)
+     */
+    public NetPortSendScheduler(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Registers port with scheduler. Port is enqueued whenever its value changes.
+     *
+     * @param port Network port
+     */
+    public void register(NetPort port) {
+        port.sendState = new PortState(port);
+    }
+
+    /**
+     * Unregisters port from scheduler
+     *
+     * @param port Network port
+     */
+    public void unregister(NetPort port) {
+        PortState state = port.sendState;
+        if (state != null && state.scheduler == this) {
+            port.sendState = null;
+            TimerWheel.getShared().cancel(state.timerEntry);
+        }
+    }
+
+    /**
+     * @param rateController Controller that determines update intervals (null to use configured intervals)
+     */
+    public void setRateController(AdaptiveUpdateRateController rateController) {
+        this.rateController = rateController;
+    }
+
+    /**
+     * Takes next port that is due for sending.
+     * The port's last update time is set to the current time.
+     *
+     * @return Port whose current value is to be sent - or null if no port is due
+     */
+    public NetPort pollReadyPort() {
+        while (true) {
+            NetPort port = readyPorts.poll();
+            if (port == null) {
+                return null;
+            }
+            PortState state = port.sendState;
+            if (state == null || state.scheduler != this) {
+                continue; // unregistered meanwhile
+            }
+            synchronized (state) {
+                state.queued = false;
+                port.setLastUpdate(System.currentTimeMillis());
+            }
+            return port;
+        }
+    }
+
+    /**
+     * Enqueues port for sending (called when its value changed)
+     *
+     * @param port Network port
+     */
+    void portChanged(NetPort port) {
+        PortState state = port.sendState;
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.queued || state.timerEntry.isScheduled()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long due = port.getLastUpdate() == Long.MIN_VALUE ? now : port.getLastUpdate() + getUpdateInterval(port);
+            if (due > now) {
+                TimerWheel.getShared().schedule(state.timerEntry, due - now);
+                return;
+            }
+            state.queued = true;
+        }
+        enqueue(port);
+    }
+
+    /**
+     * Enqueues port for sending after specified delay - unless it is already queued or scheduled
+     * (used e.g. to send values suppressed by a subscription filter later)
+     *
+     * @param port Network port
+     * @param delay Delay in ms
+     */
+    void defer(NetPort port, long delay) {
+        PortState state = port.sendState;
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            if (state.queued || state.timerEntry.isScheduled()) {
+                return;
+            }
+            TimerWheel.getShared().schedule(state.timerEntry, delay);
+        }
+    }
+
+    /**
+     * @return Current minimum update interval of port in ms
+     */
+    private long getUpdateInterval(NetPort port) {
+        AdaptiveUpdateRateController controller = rateController;
+        long interval = controller != null ? controller.getEffectiveUpdateInterval(port) : AdaptiveUpdateRateController.getConfiguredUpdateInterval(port);
+        SubscriptionFilter filter = port.getSendFilter();
+        return filter != null ? Math.max(interval, filter.getMinInterval()) : interval;
+    }
+
+    /**
+     * Adds port to ready queue and notifies listener
+     */
+    private void enqueue(NetPort port) {
+        readyPorts.add(port);
+        if (listener != null) {
+            listener.portsReady(this);
+        }
+    }
+
+    /**
+     * Scheduling state of a network port
+     * (delayed sending is scheduled in the shared timer wheel - see TimerWheel.getShared())
+     */
+    class PortState implements TimerWheel.Callback {
+
+        /** Port that state belongs to */
+        final NetPort port;
+
+        /** Scheduler that port is registered with */
+        final NetPortSendScheduler scheduler = NetPortSendScheduler.this;
+
+        /** Entry for scheduling delayed sending */
+        final TimerWheel.Entry timerEntry = new TimerWheel.Entry(this);
+
+        /** Is port currently in ready queue? */
+        boolean queued;
+
+        PortState(NetPort port) {
+            this.port = port;
+        }
+
+        @Override
+        public void timerExpired(Object owner) {
+            if (port.sendState != this) {
+                return; // unregistered meanwhile
+            }
+            synchronized (this) {
+                if (queued) {
+                    return;
+                }
+                queued = true;
+            }
+            scheduler.enqueue(port);
+        }
+    }
+}
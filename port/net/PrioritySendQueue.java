@@ -0,0 +1,759 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.finroc.core.FrameworkElementFlags;
+import org.finroc.core.port.AbstractPort;
+
+/**
+ * @author Max Reichardt
+ *
+ * Send queue of a network connection with separate lanes for express and bulk data.
+ *
+ * Messages are split into fragments of limited size. Lanes are served
+ * fragment by fragment with weighted round-robin scheduling (express lane
+ * may send 'expressWeight' fragments for each bulk fragment). Therefore, an
+ * express message never waits behind more than one bulk fragment - even
+ * if a multi-megabyte value is queued in the bulk lane.
+ *
+ * Each fragment is prefixed with a header of FRAGMENT_HEADER_SIZE bytes
+ * (flags, message id). The receiving side restores messages using a Reassembler.
+ *
+ * Messages may be enqueued as byte arrays or byte buffers. Fragments of byte
+ * buffers can be obtained as slices (see nextFragment(ByteBuffer, Fragment)) - so
+ * that large (direct) buffers are sent using gathering writes without copying.
+ * A message may consist of a connection-specific header and a body that is
+ * shared with other connections (see SharedBuffer).
+ *
+ * Queue is thread-safe: Messages may be enqueued by any thread, while
+ * the connection's writer thread takes fragments using nextFragment().
+ *
+ * If a rate controller is set, it is informed about every enqueued message
+ * and about the queueing delay of every message that has been sent.
+ */
+public class PrioritySendQueue {
+
+    /** Priority classes */
+    public enum Lane {
+        EXPRESS,
+        BULK
+    }
+
+    /** Default maximum payload size of fragments */
+    public static final int DEFAULT_FRAGMENT_SIZE = 16384;
+
+    /** Default number of express fragments sent for every bulk fragment */
+    public static final int DEFAULT_EXPRESS_WEIGHT = 8;
+
+    /** Size of fragment header: flags (1 byte), message id (4 bytes) */
+    public static final int FRAGMENT_HEADER_SIZE = 5;
+
+    /** Fragment header flags */
+    private static final byte EXPRESS_FLAG = 1, LAST_FRAGMENT_FLAG = 2;
+
+    /** Maximum payload size of fragments */
+    private final int fragmentSize;
+
+    /** Number of express fragments sent for every bulk fragment */
+    private final int expressWeight;
+
+    /** Queues of lanes (index is Lane ordinal) */
+    private final ArrayDeque<Message>[] queues;
+
+    /** Statistics of lanes (index is Lane ordinal) */
+    private final Statistics[] statistics = new Statistics[Lane.values().length];
+
+    /** Express fragments sent since last bulk fragment */
+    private int expressCredit;
+
+    /** Id of next message */
+    private int nextMessageId;
+
+    /** Has queue been closed? */
+    private boolean closed;
+
+    /** Controller that is informed about enqueued and sent messages (null if there is none) */
+    private volatile AdaptiveUpdateRateController rateController;
+
+    public PrioritySendQueue() {
+        this(DEFAULT_FRAGMENT_SIZE, DEFAULT_EXPRESS_WEIGHT);
+    }
+
+    /**
+     * @param fragmentSize Maximum payload size of fragments
+     * @param expressWeight Number of express fragments sent for every bulk fragment (when both lanes have data)
+     */
+    @SuppressWarnings("unchecked")
+    public PrioritySendQueue(int fragmentSize, int expressWeight) {
+        if (fragmentSize <= 0 || expressWeight <= 0) {
+            throw new RuntimeException("Fragment size and express weight must be positive");
+        }
+        this.fragmentSize = fragmentSize;
+        this.expressWeight = expressWeight;
+        queues = new ArrayDeque[Lane.values().length];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new ArrayDeque<Message>();
+            statistics[i] = new Statistics();
+        }
+    }
+
+    /**
+     * @param port Port whose data is to be sent
+     * @return Lane that data of this port is sent in
+     */
+    public static Lane getLane(AbstractPort port) {
+        return port.getFlag(FrameworkElementFlags.EXPRESS_PORT) ? Lane.EXPRESS : Lane.BULK;
+    }
+
+    /**
+     * Enqueues message
+     *
+     * @param lane Lane to send message in
+     * @param data Message data (queue takes ownership - array must not be modified afterwards)
+     * @param length Length of message (starting at index 0)
+     */
+    public void enqueue(Lane lane, byte[] data, int length) {
+        enqueue(lane, ByteBuffer.wrap(data, 0, length), null);
+    }
+
+    /**
+     * Enqueues message
+     *
+     * @param lane Lane to send message in
+     * @param data Message data: from position to limit (queue takes ownership - buffer must not be modified afterwards)
+     * @param pool Pool that buffer is returned to after it was sent (see Fragment.release()) - null if buffer is not pooled
+     */
+    public void enqueue(Lane lane, ByteBuffer data, DirectBufferPool pool) {
+        enqueue(lane, data, pool, null);
+    }
+
+    /**
+     * Enqueues message that consists of a header and a shared body
+     *
+     * @param lane Lane to send message in
+     * @param header Message header: from position to limit (queue takes ownership - buffer must not be modified afterwards)
+     * @param pool Pool that header buffer is returned to after it was sent - null if buffer is not pooled
+     * @param body Message body (queue takes ownership of one reference - released after body was sent or if queue is closed) - may be null
+     */
+    public void enqueue(Lane lane, ByteBuffer header, DirectBufferPool pool, SharedBuffer body) {
+        synchronized (this) {
+            if (closed) {
+                if (body != null) {
+                    body.release();
+                }
+                throw new RuntimeException("Send queue has been closed");
+            }
+            Message message = new Message(nextMessageId++, header, pool, body);
+            message.rateController = rateController;
+            if (message.rateController != null) {
+                message.rateController.reportEnqueued();
+            }
+            queues[lane.ordinal()].add(message);
+            statistics[lane.ordinal()].enqueued(message.length);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes next fragment to buffer (to be called by writer thread of connection)
+     *
+     * @param buffer Buffer to write fragment to (must have at least getMaxFragmentLength() bytes)
+     * @return Number of bytes written (including header) - or -1 if queue is empty
+     */
+    public int nextFragment(byte[] buffer) {
+        Message completed = null;
+        int payload;
+        synchronized (this) {
+            Lane lane = selectLane();
+            if (lane == null) {
+                return -1;
+            }
+            Message message = queues[lane.ordinal()].peek();
+            payload = getNextPayloadLength(message);
+            buffer[0] = getFlags(lane, message, payload);
+            writeInt(buffer, 1, message.id);
+            int offset = FRAGMENT_HEADER_SIZE;
+            ByteBuffer first = message.slice(payload, false);
+            if (first != null) {
+                int length = first.remaining();
+                first.get(buffer, offset, length);
+                offset += length;
+            }
+            ByteBuffer second = message.slice(payload, true);
+            if (second != null) {
+                second.get(buffer, offset, second.remaining());
+            }
+            if (advance(lane, message, payload)) {
+                message.release();
+                completed = message;
+            }
+        }
+        if (completed != null) {
+            completed.reportSent();
+        }
+        return FRAGMENT_HEADER_SIZE + payload;
+    }
+
+    /**
+     * Obtains next fragment without copying its payload (to be called by writer thread of connection)
+     *
+     * @param header Buffer to write fragment header to (FRAGMENT_HEADER_SIZE bytes are written at its current position)
+     * @param fragment Fragment object to store payload slice in (call fragment.release() after payload was written)
+     * @return False if queue is empty
+     */
+    public synchronized boolean nextFragment(ByteBuffer header, Fragment fragment) {
+        Lane lane = selectLane();
+        if (lane == null) {
+            return false;
+        }
+        Message message = queues[lane.ordinal()].peek();
+        int payload = getNextPayloadLength(message);
+        header.put(getFlags(lane, message, payload));
+        header.putInt(message.id);
+        ByteBuffer first = message.slice(payload, false);
+        ByteBuffer second = message.slice(payload, true);
+        if (first == null) {
+            first = second != null ? second : ByteBuffer.allocate(0);
+            second = null;
+        }
+        fragment.lane = lane;
+        fragment.payload = first;
+        fragment.secondPayload = second;
+        fragment.completedMessage = advance(lane, message, payload) ? message : null;
+        return true;
+    }
+
+    /**
+     * Selects lane to take next fragment from (lock must be held)
+     *
+     * @return Lane - or null if queue is empty
+     */
+    private Lane selectLane() {
+        ArrayDeque<Message> express = queues[Lane.EXPRESS.ordinal()];
+        ArrayDeque<Message> bulk = queues[Lane.BULK.ordinal()];
+        if (!express.isEmpty() && (bulk.isEmpty() || expressCredit < expressWeight)) {
+            expressCredit++;
+            return Lane.EXPRESS;
+        } else if (!bulk.isEmpty()) {
+            expressCredit = 0;
+            return Lane.BULK;
+        }
+        return null;
+    }
+
+    /**
+     * @return Payload length of message's next fragment
+     */
+    private int getNextPayloadLength(Message message) {
+        return Math.min(fragmentSize, message.length - message.offset);
+    }
+
+    /**
+     * @return Header flags of message's next fragment
+     */
+    private static byte getFlags(Lane lane, Message message, int payload) {
+        boolean last = message.offset + payload == message.length;
+        return (byte)((lane == Lane.EXPRESS ? EXPRESS_FLAG : 0) | (last ? LAST_FRAGMENT_FLAG : 0));
+    }
+
+    /**
+     * Advances to next fragment of message (lock must be held)
+     *
+     * @return True if message has been sent completely (and was removed from queue)
+     */
+    private boolean advance(Lane lane, Message message, int payload) {
+        message.offset += payload;
+        Statistics stats = statistics[lane.ordinal()];
+        stats.fragmentSent();
+        if (message.offset == message.length) {
+            queues[lane.ordinal()].poll();
+            message.latency = System.nanoTime() - message.enqueueTime;
+            stats.dequeued(message.length, message.latency);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Blocks until queue contains data or was closed
+     *
+     * @param timeout Maximum time to wait in ms
+     * @return True if queue contains data
+     */
+    public synchronized boolean waitForData(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (isEmpty() && !closed) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
+            wait(remaining);
+        }
+        return !isEmpty();
+    }
+
+    /**
+     * @return True if there are no more fragments to send
+     */
+    public synchronized boolean isEmpty() {
+        for (ArrayDeque<Message> queue : queues) {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Closes queue: Discards all queued messages and wakes up waiting writer thread
+     */
+    public synchronized void close() {
+        closed = true;
+        for (int i = 0; i < queues.length; i++) {
+            for (Message message : queues[i]) {
+                statistics[i].dequeued(message.length, -1);
+                message.release();
+                if (message.rateController != null) {
+                    message.rateController.reportDiscarded();
+                }
+            }
+            queues[i].clear();
+        }
+        notifyAll();
+    }
+
+    /**
+     * @param rateController Controller that is informed about enqueued and sent messages (null to inform none).
+     * Only messages enqueued after the controller was set are reported.
+     */
+    public void setRateController(AdaptiveUpdateRateController rateController) {
+        this.rateController = rateController;
+    }
+
+    /**
+     * @return Maximum length of a fragment including header
+     */
+    public int getMaxFragmentLength() {
+        return FRAGMENT_HEADER_SIZE + fragmentSize;
+    }
+
+    /**
+     * @param lane Lane
+     * @return Queue depth and latency statistics of lane
+     */
+    public Statistics getStatistics(Lane lane) {
+        return statistics[lane.ordinal()];
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte)(value >>> 24);
+        buffer[offset + 1] = (byte)(value >>> 16);
+        buffer[offset + 2] = (byte)(value >>> 8);
+        buffer[offset + 3] = (byte)value;
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Queued message
+     */
+    private static class Message {
+
+        /** Message id */
+        final int id;
+
+        /** Message data (header if message has a shared body) */
+        final ByteBuffer data;
+
+        /** Start position and length of data in buffer */
+        final int start, dataLength;
+
+        /** Shared body of message (null if there is none) and view on its data */
+        final SharedBuffer shared;
+        final ByteBuffer body;
+
+        /** Total length of message */
+        final int length;
+
+        /** Offset of next fragment */
+        int offset;
+
+        /** Pool that data buffer is returned to (null if buffer is not pooled) */
+        final DirectBufferPool pool;
+
+        /** Time when message was enqueued (System.nanoTime()) */
+        final long enqueueTime = System.nanoTime();
+
+        /** Time from enqueueing until last fragment was taken in ns (set when message has been sent completely) */
+        long latency;
+
+        /** Controller that message was reported to (null if it was not reported) */
+        AdaptiveUpdateRateController rateController;
+
+        Message(int id, ByteBuffer data, DirectBufferPool pool, SharedBuffer shared) {
+            this.id = id;
+            this.data = data;
+            this.start = data.position();
+            this.dataLength = data.remaining();
+            this.pool = pool;
+            this.shared = shared;
+            this.body = shared != null ? shared.getData() : null;
+            this.length = dataLength + (body != null ? body.remaining() : 0);
+        }
+
+        /**
+         * @param payload Payload length of next fragment
+         * @param bodyPart Return slice of body? (otherwise slice of data)
+         * @return Slice of data or body that is part of the next fragment - null if the fragment does not contain any bytes from this part
+         */
+        ByteBuffer slice(int payload, boolean bodyPart) {
+            ByteBuffer part = bodyPart ? body : data;
+            if (part == null) {
+                return null;
+            }
+            int partStart = bodyPart ? body.position() : start;
+            int partOffset = bodyPart ? dataLength : 0;
+            int partLength = bodyPart ? (length - dataLength) : dataLength;
+            int from = Math.max(offset, partOffset);
+            int to = Math.min(offset + payload, partOffset + partLength);
+            if (from >= to) {
+                return null;
+            }
+            ByteBuffer slice = part.duplicate();
+            slice.position(partStart + from - partOffset);
+            slice.limit(partStart + to - partOffset);
+            return slice;
+        }
+
+        /**
+         * Returns pooled and shared buffers after message has been sent completely
+         */
+        void release() {
+            if (pool != null) {
+                pool.release(data);
+            }
+            if (shared != null) {
+                shared.release();
+            }
+        }
+
+        /**
+         * Reports message to rate controller after it has been sent completely
+         */
+        void reportSent() {
+            if (rateController != null) {
+                rateController.reportSent(length, latency / 1000000);
+            }
+        }
+    }
+
+    /**
+     * Fragment obtained from queue without copying (see nextFragment(ByteBuffer, Fragment))
+     *
+     * Fragment objects may be reused by the writer thread.
+     */
+    public static class Fragment {
+
+        /** Lane that fragment was taken from */
+        private Lane lane;
+
+        /** Payload of fragment (slice of message buffer) */
+        private ByteBuffer payload;
+
+        /** Second part of payload if fragment spans message header and shared body (null otherwise) */
+        private ByteBuffer secondPayload;
+
+        /** Message that was completed by this fragment (null if this is not the last fragment) */
+        private Message completedMessage;
+
+        /**
+         * @return Lane that fragment was taken from
+         */
+        public Lane getLane() {
+            return lane;
+        }
+
+        /**
+         * @return Payload of fragment (slice of message buffer - valid until release() is called)
+         */
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+
+        /**
+         * @return Second part of payload if fragment spans message header and shared body (null otherwise)
+         */
+        public ByteBuffer getSecondPayload() {
+            return secondPayload;
+        }
+
+        /**
+         * @return Total payload length of fragment
+         */
+        public int getPayloadLength() {
+            return payload.remaining() + (secondPayload != null ? secondPayload.remaining() : 0);
+        }
+
+        /**
+         * @return Is this the last fragment of its message?
+         */
+        public boolean isLast() {
+            return completedMessage != null;
+        }
+
+        /**
+         * To be called when payload has been written.
+         * If this is the last fragment of its message, pooled buffers are returned to their pool, shared buffers are released
+         * and the message is reported to the queue's rate controller.
+         * (payloads of a message's fragments must be written in order)
+         */
+        public void release() {
+            if (completedMessage != null) {
+                completedMessage.release();
+                completedMessage.reportSent();
+            }
+            completedMessage = null;
+            payload = null;
+            secondPayload = null;
+            lane = null;
+        }
+    }
+
+    /**
+     * Queue depth and latency statistics of one lane
+     */
+    public static class Statistics {
+
+        /** Number of messages and bytes currently in queue */
+        private final AtomicLong queuedMessages = new AtomicLong(), queuedBytes = new AtomicLong();
+
+        /** Maximum number of bytes in queue */
+        private final AtomicLong maxQueuedBytes = new AtomicLong();
+
+        /** Number of messages and fragments sent */
+        private final AtomicLong sentMessages = new AtomicLong(), sentFragments = new AtomicLong();
+
+        /** Total and maximum latency (time from enqueueing until last fragment was taken) in ns */
+        private final AtomicLong totalLatency = new AtomicLong(), maxLatency = new AtomicLong();
+
+        private void enqueued(int bytes) {
+            queuedMessages.incrementAndGet();
+            long queued = queuedBytes.addAndGet(bytes);
+            long max = maxQueuedBytes.get();
+            while (queued > max && !maxQueuedBytes.compareAndSet(max, queued)) {
+                max = maxQueuedBytes.get();
+            }
+        }
+
+        private void fragmentSent() {
+            sentFragments.incrementAndGet();
+        }
+
+        /**
+         * @param latency Latency in ns (-1 if message was discarded)
+         */
+        private void dequeued(int bytes, long latency) {
+            queuedMessages.decrementAndGet();
+            queuedBytes.addAndGet(-bytes);
+            if (latency >= 0) {
+                sentMessages.incrementAndGet();
+                totalLatency.addAndGet(latency);
+                long max = maxLatency.get();
+                while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+                    max = maxLatency.get();
+                }
+            }
+        }
+
+        /**
+         * @return Number of messages currently in queue
+         */
+        public long getQueuedMessages() {
+            return queuedMessages.get();
+        }
+
+        /**
+         * @return Number of bytes currently in queue (including parts of messages already sent)
+         */
+        public long getQueuedBytes() {
+            return queuedBytes.get();
+        }
+
+        /**
+         * @return Maximum number of bytes that were in queue
+         */
+        public long getMaxQueuedBytes() {
+            return maxQueuedBytes.get();
+        }
+
+        /**
+         * @return Number of messages sent
+         */
+        public long getSentMessages() {
+            return sentMessages.get();
+        }
+
+        /**
+         * @return Number of fragments sent
+         */
+        public long getSentFragments() {
+            return sentFragments.get();
+        }
+
+        /**
+         * @return Average latency of sent messages in ns
+         */
+        public long getAverageLatency() {
+            long count = sentMessages.get();
+            return count == 0 ? 0 : totalLatency.get() / count;
+        }
+
+        /**
+         * @return Maximum latency of sent messages in ns
+         */
+        public long getMaxLatency() {
+            return maxLatency.get();
+        }
+
+        public String toString() {
+            return "queued: " + queuedMessages.get() + " (" + queuedBytes.get() + " bytes, max " + maxQueuedBytes.get() + "), sent: " + sentMessages.get() +
+                   " (" + sentFragments.get() + " fragments), latency: avg " + (getAverageLatency() / 1000) + " us, max " + (maxLatency.get() / 1000) + " us";
+        }
+    }
+
+    /**
+     * Restores messages from received fragments (receiving side of connection)
+     *
+     * As fragments of different messages are only interleaved across lanes,
+     * there is at most one incomplete message per lane.
+     * Messages consisting of a single fragment are passed through without copying.
+     *
+     * Not thread-safe - meant to be used by the connection's reader thread.
+     */
+    public static class Reassembler {
+
+        /** Incomplete message of each lane (index is Lane ordinal) */
+        private final LaneState[] lanes = new LaneState[Lane.values().length];
+
+        /** Offset and length of last completed message in returned buffer */
+        private int lastOffset, lastLength;
+
+        /** Lane of last completed message */
+        private Lane lastLane;
+
+        /**
+         * Incomplete message in one lane
+         */
+        private static class LaneState {
+
+            /** Buffer with payload received so far */
+            private byte[] buffer = new byte[0];
+
+            /** Number of bytes received (0 if there is no incomplete message) */
+            private int received;
+
+            /** Id of incomplete message */
+            private int messageId;
+        }
+
+        public Reassembler() {
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new LaneState();
+            }
+        }
+
+        /**
+         * Processes received fragment
+         *
+         * @param fragment Buffer containing fragment (including header)
+         * @param offset Offset of fragment in buffer
+         * @param length Length of fragment (including header)
+         * @return Buffer with completed message (offset: getLastOffset(), length: getLastLength()) - or null if message is not complete yet.
+         *         For single-fragment messages, this is the fragment buffer itself. The buffer is only valid until the next call.
+         */
+        public byte[] add(byte[] fragment, int offset, int length) {
+            if (length < FRAGMENT_HEADER_SIZE) {
+                throw new RuntimeException("Fragment too short");
+            }
+            byte flags = fragment[offset];
+            int id = readInt(fragment, offset + 1);
+            int payload = length - FRAGMENT_HEADER_SIZE;
+            Lane lane = (flags & EXPRESS_FLAG) != 0 ? Lane.EXPRESS : Lane.BULK;
+            LaneState state = lanes[lane.ordinal()];
+            boolean last = (flags & LAST_FRAGMENT_FLAG) != 0;
+            if (state.received > 0 && state.messageId != id) {
+                throw new RuntimeException("Received fragment of message " + id + " while message " + state.messageId + " is incomplete");
+            }
+
+            if (last && state.received == 0) {
+                lastOffset = offset + FRAGMENT_HEADER_SIZE;
+                lastLength = payload;
+                lastLane = lane;
+                return fragment;
+            }
+
+            if (state.buffer.length < state.received + payload) {
+                byte[] newBuffer = new byte[Math.max(state.received + payload, state.buffer.length * 2)];
+                System.arraycopy(state.buffer, 0, newBuffer, 0, state.received);
+                state.buffer = newBuffer;
+            }
+            System.arraycopy(fragment, offset + FRAGMENT_HEADER_SIZE, state.buffer, state.received, payload);
+            state.received += payload;
+            state.messageId = id;
+            if (last) {
+                lastOffset = 0;
+                lastLength = state.received;
+                lastLane = lane;
+                state.received = 0;
+                return state.buffer;
+            }
+            return null;
+        }
+
+        /**
+         * @return Offset of last completed message in buffer returned by add()
+         */
+        public int getLastOffset() {
+            return lastOffset;
+        }
+
+        /**
+         * @return Length of last completed message
+         */
+        public int getLastLength() {
+            return lastLength;
+        }
+
+        /**
+         * @return Lane of last completed message
+         */
+        public Lane getLastLane() {
+            return lastLane;
+        }
+    }
+}
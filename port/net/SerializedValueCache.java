@@ -0,0 +1,155 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.finroc.core.port.std.PortDataManager;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.MemoryBuffer;
+import org.rrlib.serialization.Serialization.DataEncoding;
+
+/**
+ * @author Max Reichardt
+ *
+ * Caches the serialized current value of a port that is sent to many network peers.
+ *
+ * The first connection that sends a new value serializes it into a shared pooled buffer.
+ * Further connections reuse these bytes - provided that they use the same data encoding
+ * and type table. This way, a value is serialized only once - regardless of the number
+ * of subscribers.
+ *
+ * Only std values are cached: Their buffers are shared by all ports they are published to,
+ * so the port data manager identifies a value. The cache holds a read lock on the cached
+ * value's manager, so that the manager cannot be recycled while it is used as cache key.
+ * Values must be serialized without connection-specific state (see NetPort.hasStatelessValueEncoding()).
+ */
+public class SerializedValueCache {
+
+    /** Pool to allocate buffers from */
+    private final DirectBufferPool pool;
+
+    /** Buffer that values are serialized to */
+    private final MemoryBuffer serializationBuffer = new MemoryBuffer();
+
+    /** Manager of cached value (null if nothing is cached) */
+    private PortDataManager value;
+
+    /** Reference counter that cache holds read lock of */
+    private PortDataManager.RefCounter lockedCounter;
+
+    /** Data encoding and type table of cached value */
+    private DataEncoding encoding;
+    private Object typeTable;
+
+    /** Serialized value */
+    private SharedBuffer serialized;
+
+    /** Has cache been closed? (values are no longer cached then) */
+    private boolean closed;
+
+    /** Number of requests that could be served from cache and that required serialization */
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * @param pool Pool to allocate buffers from
+     */
+    public SerializedValueCache(DirectBufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Obtains serialized value - serializes it if it is not cached yet
+     *
+     * @param manager Manager of value to serialize (must be locked by caller)
+     * @param encoding Data encoding to use
+     * @param typeTable Identifies the type table used for serialization (compared by identity - may be null)
+     * @return Serialized value (caller obtains a reference and must release it when done)
+     */
+    public synchronized SharedBuffer get(PortDataManager manager, DataEncoding encoding, Object typeTable) {
+        if (manager == value && encoding == this.encoding && typeTable == this.typeTable) {
+            hits.incrementAndGet();
+            serialized.retain();
+            return serialized;
+        }
+        misses.incrementAndGet();
+
+        BinaryOutputStream stream = new BinaryOutputStream(serializationBuffer);
+        manager.getObject().serialize(stream, encoding);
+        stream.close();
+        int length = serializationBuffer.getSize();
+        ByteBuffer buffer = pool.acquire(length);
+        serializationBuffer.getBuffer().get(0, buffer, length);
+        buffer.flip();
+        if (closed) {
+            return new SharedBuffer(buffer, pool);
+        }
+
+        clear();
+        lockedCounter = manager.getCurrentRefCounter();
+        lockedCounter.addLock();
+        value = manager;
+        this.encoding = encoding;
+        this.typeTable = typeTable;
+        serialized = new SharedBuffer(buffer, pool);
+        serialized.retain();
+        return serialized;
+    }
+
+    /**
+     * Clears cache (releases lock on cached value)
+     */
+    public synchronized void clear() {
+        if (value != null) {
+            lockedCounter.releaseLock();
+            lockedCounter = null;
+            value = null;
+        }
+        if (serialized != null) {
+            serialized.release();
+            serialized = null;
+        }
+    }
+
+    /**
+     * Clears cache and stops caching values (called when the cache is no longer used)
+     */
+    public synchronized void close() {
+        closed = true;
+        clear();
+    }
+
+    /**
+     * @return Number of requests that could be served from cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return Number of requests that required serialization
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,91 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Max Reichardt
+ *
+ * Reference-counted (direct) byte buffer that is shared by multiple users -
+ * e.g. a serialized value that is sent over multiple network connections.
+ *
+ * The buffer is returned to its pool when the last reference is released.
+ * Contents must not be modified after the buffer has been shared.
+ */
+public class SharedBuffer {
+
+    /** Wrapped buffer (data is from position to limit) */
+    private final ByteBuffer buffer;
+
+    /** Pool that buffer is returned to (null if buffer is not pooled) */
+    private final DirectBufferPool pool;
+
+    /** Number of references */
+    private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+    /**
+     * Creates shared buffer with one reference
+     *
+     * @param buffer Wrapped buffer (data is from position to limit)
+     * @param pool Pool that buffer is returned to (null if buffer is not pooled)
+     */
+    public SharedBuffer(ByteBuffer buffer, DirectBufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    /**
+     * @return New view on buffer's data (position and limit can be modified independently)
+     */
+    public ByteBuffer getData() {
+        return buffer.duplicate();
+    }
+
+    /**
+     * @return Length of data in bytes
+     */
+    public int getLength() {
+        return buffer.remaining();
+    }
+
+    /**
+     * Adds reference
+     */
+    public void retain() {
+        if (referenceCount.getAndIncrement() <= 0) {
+            throw new RuntimeException("Shared buffer has already been released");
+        }
+    }
+
+    /**
+     * Releases reference - returns buffer to pool if this was the last reference
+     */
+    public void release() {
+        int count = referenceCount.decrementAndGet();
+        if (count == 0 && pool != null) {
+            pool.release(buffer);
+        }
+        assert(count >= 0) : "too many references released";
+    }
+}
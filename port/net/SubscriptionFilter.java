@@ -0,0 +1,266 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net;
+
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.NumericRepresentation;
+
+/**
+ * @author Max Reichardt
+ *
+ * Filter that a subscription of a network port may carry.
+ *
+ * The filter is evaluated on the sending side - before values are serialized.
+ * Values of numeric types (CoreNumber and other types with a numeric representation)
+ * are only sent if they differ significantly from the value sent last:
+ * by more than the absolute deadband and by more than the relative deadband
+ * (fraction of the last sent value's magnitude) - or, alternatively, as decided
+ * by a custom SignificantChange predicate.
+ *
+ * Independent of type, values are sent at most every minInterval ms.
+ * If maxInterval is set, a suppressed value is sent anyway once maxInterval
+ * ms have passed since the last value was sent (so receivers eventually get
+ * the current value).
+ *
+ * Filters are immutable. The parameters (but not custom predicates) can be
+ * transferred over the network.
+ */
+public class SubscriptionFilter {
+
+    /**
+     * Custom predicate deciding whether numeric value changed significantly
+     */
+    public interface SignificantChange {
+
+        /**
+         * @param lastSent Value sent last
+         * @param current Current value
+         * @return True if current value should be sent
+         */
+        public boolean isSignificant(double lastSent, double current);
+    }
+
+    /** Absolute deadband (0 if not used) */
+    private final double absoluteDeadband;
+
+    /** Relative deadband - fraction of last sent value's magnitude (0 if not used) */
+    private final double relativeDeadband;
+
+    /** Minimum and maximum interval between two sent values in ms (0 if not used) */
+    private final int minInterval, maxInterval;
+
+    /** Custom predicate (null if deadbands are used) */
+    private final SignificantChange predicate;
+
+    /**
+     * @param absoluteDeadband Absolute deadband (0 if not used)
+     * @param relativeDeadband Relative deadband - fraction of last sent value's magnitude, e.g. 0.01 for 1% (0 if not used)
+     * @param minInterval Minimum interval between two sent values in ms (0 if not used)
+     * @param maxInterval Maximum interval after which suppressed values are sent anyway in ms (0 if not used)
+     */
+    public SubscriptionFilter(double absoluteDeadband, double relativeDeadband, int minInterval, int maxInterval) {
+        this(absoluteDeadband, relativeDeadband, minInterval, maxInterval, null);
+    }
+
+    /**
+     * @param predicate Custom predicate deciding whether numeric value changed significantly
+     * @param minInterval Minimum interval between two sent values in ms (0 if not used)
+     * @param maxInterval Maximum interval after which suppressed values are sent anyway in ms (0 if not used)
+     */
+    public SubscriptionFilter(SignificantChange predicate, int minInterval, int maxInterval) {
+        this(0, 0, minInterval, maxInterval, predicate);
+    }
+
+    private SubscriptionFilter(double absoluteDeadband, double relativeDeadband, int minInterval, int maxInterval, SignificantChange predicate) {
+        if (absoluteDeadband < 0 || relativeDeadband < 0 || minInterval < 0 || maxInterval < 0) {
+            throw new RuntimeException("Subscription filter parameters must not be negative");
+        }
+        this.absoluteDeadband = absoluteDeadband;
+        this.relativeDeadband = relativeDeadband;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.predicate = predicate;
+    }
+
+    /**
+     * @return Absolute deadband (0 if not used)
+     */
+    public double getAbsoluteDeadband() {
+        return absoluteDeadband;
+    }
+
+    /**
+     * @return Relative deadband - fraction of last sent value's magnitude (0 if not used)
+     */
+    public double getRelativeDeadband() {
+        return relativeDeadband;
+    }
+
+    /**
+     * @return Minimum interval between two sent values in ms (0 if not used)
+     */
+    public int getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * @return Maximum interval after which suppressed values are sent anyway in ms (0 if not used)
+     */
+    public int getMaxInterval() {
+        return maxInterval;
+    }
+
+    /**
+     * @param value Port value
+     * @return Numeric representation of value - or null if value is not numeric
+     */
+    public static Number getNumericValue(Object value) {
+        if (value instanceof NumericRepresentation) {
+            return ((NumericRepresentation)value).getNumericRepresentation();
+        } else if (value instanceof Number) {
+            return (Number)value;
+        }
+        return null;
+    }
+
+    /**
+     * @param lastSent Value sent last
+     * @param current Current value
+     * @return True if current value differs significantly from value sent last
+     */
+    private boolean isSignificant(double lastSent, double current) {
+        if (predicate != null) {
+            return predicate.isSignificant(lastSent, current);
+        }
+        if (Double.isNaN(lastSent) || Double.isNaN(current) || Double.isInfinite(lastSent) || Double.isInfinite(current)) {
+            return Double.compare(lastSent, current) != 0;
+        }
+        double deadband = Math.max(absoluteDeadband, relativeDeadband * Math.abs(lastSent));
+        double difference = Math.abs(current - lastSent);
+        return deadband == 0 ? difference != 0 : difference > deadband;
+    }
+
+    /**
+     * Serializes filter parameters (custom predicates are not transferred)
+     *
+     * @param stream Stream to write to
+     */
+    public void serialize(BinaryOutputStream stream) {
+        stream.writeLong(Double.doubleToLongBits(absoluteDeadband));
+        stream.writeLong(Double.doubleToLongBits(relativeDeadband));
+        stream.writeInt(minInterval);
+        stream.writeInt(maxInterval);
+    }
+
+    /**
+     * @param stream Stream to read from
+     * @return Deserialized filter
+     */
+    public static SubscriptionFilter deserialize(BinaryInputStream stream) {
+        double absoluteDeadband = Double.longBitsToDouble(stream.readLong());
+        double relativeDeadband = Double.longBitsToDouble(stream.readLong());
+        int minInterval = stream.readInt();
+        int maxInterval = stream.readInt();
+        return new SubscriptionFilter(absoluteDeadband, relativeDeadband, minInterval, maxInterval);
+    }
+
+    public String toString() {
+        return "SubscriptionFilter (deadband " + absoluteDeadband + "/" + (relativeDeadband * 100) + "%, interval " + minInterval + "-" + maxInterval + " ms" +
+               (predicate != null ? ", custom predicate" : "") + ")";
+    }
+
+    /**
+     * Filter state of a single network port (values sent last)
+     */
+    public static class State {
+
+        /** Filter */
+        private final SubscriptionFilter filter;
+
+        /** Numeric value sent last (NaN if no numeric value has been sent yet) */
+        private double lastSentValue = Double.NaN;
+
+        /** Has any value been sent yet? */
+        private boolean sent;
+
+        /** Time when value was sent last */
+        private long lastSentTime;
+
+        /** Time when suppressed value is to be evaluated again (-1 if it is not) */
+        private long retryTime = -1;
+
+        /**
+         * @param filter Filter
+         */
+        public State(SubscriptionFilter filter) {
+            this.filter = filter;
+        }
+
+        /**
+         * @return Filter
+         */
+        public SubscriptionFilter getFilter() {
+            return filter;
+        }
+
+        /**
+         * Decides whether value is to be sent.
+         * If true is returned, value is considered sent.
+         *
+         * @param value Current port value
+         * @param now Current time in ms
+         * @return True if value should be sent
+         */
+        public synchronized boolean accept(Object value, long now) {
+            boolean send;
+            Number number = getNumericValue(value);
+            if (!sent) {
+                send = true;
+            } else if (filter.minInterval > 0 && now - lastSentTime < filter.minInterval) {
+                retryTime = lastSentTime + filter.minInterval;
+                return false;
+            } else if (filter.maxInterval > 0 && now - lastSentTime >= filter.maxInterval) {
+                send = true;
+            } else {
+                send = number == null || filter.isSignificant(lastSentValue, number.doubleValue());
+            }
+            if (send) {
+                sent = true;
+                lastSentTime = now;
+                lastSentValue = number != null ? number.doubleValue() : Double.NaN;
+                retryTime = -1;
+            } else {
+                retryTime = filter.maxInterval > 0 ? lastSentTime + filter.maxInterval : -1;
+            }
+            return send;
+        }
+
+        /**
+         * @param now Current time in ms
+         * @return Time in ms after which the value suppressed last is to be evaluated again (-1 if it is not)
+         */
+        public synchronized long getRetryDelay(long now) {
+            return retryTime < 0 ? -1 : Math.max(1, retryTime - now);
+        }
+    }
+}
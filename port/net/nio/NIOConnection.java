@@ -0,0 +1,871 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.finroc.core.FrameworkElement;
+import org.finroc.core.FrameworkElementFlags;
+import org.finroc.core.LockOrderLevels;
+import org.finroc.core.RuntimeEnvironment;
+import org.finroc.core.datatype.Timestamp;
+import org.finroc.core.port.AbstractPort;
+import org.finroc.core.port.PortCreationInfo;
+import org.finroc.core.port.net.AdaptiveUpdateRateController;
+import org.finroc.core.port.net.CompactWireFormat;
+import org.finroc.core.port.net.NetPort;
+import org.finroc.core.port.net.NetPortSendScheduler;
+import org.finroc.core.port.net.PrioritySendQueue;
+import org.finroc.core.port.net.SubscriptionFilter;
+import org.finroc.core.port.net.SerializedValueCache;
+import org.finroc.core.port.net.SharedBuffer;
+import org.finroc.core.port.std.PortDataManager;
+import org.finroc.core.portdatabase.FinrocTypeInfo;
+import org.finroc.core.portdatabase.ReusableGenericObjectManager;
+import org.finroc.core.portdatabase.ReusableGenericObjectManagerTL;
+import org.rrlib.logging.Log;
+import org.rrlib.logging.LogLevel;
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.MemoryBuffer;
+import org.rrlib.serialization.rtti.DataTypeBase;
+import org.rrlib.serialization.rtti.GenericObject;
+
+/**
+ * @author Max Reichardt
+ *
+ * Connection of NIOTransport to another peer.
+ *
+ * All socket I/O is non-blocking and performed by the selector loop the connection
+ * is assigned to. Outgoing messages are put in a PrioritySendQueue (express and
+ * bulk lane) and written whenever the socket is writable. On the wire, each fragment
+ * of the queue is prefixed with its length (int).
+ *
+ * Outgoing messages are copied once to pooled direct buffers after serialization
+ * (values in compact frames are added to the frame's direct buffer right away - see CompactWireFormat.FrameWriter).
+ * Std values of ports that are served for multiple connections are serialized only once
+ * (see SerializedValueCache) and shared among the connections.
+ * Fragments are then passed to the socket as slices of these buffers - together
+ * with their headers in a single gathering write.
+ *
+ * Both sides announce their latest protocol revision in a HELLO message at connect time.
+ * Once the peer's revision is known, values are sent using the compact wire encoding
+ * (see CompactWireFormat) if both sides support it. With compact encoding, values of all ports
+ * that are due at the same time are batched into one frame per lane (with timestamps if values have them).
+ *
+ * Either side may subscribe ports of the other side via their qualified links (subscribe()).
+ * The serving side connects a network input port to the subscribed port and forwards
+ * new values - respecting the port's minimum network update interval (see NetPortSendScheduler).
+ * Subscriptions may carry a SubscriptionFilter (e.g. deadband) that the serving side evaluates
+ * before serializing values. The subscribing side publishes received values via a network output port.
+ */
+public class NIOConnection implements SelectorLoop.Handler {
+
+    /** Message opcodes */
+    private static final byte SUBSCRIBE = 0, UNSUBSCRIBE = 1, VALUE = 2, SUBSCRIBE_FAILED = 3, HELLO = 4, VALUE_COMPACT = 5, SUBSCRIBE_FILTERED = 6;
+
+    /** Maximum number of fragments per gathering write */
+    private static final int MAX_GATHER_FRAGMENTS = 16;
+
+    /** Size of frame header: frame length (int) and fragment header */
+    private static final int FRAME_HEADER_SIZE = 4 + PrioritySendQueue.FRAGMENT_HEADER_SIZE;
+
+    /** Buffers that messages are serialized to (one per thread) */
+    private static final ThreadLocal<MemoryBuffer> serializationBuffer = new ThreadLocal<MemoryBuffer>() {
+        @Override
+        protected MemoryBuffer initialValue() {
+            return new MemoryBuffer();
+        }
+    };
+
+    /** Transport that connection belongs to */
+    private final NIOTransport transport;
+
+    /** Selector loop that handles connection */
+    private final SelectorLoop loop;
+
+    /** Socket channel */
+    private final SocketChannel channel;
+
+    /** Address of peer */
+    private final String address;
+
+    /** Selection key of channel (only accessed by loop thread) */
+    private SelectionKey key;
+
+    /** Is connecting still in progress? (only accessed by loop thread) */
+    private boolean connectPending;
+
+    /** Queue with outgoing messages */
+    private final PrioritySendQueue sendQueue = new PrioritySendQueue();
+
+    /** Restores incoming messages from fragments */
+    private final PrioritySendQueue.Reassembler reassembler = new PrioritySendQueue.Reassembler();
+
+    /** Buffer for incoming data (only accessed by loop thread) */
+    private final ByteBuffer readBuffer;
+
+    /** Buffer for single incoming fragments (only accessed by loop thread) */
+    private final byte[] fragmentBuffer;
+
+    /** Buffer and streams for processing incoming messages (only accessed by loop thread) */
+    private final MemoryBuffer receiveBuffer = new MemoryBuffer();
+    private final BinaryOutputStream receiveWriter = new BinaryOutputStream();
+    private final BinaryInputStream receiveStream = new BinaryInputStream();
+
+    /** Frame headers and fragments of current gathering write (only accessed by loop thread) */
+    private final ByteBuffer[] frameHeaders = new ByteBuffer[MAX_GATHER_FRAGMENTS];
+    private final PrioritySendQueue.Fragment[] fragments = new PrioritySendQueue.Fragment[MAX_GATHER_FRAGMENTS];
+
+    /** Buffers of current gathering write: header and payload parts of each fragment (only accessed by loop thread) */
+    private final ByteBuffer[] gather = new ByteBuffer[3 * MAX_GATHER_FRAGMENTS];
+
+    /** Number of fragments and buffers in current gathering write - and index of first buffer in 'gather' that has not been written completely */
+    private int gatherFragments, gatherLength, gatherOffset;
+
+    /** Is OP_WRITE interest (about to be) set? */
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+
+    /** Framework element that network ports of this connection are created below */
+    private final FrameworkElement portParent;
+
+    /** Ports that were subscribed by this side (key is subscription handle) */
+    private final HashMap<Integer, NIONetPort> subscriptions = new HashMap<Integer, NIONetPort>();
+
+    /** Ports that are served for peer (key is subscription handle chosen by peer) */
+    private final HashMap<Integer, NIONetPort> served = new HashMap<Integer, NIONetPort>();
+
+    /** Handle of next subscription */
+    private int nextHandle;
+
+    /** Has connection been closed? */
+    private volatile boolean closed;
+
+    /** Controller that adapts update intervals of served ports to the connection's bandwidth (null if intervals are not adapted) */
+    private volatile AdaptiveUpdateRateController rateController;
+
+    /** Schedules sending of served ports' values */
+    private final NetPortSendScheduler sendScheduler = new NetPortSendScheduler(new NetPortSendScheduler.Listener() {
+        @Override
+        public void portsReady(NetPortSendScheduler scheduler) {
+            if (!sendTaskScheduled.getAndSet(true)) {
+                loop.execute(sendTask);
+            }
+        }
+    });
+
+    /** Sends values of all ports that are due (executed by loop thread) */
+    private final Runnable sendTask = new Runnable() {
+        @Override
+        public void run() {
+            sendTaskScheduled.set(false);
+            NetPort port;
+            while ((port = sendScheduler.pollReadyPort()) != null) {
+                if (!closed) {
+                    ((NIONetPort)port).sendCurrentValue();
+                }
+            }
+            for (PrioritySendQueue.Lane lane : PrioritySendQueue.Lane.values()) {
+                flushFrame(lane);
+            }
+        }
+    };
+
+    /** Has sendTask been passed to loop and not started yet? */
+    private final AtomicBoolean sendTaskScheduled = new AtomicBoolean();
+
+    /** Protocol revision used for outgoing values (negotiated when peer's HELLO message is received) */
+    private volatile byte protocolRevision = CompactWireFormat.REVISION_LEGACY;
+
+    /** Frame header for compact wire encoding of incoming values (only accessed by loop thread) */
+    private final CompactWireFormat.FrameHeader receiveFrameHeader = new CompactWireFormat.FrameHeader();
+
+    /** Frames of outgoing values in compact wire encoding - one per lane (index is Lane ordinal; only accessed by loop thread) */
+    private final CompactWireFormat.FrameWriter[] sendFrames = new CompactWireFormat.FrameWriter[PrioritySendQueue.Lane.values().length];
+
+    /** Frame header for outgoing values with shared body (only accessed by loop thread) */
+    private final CompactWireFormat.FrameHeader sendFrameHeader = new CompactWireFormat.FrameHeader();
+
+    /**
+     * @param transport Transport that connection belongs to
+     * @param loop Selector loop that handles connection
+     * @param channel Socket channel (non-blocking)
+     * @param address Address of peer
+     * @param connectPending Is connecting still in progress?
+     */
+    NIOConnection(NIOTransport transport, SelectorLoop loop, SocketChannel channel, String address, boolean connectPending) {
+        this.transport = transport;
+        this.loop = loop;
+        this.channel = channel;
+        this.address = address;
+        this.connectPending = connectPending;
+        readBuffer = ByteBuffer.allocate(2 * (4 + sendQueue.getMaxFragmentLength()));
+        fragmentBuffer = new byte[sendQueue.getMaxFragmentLength()];
+        for (int i = 0; i < sendFrames.length; i++) {
+            sendFrames[i] = new CompactWireFormat.FrameWriter(transport.getBufferPool());
+        }
+        ByteBuffer headers = ByteBuffer.allocateDirect(MAX_GATHER_FRAGMENTS * FRAME_HEADER_SIZE);
+        for (int i = 0; i < MAX_GATHER_FRAGMENTS; i++) {
+            headers.limit((i + 1) * FRAME_HEADER_SIZE);
+            headers.position(i * FRAME_HEADER_SIZE);
+            frameHeaders[i] = headers.slice();
+            fragments[i] = new PrioritySendQueue.Fragment();
+        }
+        portParent = new FrameworkElement(RuntimeEnvironment.getInstance(), "NIO " + address.replace("/", ""), FrameworkElementFlags.NETWORK_ELEMENT, LockOrderLevels.REMOTE);
+        portParent.init();
+
+        MemoryBuffer buffer = serializationBuffer.get();
+        BinaryOutputStream stream = new BinaryOutputStream(buffer);
+        stream.writeByte(HELLO);
+        stream.writeByte(CompactWireFormat.CURRENT_REVISION);
+        stream.close();
+        send(PrioritySendQueue.Lane.EXPRESS, buffer);
+
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    key = NIOConnection.this.loop.register(NIOConnection.this.channel, getInterestOps(), NIOConnection.this);
+                } catch (IOException e) {
+                    handleClose(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Subscribes port of peer
+     *
+     * @param remoteLink Qualified link of port in peer's runtime environment
+     * @param dataType Data type of port
+     * @param localName Name of local port that publishes received values
+     * @return Local port that publishes received values (connect local input ports to this)
+     */
+    public AbstractPort subscribe(String remoteLink, DataTypeBase dataType, String localName) {
+        return subscribe(remoteLink, dataType, localName, null);
+    }
+
+    /**
+     * Subscribes port of peer - with filter that peer evaluates before sending values
+     *
+     * @param remoteLink Qualified link of port in peer's runtime environment
+     * @param dataType Data type of port
+     * @param localName Name of local port that publishes received values
+     * @param filter Filter for values (e.g. deadband for numeric values; null if all values are to be received)
+     * @return Local port that publishes received values (connect local input ports to this)
+     */
+    public AbstractPort subscribe(String remoteLink, DataTypeBase dataType, String localName, SubscriptionFilter filter) {
+        if (FinrocTypeInfo.isMethodType(dataType)) {
+            throw new RuntimeException("RPC ports cannot be subscribed");
+        }
+        NIONetPort port;
+        int handle;
+        synchronized (this) {
+            handle = nextHandle++;
+            port = new NIONetPort(new PortCreationInfo(localName, portParent, dataType, FrameworkElementFlags.OUTPUT_PORT), this, handle, false);
+            subscriptions.put(handle, port);
+        }
+        port.getPort().init();
+
+        MemoryBuffer buffer = serializationBuffer.get();
+        BinaryOutputStream stream = new BinaryOutputStream(buffer);
+        stream.writeByte(filter != null ? SUBSCRIBE_FILTERED : SUBSCRIBE);
+        stream.writeInt(handle);
+        stream.writeString(remoteLink);
+        stream.writeString(dataType.getName());
+        if (filter != null) {
+            filter.serialize(stream);
+        }
+        stream.close();
+        send(PrioritySendQueue.Lane.EXPRESS, buffer);
+        return port.getPort();
+    }
+
+    /**
+     * Cancels subscription
+     *
+     * @param port Port returned by subscribe()
+     */
+    public void unsubscribe(AbstractPort port) {
+        NIONetPort netPort = null;
+        synchronized (this) {
+            for (NIONetPort p : subscriptions.values()) {
+                if (p.getPort() == port) {
+                    netPort = p;
+                    break;
+                }
+            }
+            if (netPort == null) {
+                return;
+            }
+            subscriptions.remove(netPort.getRemoteHandle());
+        }
+        MemoryBuffer buffer = serializationBuffer.get();
+        BinaryOutputStream stream = new BinaryOutputStream(buffer);
+        stream.writeByte(UNSUBSCRIBE);
+        stream.writeInt(netPort.getRemoteHandle());
+        stream.close();
+        send(PrioritySendQueue.Lane.EXPRESS, buffer);
+        netPort.managedDelete();
+    }
+
+    /**
+     * Closes connection (asynchronously). All network ports of connection are deleted.
+     */
+    public void close() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                handleClose(null);
+            }
+        });
+    }
+
+    /**
+     * @return Is connection (still) open?
+     */
+    public boolean isConnected() {
+        return !closed;
+    }
+
+    /**
+     * @return Address of peer
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return Transport that connection belongs to
+     */
+    public NIOTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return Scheduler for sending values of served ports
+     */
+    public NetPortSendScheduler getSendScheduler() {
+        return sendScheduler;
+    }
+
+    /**
+     * @return Send queue of connection (e.g. for queue depth and latency statistics)
+     */
+    public PrioritySendQueue getSendQueue() {
+        return sendQueue;
+    }
+
+    /**
+     * Enables adaptation of update intervals of served ports to the connection's bandwidth.
+     * The controller is fed by the connection's send queue and determines the intervals the send scheduler uses.
+     *
+     * @param rateController Controller to use (should not be used by any other connection) - null to use configured intervals
+     */
+    public void setRateController(AdaptiveUpdateRateController rateController) {
+        ArrayList<NIONetPort> ports;
+        synchronized (this) {
+            ports = new ArrayList<NIONetPort>(served.values());
+        }
+        AdaptiveUpdateRateController previous = this.rateController;
+        this.rateController = rateController;
+        for (NIONetPort port : ports) {
+            if (previous != null) {
+                previous.removePort(port);
+            }
+            if (rateController != null) {
+                rateController.addPort(port);
+            }
+        }
+        sendQueue.setRateController(rateController);
+        sendScheduler.setRateController(rateController);
+    }
+
+    /**
+     * @return Controller that adapts update intervals of served ports (null if intervals are not adapted)
+     */
+    public AdaptiveUpdateRateController getRateController() {
+        return rateController;
+    }
+
+    /**
+     * Sends new value of served port to peer
+     * (called by loop thread; with compact encoding, value is added to the lane's current frame - see flushFrame())
+     *
+     * @param port Serving network port
+     * @param value Value to send
+     * @param manager Manager of value if this is a std value (locked by caller) - otherwise null
+     */
+    void sendValue(NIONetPort port, GenericObject value, PortDataManager manager) {
+        PrioritySendQueue.Lane lane = PrioritySendQueue.getLane(port.getPort());
+        if (protocolRevision >= CompactWireFormat.REVISION_COMPACT) {
+            Timestamp timestamp = manager != null ? manager.getTimestamp() : getTimestamp(value);
+            long time = timestamp != null ? timestamp.longValue() : 0;
+            boolean withTimestamp = time != 0;
+
+            // value is the message's last element - so serialized value can be shared with other connections
+            SerializedValueCache cache = port.getValueCache();
+            if (manager != null && cache != null && port.hasStatelessValueEncoding()) {
+                SharedBuffer serializedValue = cache.get(manager, port.getNetworkEncoding(), null);
+                flushFrame(lane);
+                MemoryBuffer buffer = serializationBuffer.get();
+                BinaryOutputStream stream = new BinaryOutputStream(buffer);
+                stream.writeByte(VALUE_COMPACT);
+                sendFrameHeader.clear();
+                sendFrameHeader.add(AbstractPort.CHANGED, time);
+                sendFrameHeader.write(stream, withTimestamp);
+                CompactWireFormat.writeVarint(stream, port.getRemoteHandle());
+                CompactWireFormat.writeVarint(stream, serializedValue.getLength());
+                stream.close();
+                send(lane, buffer, serializedValue);
+                return;
+            }
+
+            CompactWireFormat.FrameWriter frame = sendFrames[lane.ordinal()];
+            if (!frame.canAdd(withTimestamp)) {
+                flushFrame(lane);
+            }
+            port.writeValue(frame.beginValue(), value, port.getNetworkEncoding());
+            frame.endValue(port.getRemoteHandle(), AbstractPort.CHANGED, withTimestamp, time);
+            if (frame.getLength() >= sendQueue.getMaxFragmentLength()) {
+                flushFrame(lane);
+            }
+            return;
+        }
+
+        MemoryBuffer buffer = serializationBuffer.get();
+        BinaryOutputStream stream = new BinaryOutputStream(buffer);
+        stream.writeByte(VALUE);
+        stream.writeInt(port.getRemoteHandle());
+        stream.writeByte(AbstractPort.CHANGED);
+        port.writeValue(stream, value, port.getNetworkEncoding());
+        stream.writeBoolean(false);
+        stream.close();
+        send(lane, buffer);
+    }
+
+    /**
+     * Sends current frame of values in compact wire encoding (if it contains any values)
+     * (called by loop thread; the frame's buffer with the values is sent as message body without copying)
+     *
+     * @param lane Lane whose frame is to be sent
+     */
+    private void flushFrame(PrioritySendQueue.Lane lane) {
+        CompactWireFormat.FrameWriter frame = sendFrames[lane.ordinal()];
+        if (frame.isEmpty()) {
+            return;
+        }
+        MemoryBuffer buffer = serializationBuffer.get();
+        BinaryOutputStream stream = new BinaryOutputStream(buffer);
+        stream.writeByte(VALUE_COMPACT);
+        frame.writeHeader(stream);
+        stream.close();
+        send(lane, buffer, frame.detachValues());
+    }
+
+    /**
+     * @param value Value of cc port
+     * @return Timestamp attached to value (null if value has no manager with timestamp)
+     */
+    private static Timestamp getTimestamp(GenericObject value) {
+        Object manager = value.getManager();
+        if (manager instanceof ReusableGenericObjectManager) {
+            return ((ReusableGenericObjectManager)manager).getTimestamp();
+        } else if (manager instanceof ReusableGenericObjectManagerTL) {
+            return ((ReusableGenericObjectManagerTL)manager).getTimestamp();
+        }
+        return null;
+    }
+
+    /**
+     * Enqueues message and makes sure it is written
+     *
+     * @param lane Lane to send message in
+     * @param buffer Buffer containing message
+     */
+    private void send(PrioritySendQueue.Lane lane, MemoryBuffer buffer) {
+        send(lane, buffer, null);
+    }
+
+    /**
+     * Enqueues message and makes sure it is written.
+     * Message contents are copied once to a pooled direct buffer. A shared body is sent without copying.
+     *
+     * @param lane Lane to send message in
+     * @param buffer Buffer containing message (or message header if message has a shared body)
+     * @param body Shared body of message (connection takes ownership of one reference) - may be null
+     */
+    private void send(PrioritySendQueue.Lane lane, MemoryBuffer buffer, SharedBuffer body) {
+        if (closed) {
+            if (body != null) {
+                body.release();
+            }
+            return;
+        }
+        int length = buffer.getSize();
+        ByteBuffer data = transport.getBufferPool().acquire(length);
+        buffer.getBuffer().get(0, data, length);
+        data.flip();
+        try {
+            sendQueue.enqueue(lane, data, transport.getBufferPool(), body);
+        } catch (RuntimeException e) {
+            return; // connection was closed concurrently
+        }
+        if (!writeRequested.getAndSet(true)) {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    updateInterestOps();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void handleSelection(SelectionKey key) throws Exception {
+        if (key.isConnectable()) {
+            if (!channel.finishConnect()) {
+                return;
+            }
+            connectPending = false;
+            Log.log(LogLevel.DEBUG, this, "Connected to " + address);
+            updateInterestOps();
+        }
+        if (key.isValid() && key.isReadable()) {
+            read();
+        }
+        if (key.isValid() && key.isWritable()) {
+            write();
+        }
+    }
+
+    @Override
+    public void handleClose(Exception e) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (e != null) {
+            Log.log(LogLevel.WARNING, this, "Closing connection to " + address + ": ", e);
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e2) {
+            Log.log(LogLevel.WARNING, this, e2);
+        }
+        sendQueue.close();
+        synchronized (this) {
+            subscriptions.clear();
+            served.clear();
+        }
+        portParent.managedDelete();
+        transport.connectionClosed(this);
+    }
+
+    /**
+     * @return Current interest operations of channel
+     */
+    private int getInterestOps() {
+        if (connectPending) {
+            return SelectionKey.OP_CONNECT;
+        }
+        return SelectionKey.OP_READ | (writeRequested.get() ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * Updates interest operations of channel (called by loop thread)
+     */
+    private void updateInterestOps() {
+        if (key != null && key.isValid()) {
+            key.interestOps(getInterestOps());
+        }
+    }
+
+    /**
+     * Reads available data from channel and processes complete messages
+     */
+    private void read() throws Exception {
+        int n = channel.read(readBuffer);
+        if (n < 0) {
+            handleClose(null);
+            return;
+        }
+        readBuffer.flip();
+        while (readBuffer.remaining() >= 4) {
+            int length = readBuffer.getInt(readBuffer.position());
+            if (length < PrioritySendQueue.FRAGMENT_HEADER_SIZE || length > fragmentBuffer.length) {
+                throw new IOException("Invalid frame length " + length);
+            }
+            if (readBuffer.remaining() < 4 + length) {
+                break;
+            }
+            readBuffer.getInt();
+            readBuffer.get(fragmentBuffer, 0, length);
+            byte[] message = reassembler.add(fragmentBuffer, 0, length);
+            if (message != null) {
+                processMessage(message, reassembler.getLastOffset(), reassembler.getLastLength());
+            }
+        }
+        readBuffer.compact();
+    }
+
+    /**
+     * Writes as many queued fragments to the channel as possible
+     */
+    private void write() throws IOException {
+        while (true) {
+            if (gatherOffset == gatherLength) {
+                releaseFragments();
+                if (collectFragments() == 0) {
+                    break;
+                }
+            }
+            channel.write(gather, gatherOffset, gatherLength - gatherOffset);
+            while (gatherOffset < gatherLength && !gather[gatherOffset].hasRemaining()) {
+                gatherOffset++;
+            }
+            if (gatherOffset < gatherLength) {
+                break; // socket buffer is full
+            }
+        }
+
+        if (gatherOffset == gatherLength) {
+            writeRequested.set(false);
+            if (!sendQueue.isEmpty()) { // message might have been enqueued concurrently
+                writeRequested.set(true);
+            }
+        }
+        updateInterestOps();
+    }
+
+    /**
+     * Takes fragments for next gathering write from send queue.
+     * Stops after the first bulk fragment - so that express fragments enqueued in the meantime
+     * wait behind no more than one bulk fragment.
+     *
+     * @return Number of fragments
+     */
+    private int collectFragments() {
+        gatherFragments = 0;
+        gatherLength = 0;
+        gatherOffset = 0;
+        while (gatherFragments < MAX_GATHER_FRAGMENTS) {
+            ByteBuffer header = frameHeaders[gatherFragments];
+            PrioritySendQueue.Fragment fragment = fragments[gatherFragments];
+            header.clear();
+            header.position(4);
+            if (!sendQueue.nextFragment(header, fragment)) {
+                break;
+            }
+            header.putInt(0, PrioritySendQueue.FRAGMENT_HEADER_SIZE + fragment.getPayloadLength());
+            header.flip();
+            gather[gatherLength++] = header;
+            gather[gatherLength++] = fragment.getPayload();
+            if (fragment.getSecondPayload() != null) {
+                gather[gatherLength++] = fragment.getSecondPayload();
+            }
+            gatherFragments++;
+            if (fragment.getLane() == PrioritySendQueue.Lane.BULK) {
+                break;
+            }
+        }
+        return gatherFragments;
+    }
+
+    /**
+     * Releases fragments of completed gathering write (pooled message buffers are returned to pool)
+     */
+    private void releaseFragments() {
+        for (int i = 0; i < gatherFragments; i++) {
+            fragments[i].release();
+        }
+        for (int i = 0; i < gatherLength; i++) {
+            gather[i] = null;
+        }
+        gatherFragments = 0;
+        gatherLength = 0;
+        gatherOffset = 0;
+    }
+
+    /**
+     * Processes message received from peer
+     *
+     * @param message Buffer containing message
+     * @param offset Offset of message in buffer
+     * @param length Length of message
+     */
+    private void processMessage(byte[] message, int offset, int length) throws Exception {
+        receiveWriter.reset(receiveBuffer);
+        receiveWriter.write(message, offset, length);
+        receiveWriter.close();
+        BinaryInputStream stream = receiveStream;
+        stream.reset(receiveBuffer);
+
+        byte opcode = stream.readByte();
+        if (opcode == HELLO) {
+            protocolRevision = CompactWireFormat.negotiate(CompactWireFormat.CURRENT_REVISION, stream.readByte());
+            Log.log(LogLevel.DEBUG, this, "Using protocol revision " + protocolRevision + " with " + address);
+            return;
+        }
+        if (opcode == VALUE_COMPACT) {
+            receiveFrame(stream);
+            return;
+        }
+        int handle = stream.readInt();
+        switch (opcode) {
+        case VALUE:
+            NIONetPort port;
+            synchronized (this) {
+                port = subscriptions.get(handle);
+            }
+            if (port == null) {
+                break;
+            }
+            port.receiveDataFromStream(stream, port.getNetworkEncoding(), false);
+            break;
+        case SUBSCRIBE:
+            serve(handle, stream.readString(), stream.readString(), null);
+            break;
+        case SUBSCRIBE_FILTERED:
+            String link = stream.readString();
+            String typeName = stream.readString();
+            serve(handle, link, typeName, SubscriptionFilter.deserialize(stream));
+            break;
+        case UNSUBSCRIBE:
+            NIONetPort servedPort;
+            synchronized (this) {
+                servedPort = served.remove(handle);
+            }
+            if (servedPort != null) {
+                servedPort.managedDelete();
+            }
+            break;
+        case SUBSCRIBE_FAILED:
+            NIONetPort failed;
+            synchronized (this) {
+                failed = subscriptions.remove(handle);
+            }
+            Log.log(LogLevel.WARNING, this, "Subscribing port failed: " + stream.readString());
+            if (failed != null) {
+                failed.managedDelete();
+            }
+            break;
+        default:
+            throw new IOException("Invalid opcode " + opcode);
+        }
+    }
+
+    /**
+     * Processes frame of values in compact wire encoding (values of unknown handles are skipped)
+     *
+     * @param stream Stream to read frame from
+     */
+    private void receiveFrame(BinaryInputStream stream) throws Exception {
+        CompactWireFormat.FrameHeader header = receiveFrameHeader;
+        header.read(stream);
+        for (int i = 0; i < header.getCount(); i++) {
+            int handle = CompactWireFormat.readVarint32(stream);
+            int length = CompactWireFormat.readVarint32(stream);
+            if (length > stream.remaining()) {
+                throw new IOException("Invalid value length " + length);
+            }
+            NIONetPort port;
+            synchronized (this) {
+                port = subscriptions.get(handle);
+            }
+            if (port == null) {
+                stream.skip(length);
+                continue;
+            }
+            int remaining = stream.remaining();
+            port.receiveCompactValueFromStream(stream, port.getNetworkEncoding(), header, i);
+            if (remaining - stream.remaining() != length) {
+                throw new IOException("Decoded " + (remaining - stream.remaining()) + " bytes of value with length " + length);
+            }
+        }
+    }
+
+    /**
+     * Serves port for peer
+     *
+     * @param handle Handle of subscription
+     * @param link Qualified link of port to serve
+     * @param typeName Name of data type that peer expects
+     * @param filter Filter for values sent to peer (null if all values are to be sent)
+     */
+    private void serve(int handle, String link, String typeName, SubscriptionFilter filter) {
+        AbstractPort source = RuntimeEnvironment.getInstance().getPort(link);
+        String error = null;
+        if (source == null) {
+            error = "No port '" + link + "'";
+        } else if (!source.getDataType().getName().equals(typeName)) {
+            error = "Port '" + link + "' has type '" + source.getDataType().getName() + "' (not '" + typeName + "')";
+        } else if (FinrocTypeInfo.isMethodType(source.getDataType())) {
+            error = "Port '" + link + "' is an RPC port";
+        }
+        if (error != null) {
+            MemoryBuffer buffer = serializationBuffer.get();
+            BinaryOutputStream stream = new BinaryOutputStream(buffer);
+            stream.writeByte(SUBSCRIBE_FAILED);
+            stream.writeInt(handle);
+            stream.writeString(error);
+            stream.close();
+            send(PrioritySendQueue.Lane.EXPRESS, buffer);
+            return;
+        }
+
+        int flags = FrameworkElementFlags.INPUT_PORT | (source.getFlag(FrameworkElementFlags.EXPRESS_PORT) ? FrameworkElementFlags.EXPRESS_PORT : 0);
+        NIONetPort port = new NIONetPort(new PortCreationInfo(source.getName() + " " + handle, portParent, source.getDataType(), flags), this, handle, true);
+        NIONetPort replaced;
+        synchronized (this) {
+            replaced = served.put(handle, port);
+        }
+        if (replaced != null) {
+            replaced.managedDelete();
+        }
+        if (port.isStdType() && port.getRemoteType() == null) {
+            port.setValueCache(source, transport.acquireValueCache(source));
+        }
+        port.setSendFilter(filter);
+        AdaptiveUpdateRateController controller = rateController;
+        if (controller != null) {
+            controller.addPort(port);
+        }
+        sendScheduler.register(port);
+        port.getPort().init();
+        port.setStrategy((short)1);
+        source.connectTo(port.getPort(), AbstractPort.ConnectDirection.TO_TARGET, false);
+    }
+
+    public String toString() {
+        return "NIOConnection " + address;
+    }
+}
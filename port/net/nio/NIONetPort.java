@@ -0,0 +1,155 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net.nio;
+
+import java.util.List;
+
+import org.finroc.core.port.AbstractPort;
+import org.finroc.core.port.PortCreationInfo;
+import org.finroc.core.port.ThreadLocalCache;
+import org.finroc.core.port.cc.CCPortBase;
+import org.finroc.core.port.net.AdaptiveUpdateRateController;
+import org.finroc.core.port.net.NetPort;
+import org.finroc.core.port.net.SerializedValueCache;
+import org.finroc.core.port.rpc.internal.AbstractCall;
+import org.finroc.core.port.std.PortBase;
+import org.finroc.core.port.std.PortDataManager;
+import org.rrlib.serialization.rtti.GenericObject;
+
+/**
+ * @author Max Reichardt
+ *
+ * Network port of NIOConnection.
+ *
+ * On the subscribing side, port is an output port that publishes values received from the peer.
+ * On the serving side, port is an input port connected to the subscribed local port - and forwards
+ * new values to the peer (as scheduled by the connection's NetPortSendScheduler).
+ */
+class NIONetPort extends NetPort {
+
+    /** Connection that port belongs to */
+    private final NIOConnection connection;
+
+    /** Is this the serving side of a subscription? */
+    private final boolean serving;
+
+    /** Served local port and cache for its serialized values (null if values are not cached) */
+    private AbstractPort source;
+    private SerializedValueCache valueCache;
+
+    /**
+     * @param pci Port creation info
+     * @param connection Connection that port belongs to
+     * @param handle Handle of subscription (identical on both sides of connection)
+     * @param serving Is this the serving side of a subscription?
+     */
+    NIONetPort(PortCreationInfo pci, NIOConnection connection, int handle, boolean serving) {
+        super(pci, connection);
+        this.connection = connection;
+        this.serving = serving;
+        remoteHandle = handle;
+    }
+
+    /**
+     * Sets strategy of wrapped port (so that serving port receives pushed values)
+     *
+     * @param strategy Strategy (> 0 for push)
+     */
+    void setStrategy(short strategy) {
+        AbstractPort port = getPort();
+        if (port instanceof CCNetPort) {
+            ((CCNetPort)port).propagateStrategy(strategy);
+        } else if (port instanceof StdNetPort) {
+            ((StdNetPort)port).propagateStrategy(strategy);
+        }
+    }
+
+    /**
+     * @param source Served local port
+     * @param valueCache Cache for serialized values of served port (shared by all connections of transport)
+     */
+    void setValueCache(AbstractPort source, SerializedValueCache valueCache) {
+        this.source = source;
+        this.valueCache = valueCache;
+    }
+
+    /**
+     * @return Cache for serialized values of served port (null if values are not cached)
+     */
+    SerializedValueCache getValueCache() {
+        return valueCache;
+    }
+
+    /**
+     * Sends current value of serving port to peer
+     * (called by connection when port is due for sending - see NetPortSendScheduler)
+     */
+    void sendCurrentValue() {
+        AbstractPort port = getPort();
+        try {
+            if (isCCType()) {
+                GenericObject value = ((CCPortBase)port).getAutoLockedRaw();
+                if (passesSendFilter(value.getData())) {
+                    connection.sendValue(this, value, null);
+                }
+            } else {
+                PortDataManager manager = ((PortBase)port).getAutoLockedRaw();
+                if (passesSendFilter(manager.getObject().getData())) {
+                    connection.sendValue(this, manager.getObject(), manager);
+                }
+            }
+        } finally {
+            ThreadLocalCache.get().releaseAllLocks();
+        }
+    }
+
+    @Override
+    protected void prepareDelete() {
+        if (serving) {
+            connection.getSendScheduler().unregister(this);
+            AdaptiveUpdateRateController controller = connection.getRateController();
+            if (controller != null) {
+                controller.removePort(this);
+            }
+        }
+        if (valueCache != null) {
+            connection.getTransport().releaseValueCache(source);
+            valueCache = null;
+        }
+    }
+
+    @Override
+    protected void sendCall(AbstractCall mc) {
+        throw new RuntimeException("RPC ports are not supported by NIO transport");
+    }
+
+    @Override
+    protected void propagateStrategyOverTheNet() {
+        // serving side always pushes values
+    }
+
+    @Override
+    public int getRemoteEdgeDestinations(List<AbstractPort> resultList) {
+        resultList.clear();
+        return 0;
+    }
+}
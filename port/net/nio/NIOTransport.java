@@ -0,0 +1,306 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.finroc.core.port.AbstractPort;
+import org.finroc.core.port.net.DirectBufferPool;
+import org.finroc.core.port.net.SerializedValueCache;
+import org.rrlib.logging.Log;
+import org.rrlib.logging.LogLevel;
+
+/**
+ * @author Max Reichardt
+ *
+ * Reference network transport based on non-blocking I/O.
+ *
+ * A small, fixed number of selector loop threads serves all connections
+ * of the transport - so that hundreds of peer connections do not require
+ * hundreds of threads. Connections are assigned to loops round-robin.
+ *
+ * Transport may accept connections (listen()) and establish connections
+ * to other peers (connect()). Ports of the local runtime environment can
+ * be subscribed from the peer via their qualified links (see NIOConnection).
+ */
+public class NIOTransport {
+
+    /** Default number of selector loops */
+    public static final int DEFAULT_LOOP_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** Name of transport */
+    private final String name;
+
+    /** Selector loops */
+    private final SelectorLoop[] loops;
+
+    /** Index of loop that next connection is assigned to */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /** Open server channels */
+    private final ArrayList<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
+
+    /** Open connections */
+    private final ArrayList<NIOConnection> connections = new ArrayList<NIOConnection>();
+
+    /** Has transport been shut down? */
+    private boolean shutDown;
+
+    /** Pool of direct buffers that outgoing messages of all connections are serialized to */
+    private final DirectBufferPool bufferPool = new DirectBufferPool();
+
+    /** Caches for serialized values of served ports (shared by all connections serving a port) - and number of connections using them */
+    private final HashMap<AbstractPort, SerializedValueCache> valueCaches = new HashMap<AbstractPort, SerializedValueCache>();
+    private final HashMap<AbstractPort, Integer> valueCacheUsers = new HashMap<AbstractPort, Integer>();
+
+    /**
+     * @param name Name of transport
+     */
+    public NIOTransport(String name) throws IOException {
+        this(name, DEFAULT_LOOP_COUNT);
+    }
+
+    /**
+     * @param name Name of transport
+     * @param loopCount Number of selector loop threads
+     */
+    public NIOTransport(String name, int loopCount) throws IOException {
+        if (loopCount <= 0) {
+            throw new RuntimeException("Loop count must be positive");
+        }
+        this.name = name;
+        loops = new SelectorLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new SelectorLoop(name + " Selector Loop " + i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Accept connections on the specified port
+     *
+     * @param port TCP port to listen on (0 selects a free port)
+     * @return TCP port that transport is listening on
+     */
+    public synchronized int listen(int port) throws IOException {
+        checkNotShutDown();
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        servers.add(server);
+        final SelectorLoop loop = loops[0];
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    loop.register(server, SelectionKey.OP_ACCEPT, new Acceptor(server));
+                } catch (IOException e) {
+                    Log.log(LogLevel.ERROR, NIOTransport.this, "Could not register server channel: ", e);
+                }
+            }
+        });
+        Log.log(LogLevel.DEBUG, this, "Listening on port " + server.socket().getLocalPort());
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Connects to another peer.
+     * Connecting is completed asynchronously - messages (e.g. subscriptions) may be sent immediately
+     * and are transferred once the connection is established.
+     *
+     * @param host Host name
+     * @param port TCP port
+     * @return Connection
+     */
+    public NIOConnection connect(String host, int port) throws IOException {
+        checkNotShutDown();
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        boolean connected = channel.connect(new InetSocketAddress(host, port));
+        return addConnection(new NIOConnection(this, nextLoop(), channel, host + ":" + port, !connected));
+    }
+
+    /**
+     * Closes all connections and server channels and stops selector loops
+     */
+    public void shutdown() {
+        ArrayList<NIOConnection> connectionsCopy;
+        synchronized (this) {
+            if (shutDown) {
+                return;
+            }
+            shutDown = true;
+            for (ServerSocketChannel server : servers) {
+                try {
+                    server.close();
+                } catch (IOException e) {
+                    Log.log(LogLevel.WARNING, this, e);
+                }
+            }
+            servers.clear();
+            connectionsCopy = new ArrayList<NIOConnection>(connections);
+        }
+        for (NIOConnection connection : connectionsCopy) {
+            connection.close();
+        }
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * @return Currently open connections
+     */
+    public synchronized List<NIOConnection> getConnections() {
+        return new ArrayList<NIOConnection>(connections);
+    }
+
+    /**
+     * @return Pool of direct buffers that outgoing messages of all connections are serialized to
+     */
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Obtains cache for serialized values of a served port.
+     * Must be released using releaseValueCache() when it is no longer used.
+     *
+     * @param port Served port
+     * @return Cache that is shared by all connections serving this port
+     */
+    synchronized SerializedValueCache acquireValueCache(AbstractPort port) {
+        SerializedValueCache cache = valueCaches.get(port);
+        if (cache == null) {
+            cache = new SerializedValueCache(bufferPool);
+            valueCaches.put(port, cache);
+            valueCacheUsers.put(port, 0);
+        }
+        valueCacheUsers.put(port, valueCacheUsers.get(port) + 1);
+        return cache;
+    }
+
+    /**
+     * @param port Served port whose cache is no longer used by the caller
+     */
+    synchronized void releaseValueCache(AbstractPort port) {
+        Integer users = valueCacheUsers.get(port);
+        if (users == null) {
+            return;
+        }
+        if (users > 1) {
+            valueCacheUsers.put(port, users - 1);
+        } else {
+            valueCacheUsers.remove(port);
+            valueCaches.remove(port).close();
+        }
+    }
+
+    /**
+     * @return Number of selector loop threads
+     */
+    public int getLoopCount() {
+        return loops.length;
+    }
+
+    /**
+     * Called by connections when they are closed
+     *
+     * @param connection Connection that was closed
+     */
+    synchronized void connectionClosed(NIOConnection connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * @return Loop to assign next connection to
+     */
+    private SelectorLoop nextLoop() {
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    private synchronized NIOConnection addConnection(NIOConnection connection) {
+        connections.add(connection);
+        return connection;
+    }
+
+    private synchronized void checkNotShutDown() {
+        if (shutDown) {
+            throw new RuntimeException("Transport has been shut down");
+        }
+    }
+
+    public String toString() {
+        return "NIOTransport " + name;
+    }
+
+    /**
+     * Accepts connections on a server channel
+     */
+    private class Acceptor implements SelectorLoop.Handler {
+
+        /** Server channel */
+        private final ServerSocketChannel server;
+
+        private Acceptor(ServerSocketChannel server) {
+            this.server = server;
+        }
+
+        @Override
+        public void handleSelection(SelectionKey key) throws Exception {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                synchronized (NIOTransport.this) {
+                    if (shutDown) {
+                        channel.close();
+                        continue;
+                    }
+                    addConnection(new NIOConnection(NIOTransport.this, nextLoop(), channel, channel.socket().getRemoteSocketAddress().toString(), false));
+                }
+            }
+        }
+
+        @Override
+        public void handleClose(Exception e) {
+            if (e != null) {
+                Log.log(LogLevel.ERROR, NIOTransport.this, "Accepting connection failed: ", e);
+            }
+            try {
+                server.close();
+            } catch (IOException e2) {
+                Log.log(LogLevel.WARNING, NIOTransport.this, e2);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.net.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.finroc.core.port.ThreadLocalCache;
+import org.rrlib.logging.Log;
+import org.rrlib.logging.LogLevel;
+
+/**
+ * @author Max Reichardt
+ *
+ * Event loop thread that serves many non-blocking channels using a single Selector.
+ *
+ * All operations on the channels registered with a loop (including registration)
+ * are performed by the loop's thread. Other threads pass tasks using execute().
+ */
+class SelectorLoop extends Thread {
+
+    /**
+     * Handles readiness events of a channel (attached to the channel's SelectionKey)
+     */
+    interface Handler {
+
+        /**
+         * Called by loop thread when channel is ready for one of its interest operations
+         *
+         * @param key Selection key of channel
+         */
+        public void handleSelection(SelectionKey key) throws Exception;
+
+        /**
+         * Called by loop thread when handling a selection failed or loop is shut down
+         *
+         * @param e Exception that occurred (null on shutdown)
+         */
+        public void handleClose(Exception e);
+    }
+
+    /** Selector of this loop */
+    private final Selector selector;
+
+    /** Tasks to execute in loop thread */
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    /** Has loop been stopped? */
+    private volatile boolean stopped;
+
+    /**
+     * @param name Name of thread
+     */
+    SelectorLoop(String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    /**
+     * Executes task in loop thread
+     * (immediately if called from loop thread)
+     *
+     * @param task Task to execute
+     */
+    void execute(Runnable task) {
+        if (Thread.currentThread() == this) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers channel with this loop (must be called from loop thread)
+     *
+     * @param channel Channel (non-blocking)
+     * @param ops Interest operations
+     * @param handler Handler for readiness events
+     * @return Selection key
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws IOException {
+        assert(Thread.currentThread() == this);
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Stops loop. All handlers of registered channels are closed.
+     */
+    void shutdown() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        ThreadLocalCache.get();
+        while (!stopped) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.log(LogLevel.ERROR, this, "Selecting failed: ", e);
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    Log.log(LogLevel.ERROR, this, e);
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Handler handler = (Handler)key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.handleSelection(key);
+                    }
+                } catch (Exception e) {
+                    handler.handleClose(e);
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((Handler)key.attachment()).handleClose(null);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.log(LogLevel.WARNING, this, e);
+        }
+    }
+}
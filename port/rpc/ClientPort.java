@@ -21,12 +21,11 @@
 //----------------------------------------------------------------------
 package org.finroc.core.port.rpc;
 
-import java.lang.reflect.InvocationTargetException;
-
 import org.finroc.core.FrameworkElementFlags;
 import org.finroc.core.port.AbstractPort;
 import org.finroc.core.port.PortCreationInfo;
 import org.finroc.core.port.PortWrapperBase;
+import org.finroc.core.port.rpc.internal.PendingCalls;
 import org.finroc.core.port.rpc.internal.RPCMessage;
 import org.finroc.core.port.rpc.internal.RPCPort;
 import org.finroc.core.port.rpc.internal.RPCRequest;
@@ -42,6 +41,9 @@ import org.rrlib.logging.LogLevel;
  */
 public class ClientPort extends PortWrapperBase {
 
+    /** Default timeout for calls to other runtime environments (in ms) */
+    public static final long DEFAULT_CALL_TIMEOUT = 5000;
+
     /** Creates no wrapped port */
     public ClientPort() {}
 
@@ -66,12 +68,12 @@ public class ClientPort extends PortWrapperBase {
             Object serverInterface = serverPort.getCallHandler();
             if (serverInterface != null) {
                 try {
-                    method.getNativeMethod().invoke(serverInterface, arguments);
+                    invokeLocal(method, serverInterface, arguments);
                 } catch (Exception e) {
                     Log.log(LogLevel.WARNING, this, e);
                 }
             } else {
-                serverPort.sendCall(new RPCMessage(method, arguments));
+                serverPort.sendCall(RPCMessage.getUnused(method, arguments));
             }
         }
     }
@@ -85,6 +87,20 @@ public class ClientPort extends PortWrapperBase {
      * @param arguments Arguments for function call
      */
     public void callAsynchronous(ResponseHandler responseHandler, Method method, Object ... arguments) {
+        callAsynchronous(DEFAULT_CALL_TIMEOUT, responseHandler, method, arguments);
+    }
+
+    /**
+     * Calls specified function asynchronously
+     * Result of function call is forwarded to the return handler provided.
+     * If no result is received within the specified timeout, handler receives a FutureStatus.TIMEOUT exception.
+     *
+     * @param timeout Timeout for function call in ms
+     * @param responseHandler Return handler to receive results
+     * @param method Method to call
+     * @param arguments Arguments for function call
+     */
+    public void callAsynchronous(long timeout, ResponseHandler responseHandler, Method method, Object ... arguments) {
         RPCPort serverPort = getWrapped().getServer(true);
         if (serverPort == null) {
             responseHandler.handleException(method, FutureStatus.NO_CONNECTION);
@@ -92,26 +108,25 @@ public class ClientPort extends PortWrapperBase {
         }
         Object serverInterface = serverPort.getCallHandler();
         if (serverInterface != null) {
+            Object result;
             try {
-                responseHandler.handleResponse(method, method.getNativeMethod().invoke(serverInterface, arguments));
-            } catch (InvocationTargetException e) {
-                if (e.getCause() instanceof RPCException) {
-                    responseHandler.handleException(method, ((RPCException)e.getCause()).getType());
-                } else {
-                    Log.log(LogLevel.WARNING, this, e);
-                    responseHandler.handleException(method, FutureStatus.INTERNAL_ERROR);
-                }
+                result = invokeLocal(method, serverInterface, arguments);
+            } catch (RPCException e) {
+                responseHandler.handleException(method, e.getType());
+                return;
             } catch (Exception e) {
                 Log.log(LogLevel.WARNING, this, e);
                 responseHandler.handleException(method, FutureStatus.INTERNAL_ERROR);
+                return;
             }
+            responseHandler.handleResponse(method, result);
             return;
         }
 
         // prepare storage object
-        RPCRequest request = new RPCRequest(serverPort, method, 5000, arguments);
+        RPCRequest request = RPCRequest.getUnused(serverPort, method, timeout, arguments);
         request.setResponseHandler(responseHandler);
-        serverPort.sendCall(request);
+        sendRequest(serverPort, request);
     }
 
 
@@ -133,14 +148,9 @@ public class ClientPort extends PortWrapperBase {
         Object serverInterface = serverPort.getCallHandler();
         if (serverInterface != null) {
             try {
-                method.getNativeMethod().invoke(serverInterface, arguments);
-            } catch (InvocationTargetException e) {
-                if (e.getCause() instanceof RPCException) {
-                    throw(RPCException)e.getCause();
-                } else {
-                    Log.log(LogLevel.WARNING, this, e);
-                    throw new RPCException(FutureStatus.INTERNAL_ERROR);
-                }
+                return invokeLocal(method, serverInterface, arguments);
+            } catch (RPCException e) {
+                throw e;
             } catch (Exception e) {
                 Log.log(LogLevel.WARNING, this, e);
                 throw new RPCException(FutureStatus.INTERNAL_ERROR);
@@ -148,9 +158,9 @@ public class ClientPort extends PortWrapperBase {
         }
 
         // prepare storage object
-        RPCRequest request = new RPCRequest(serverPort, method, 5000, arguments);
+        RPCRequest request = RPCRequest.getUnused(serverPort, method, timeout, arguments);
         Future future = request.getFuture();
-        serverPort.sendCall(request);
+        sendRequest(serverPort, request);
         return future.get(timeout);
     }
 
@@ -164,6 +174,21 @@ public class ClientPort extends PortWrapperBase {
      * @return Future to obtain return value
      */
     public Future futureCall(Method method, Object ... arguments) {
+        return futureCall(DEFAULT_CALL_TIMEOUT, method, arguments);
+    }
+
+    /**
+     * Calls specified function and returns a Future<RETURN_TYPE>.
+     * This Future can be used to obtain and possibly wait for the
+     * return value when it is needed.
+     * If no result is received within the specified timeout, future receives a FutureStatus.TIMEOUT exception.
+     *
+     * @param timeout Timeout for function call in ms
+     * @param method Method to call
+     * @param arguments Arguments for function call
+     * @return Future to obtain return value
+     */
+    public Future futureCall(long timeout, Method method, Object ... arguments) {
         RPCPort serverPort = getWrapped().getServer(true);
         if (serverPort == null) {
             Promise response = new Promise();
@@ -174,14 +199,9 @@ public class ClientPort extends PortWrapperBase {
         if (serverInterface != null) {
             Promise response = new Promise();
             try {
-                response.setValue(method.getNativeMethod().invoke(serverInterface, arguments));
-            } catch (InvocationTargetException e) {
-                if (e.getCause() instanceof RPCException) {
-                    response.setException(((RPCException)e.getCause()).getType());
-                } else {
-                    Log.log(LogLevel.WARNING, this, e);
-                    response.setException(FutureStatus.INTERNAL_ERROR);
-                }
+                response.setValue(invokeLocal(method, serverInterface, arguments));
+            } catch (RPCException e) {
+                response.setException(e.getType());
             } catch (Exception e) {
                 Log.log(LogLevel.WARNING, this, e);
                 response.setException(FutureStatus.INTERNAL_ERROR);
@@ -189,12 +209,54 @@ public class ClientPort extends PortWrapperBase {
             return response.getFuture();
         }
 
-        RPCRequest request = new RPCRequest(serverPort, method, 5000, arguments);
+        RPCRequest request = RPCRequest.getUnused(serverPort, method, timeout, arguments);
         Future future = request.getFuture();
-        serverPort.sendCall(request);
+        sendRequest(serverPort, request);
         return future;
     }
 
+    /**
+     * Typed access to the call handler of a server port in the same runtime environment.
+     * Calling methods on the returned object directly is the fastest way to perform local calls
+     * (no argument arrays, no boxing of primitive arguments).
+     * (note: this is not a stub for remote servers - calls to other runtime environments need to go through the call methods above)
+     *
+     * @param interfaceClass Interface class that the call handler is expected to implement
+     * @return Call handler of connected server port - or null if not connected or server is not local
+     */
+    public <T> T getLocalCallHandler(Class<T> interfaceClass) {
+        RPCPort serverPort = getWrapped().getServer(true);
+        if (serverPort == null) {
+            return null;
+        }
+        Object serverInterface = serverPort.getCallHandler();
+        return interfaceClass.isInstance(serverInterface) ? interfaceClass.cast(serverInterface) : null;
+    }
+
+    /**
+     * Invokes method on call handler of local server port
+     * (via the method's fixed-arity invokers for up to three arguments - no argument spreading)
+     *
+     * @param method Method to call
+     * @param callHandler Call handler of server port
+     * @param arguments Arguments for function call
+     * @return Return value of call (null for void methods)
+     */
+    private static Object invokeLocal(Method method, Object callHandler, Object[] arguments) throws Exception {
+        switch (arguments == null ? -1 : arguments.length) {
+        case 0:
+            return method.invoke0(callHandler);
+        case 1:
+            return method.invoke1(callHandler, arguments[0]);
+        case 2:
+            return method.invoke2(callHandler, arguments[0], arguments[1]);
+        case 3:
+            return method.invoke3(callHandler, arguments[0], arguments[1], arguments[2]);
+        default:
+            return method.invoke(callHandler, arguments);
+        }
+    }
+
     /**
      * @return Wrapped RPC port
      */
@@ -212,6 +274,20 @@ public class ClientPort extends PortWrapperBase {
      * @return Future returned by function
      */
     public Future nativeFutureCall(Method method, Object ... arguments) {
+        return nativeFutureCall(DEFAULT_CALL_TIMEOUT, method, arguments);
+    }
+
+    /**
+     * Calls a function that returns a future.
+     *
+     * If port is not connected etc., stores exception in returned future.
+     *
+     * @param timeout Timeout for function call in ms
+     * @param function Function to call
+     * @param arguments Arguments for function call
+     * @return Future returned by function
+     */
+    public Future nativeFutureCall(long timeout, Method method, Object ... arguments) {
         RPCPort serverPort = getWrapped().getServer(true);
         if (serverPort == null) {
             Promise response = new Promise();
@@ -220,25 +296,40 @@ public class ClientPort extends PortWrapperBase {
         }
         Object serverInterface = serverPort.getCallHandler();
         if (serverInterface != null) {
+            FutureStatus exception;
             try {
-                method.getNativeMethod().invoke(serverInterface, arguments);
+                return (Future)invokeLocal(method, serverInterface, arguments);
+            } catch (RPCException e) {
+                exception = e.getType();
             } catch (Exception e) {
                 Log.log(LogLevel.WARNING, this, e);
-                Promise response = new Promise();
-                response.setException(FutureStatus.INTERNAL_ERROR);
-                return response.getFuture();
+                exception = FutureStatus.INTERNAL_ERROR;
             }
+            Promise response = new Promise();
+            response.setException(exception);
+            return response.getFuture();
         }
 
         // prepare storage object
-        RPCRequest request = new RPCRequest(serverPort, method, 5000, arguments);
+        RPCRequest request = RPCRequest.getUnused(serverPort, method, timeout, arguments);
 
         // send call and wait for call returning
         Future future = request.getFuture();
-        serverPort.sendCall(request);
+        sendRequest(serverPort, request);
         return future;
     }
 
+    /**
+     * Registers request in table of pending calls (assigns call id and schedules timeout) and sends it
+     *
+     * @param serverPort Network port to send request to
+     * @param request Request to send
+     */
+    private void sendRequest(RPCPort serverPort, RPCRequest request) {
+        PendingCalls.getInstance().add(request);
+        serverPort.sendCall(request);
+    }
+
     /**
      * Wraps raw port
      * Throws runtimeError if port has invalid type
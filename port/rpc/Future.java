@@ -21,9 +21,10 @@
 //----------------------------------------------------------------------
 package org.finroc.core.port.rpc;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 import org.finroc.core.port.rpc.internal.AbstractCall;
-import org.rrlib.logging.Log;
-import org.rrlib.logging.LogLevel;
 
 
 /**
@@ -40,48 +41,32 @@ public class Future {
      * Obtains value from future.
      * It it is not available blocks for the specified amount of time.
      * If call fails, throws an RPCException.
+     * Once a result (or exception other than timeout) has been obtained, the future becomes invalid.
+     * Any number of threads may wait on a future (only one of them obtains the value).
      *
      * @param timeout Timeout. If this expires, a RPCException(FutureStatus::TIMEOUT) is thrown
      * @return Value obtained from call
      */
     public Object get(long timeout) throws RPCException {
-        if (!valid()) {
+        AbstractCall call = storage;
+        if (call == null) {
             throw new RPCException(FutureStatus.INVALID_FUTURE);
         }
-        FutureStatus status = FutureStatus.values()[storage.futureStatus.get()];
+        FutureStatus status = call.waitForCompletion(timeout);
         if (status == FutureStatus.PENDING) {
-            synchronized (storage) {
-                status = FutureStatus.values()[storage.futureStatus.get()];
-                if (status == FutureStatus.PENDING) {
-                    if (storage.waiting) {
-                        Log.log(LogLevel.ERROR, this, "There's already a thread waiting on this object");
-                        throw new RPCException(FutureStatus.INVALID_CALL);
-                    }
-                    storage.waiting = true;
-                    try {
-                        storage.wait(timeout);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace(); // should not happen
-                    }
-                    storage.waiting = false;
-                    if (FutureStatus.values()[storage.futureStatus.get()] == FutureStatus.PENDING) {
-                        throw new RPCException(FutureStatus.TIMEOUT);
-                    }
-                    status = FutureStatus.values()[storage.futureStatus.get()];
-                    if (status == FutureStatus.PENDING) {
-                        throw new RPCException(FutureStatus.INTERNAL_ERROR);
-                    }
-                }
-            }
+            throw new RPCException(FutureStatus.TIMEOUT);
         }
 
+        // call is completed: result is consumed and storage may be recycled
+        if (!storageUpdater.compareAndSet(this, call, null)) {
+            throw new RPCException(FutureStatus.INVALID_FUTURE); // another thread obtained value
+        }
+        Object result = call.resultBuffer;
+        call.resultBuffer = null;
+        call.release();
         if (status != FutureStatus.READY) {
             throw new RPCException(status);
         }
-
-        Object result = storage.resultBuffer;
-        storage.resultBuffer = null;
-        storage = null;
         return result;
     }
 
@@ -89,10 +74,11 @@ public class Future {
      * @return True when value is available
      */
     public boolean ready() {
-        if (!valid()) {
+        AbstractCall call = storage;
+        if (call == null) {
             return false;
         }
-        return storage.futureStatus.get() != FutureStatus.PENDING.ordinal();
+        return call.futureStatus.get() != FutureStatus.PENDING.ordinal();
     }
 
     /**
@@ -110,6 +96,57 @@ public class Future {
         callbackSet = true;
     }
 
+    /**
+     * Adds callback which is called when future receives value (or exception).
+     * In contrast to setCallback(), any number of callbacks may be added.
+     * If future already has value, callback is called immediately.
+     * Callbacks do not consume the value - it can still be obtained via get().
+     * Once the value has been obtained via get(), the future is invalid and callbacks can no longer be added
+     * (a RuntimeException is thrown).
+     *
+     * @param callback Callback
+     */
+    public void addCallback(ResponseHandler callback) {
+        AbstractCall call = storage;
+        if (call == null) {
+            throw new RuntimeException("Cannot add callback to invalid future");
+        }
+        call.addContinuation(callback);
+    }
+
+    /**
+     * Converts this future to a CompletableFuture (e.g. for composition or for waiting
+     * in virtual threads). The value is passed on to the CompletableFuture - so this
+     * future becomes invalid. RPC exceptions complete the CompletableFuture exceptionally
+     * with an RPCException.
+     *
+     * @return CompletableFuture that is completed when call returns
+     */
+    public CompletableFuture<Object> toCompletableFuture() {
+        final CompletableFuture<Object> result = new CompletableFuture<Object>();
+        final AbstractCall call = storageUpdater.getAndSet(this, null);
+        if (call == null) {
+            result.completeExceptionally(new RPCException(FutureStatus.INVALID_FUTURE));
+            return result;
+        }
+        call.addContinuation(new ResponseHandler() {
+
+            @Override
+            public void handleException(Method method, FutureStatus exceptionType) {
+                call.release();
+                result.completeExceptionally(new RPCException(exceptionType));
+            }
+
+            @Override
+            public void handleResponse(Method method, Object callResult) {
+                call.resultBuffer = null;
+                call.release();
+                result.complete(callResult);
+            }
+        });
+        return result;
+    }
+
     /*! see std::future::valid() */
     public boolean valid() {
         return storage != null;
@@ -117,7 +154,10 @@ public class Future {
 
 
     /** Pointer to shared storage */
-    private AbstractCall storage;
+    private volatile AbstractCall storage;
+
+    /** Atomic access to storage (value may only be obtained once) */
+    private static final AtomicReferenceFieldUpdater<Future, AbstractCall> storageUpdater = AtomicReferenceFieldUpdater.newUpdater(Future.class, AbstractCall.class, "storage");
 
     /** True, if a callback for this future was set */
     private boolean callbackSet;
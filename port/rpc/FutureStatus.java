@@ -36,5 +36,6 @@ public enum FutureStatus {
     INVALID_FUTURE,        //!< Called on an invalid future object
     INTERNAL_ERROR,        //!< Internal error; if this occurs, there is a bug in the finroc implementation
     INVALID_CALL,          //!< Function was called that was not allowed
-    INVALID_DATA_RECEIVED  //!< Invalid data received from other process (via network)
+    INVALID_DATA_RECEIVED, //!< Invalid data received from other process (via network)
+    REJECTED               //!< Call was rejected by server, because its execution queue was full
 }
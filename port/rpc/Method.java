@@ -21,8 +21,17 @@
 //----------------------------------------------------------------------
 package org.finroc.core.port.rpc;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.finroc.core.port.rpc.annotation.FutureType;
 import org.finroc.core.port.rpc.annotation.PromiseType;
+import org.finroc.core.port.rpc.annotation.StreamType;
+import org.rrlib.logging.Log;
+import org.rrlib.logging.LogLevel;
 
 
 /**
@@ -47,6 +56,42 @@ public class Method {
      */
     private final Class<?> futureType, promiseType;
 
+    /** Type of values in stream - should method return a ResultStream. In this case, method must have been annotated */
+    private final Class<?> streamType;
+
+    /** Number of parameters of wrapped method */
+    private final int parameterCount;
+
+    /** Parameter types of wrapped method (cached - reflection returns a new array on every call) */
+    private final Class<?>[] parameterTypes;
+
+    /** Does method return a future? */
+    private final boolean futureReturn;
+
+    /** Type of result that is transferred to caller (future type if method returns a future - otherwise return type) */
+    private final Class<?> resultType;
+
+    /** How results of this method are (de)serialized */
+    private final ResultEncoding resultEncoding;
+
+    /** Creates instances of result type (only set for ResultEncoding.PROMISE_SUBCLASS - created when added to RPC interface type) */
+    private MethodHandle resultFactory;
+
+    /**
+     * Invoker with signature (Object, Object ...)Object for wrapped method (created when added to RPC interface type).
+     * Null if no method handle could be created - in this case, reflection is used as fallback.
+     */
+    private MethodHandle invoker;
+
+    /** Above invoker with arguments spread from Object[] - signature (Object, Object[])Object */
+    private MethodHandle arrayInvoker;
+
+    /** Maximum number of calls to this method that RPCExecutor executes concurrently */
+    int concurrencyLimit = Integer.MAX_VALUE;
+
+    /** Statistics on incoming calls of this method */
+    private final Statistics statistics = new Statistics();
+
 
     /**
      * @param interfaceClass Class with methods to be called by RPC
@@ -68,6 +113,208 @@ public class Method {
         futureType = futureTypeAnnotation != null ? futureTypeAnnotation.value() : null;
         PromiseType promiseTypeAnnotation = wrappedMethod.getAnnotation(PromiseType.class);
         promiseType = promiseTypeAnnotation != null ? promiseTypeAnnotation.value() : null;
+        StreamType streamTypeAnnotation = wrappedMethod.getAnnotation(StreamType.class);
+        streamType = streamTypeAnnotation != null ? streamTypeAnnotation.value() : null;
+        parameterTypes = wrappedMethod.getParameterTypes();
+        parameterCount = parameterTypes.length;
+        futureReturn = Future.class.isAssignableFrom(wrappedMethod.getReturnType());
+        resultType = futureReturn ? futureType : wrappedMethod.getReturnType();
+        if (resultType == Promise.class) {
+            resultEncoding = ResultEncoding.PROMISE;
+        } else if (resultType != null && Promise.class.isAssignableFrom(resultType)) {
+            resultEncoding = ResultEncoding.PROMISE_SUBCLASS;
+        } else if (resultType == ResultStream.class) {
+            resultEncoding = ResultEncoding.STREAM;
+        } else {
+            resultEncoding = ResultEncoding.VALUE;
+        }
+    }
+
+    /**
+     * How results of a method are (de)serialized
+     */
+    public enum ResultEncoding {
+        VALUE,            //!< Result is serialized as ordinary value
+        PROMISE,          //!< Result is a Promise (only call id is serialized)
+        PROMISE_SUBCLASS, //!< Result is derived from Promise (call id and value are serialized)
+        STREAM            //!< Result is a ResultStream (only stream id is serialized)
+    }
+
+    /**
+     * Creates typed invokers for this method
+     * (called when method is added to RPC interface type)
+     */
+    void initInvoker() {
+        if (invoker != null) {
+            return;
+        }
+        if (resultEncoding == ResultEncoding.PROMISE_SUBCLASS) {
+            try {
+                resultFactory = MethodHandles.publicLookup().findConstructor(resultType, MethodType.methodType(void.class)).asType(MethodType.genericMethodType(0));
+            } catch (Exception e) {
+                Log.log(LogLevel.DEBUG_WARNING, this, "Could not create factory for " + resultType.getName() + ". Falling back to reflection: ", e);
+            }
+        }
+        try {
+            MethodHandle handle = MethodHandles.publicLookup().unreflect(wrappedMethod);
+            invoker = handle.asType(MethodType.genericMethodType(parameterCount + 1));
+            arrayInvoker = invoker.asSpreader(Object[].class, parameterCount);
+        } catch (Exception e) {
+            Log.log(LogLevel.DEBUG_WARNING, this, "Could not create method handle for " + wrappedMethod.getName() + ". Falling back to reflection: ", e);
+            invoker = null;
+            arrayInvoker = null;
+        }
+    }
+
+    /**
+     * Invokes method on local call handler.
+     * Exceptions thrown by the called method (e.g. RPCException) are passed on unwrapped.
+     *
+     * @param callHandler Object that handles calls on server side
+     * @param arguments Arguments for function call
+     * @return Return value of call (null for void methods)
+     */
+    public Object invoke(Object callHandler, Object[] arguments) throws Exception {
+        if (arrayInvoker == null) {
+            return reflectiveInvoke(callHandler, arguments);
+        }
+        if (arguments == null || arguments.length != parameterCount) {
+            throw new RPCException(FutureStatus.INVALID_CALL);
+        }
+        try {
+            return (Object)arrayInvoker.invokeExact(callHandler, arguments);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Invokes method without any arguments on local call handler (avoids creating an argument array).
+     *
+     * @param callHandler Object that handles calls on server side
+     * @return Return value of call (null for void methods)
+     */
+    public Object invoke0(Object callHandler) throws Exception {
+        if (invoker == null || parameterCount != 0) {
+            return invoke(callHandler, new Object[0]);
+        }
+        try {
+            return (Object)invoker.invokeExact(callHandler);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Invokes method with one argument on local call handler (avoids creating an argument array).
+     *
+     * @param callHandler Object that handles calls on server side
+     * @param arg0 First argument
+     * @return Return value of call (null for void methods)
+     */
+    public Object invoke1(Object callHandler, Object arg0) throws Exception {
+        if (invoker == null || parameterCount != 1) {
+            return invoke(callHandler, new Object[] {arg0});
+        }
+        try {
+            return (Object)invoker.invokeExact(callHandler, arg0);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Invokes method with two arguments on local call handler (avoids creating an argument array).
+     *
+     * @param callHandler Object that handles calls on server side
+     * @param arg0 First argument
+     * @param arg1 Second argument
+     * @return Return value of call (null for void methods)
+     */
+    public Object invoke2(Object callHandler, Object arg0, Object arg1) throws Exception {
+        if (invoker == null || parameterCount != 2) {
+            return invoke(callHandler, new Object[] {arg0, arg1});
+        }
+        try {
+            return (Object)invoker.invokeExact(callHandler, arg0, arg1);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * Invokes method with three arguments on local call handler (avoids creating an argument array).
+     *
+     * @param callHandler Object that handles calls on server side
+     * @param arg0 First argument
+     * @param arg1 Second argument
+     * @param arg2 Third argument
+     * @return Return value of call (null for void methods)
+     */
+    public Object invoke3(Object callHandler, Object arg0, Object arg1, Object arg2) throws Exception {
+        if (invoker == null || parameterCount != 3) {
+            return invoke(callHandler, new Object[] {arg0, arg1, arg2});
+        }
+        try {
+            return (Object)invoker.invokeExact(callHandler, arg0, arg1, arg2);
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
+    }
+
+    /**
+     * @return Maximum number of calls to this method that RPCExecutor executes concurrently
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * (Only has an effect on incoming calls if an RPCExecutor is set for the interface type)
+     *
+     * @param concurrencyLimit Maximum number of calls to this method that RPCExecutor executes concurrently
+     */
+    public void setConcurrencyLimit(int concurrencyLimit) {
+        if (concurrencyLimit <= 0) {
+            throw new RuntimeException("Concurrency limit must be positive");
+        }
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    /**
+     * @return Statistics on incoming calls of this method (calls from other runtime environments)
+     */
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return Number of parameters of wrapped method
+     */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    /**
+     * Fallback if no method handle is available
+     */
+    private Object reflectiveInvoke(Object callHandler, Object[] arguments) throws Exception {
+        try {
+            return wrappedMethod.invoke(callHandler, arguments);
+        } catch (InvocationTargetException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * @param t Throwable thrown by called method
+     * @return Throwable as exception (errors are rethrown directly)
+     */
+    private static Exception rethrow(Throwable t) {
+        if (t instanceof Error) {
+            throw (Error)t;
+        }
+        return (t instanceof Exception) ? (Exception)t : new RuntimeException(t);
     }
 
     /**
@@ -95,7 +342,45 @@ public class Method {
      * @return Does method return a future?
      */
     public boolean hasFutureReturn() {
-        return (Future.class.isAssignableFrom(wrappedMethod.getReturnType()));
+        return futureReturn;
+    }
+
+    /**
+     * @return Type of result that is transferred to caller (future type if method returns a future - otherwise return type)
+     */
+    public Class<?> getResultType() {
+        return resultType;
+    }
+
+    /**
+     * @return How results of this method are (de)serialized
+     */
+    public ResultEncoding getResultEncoding() {
+        return resultEncoding;
+    }
+
+    /**
+     * @return Parameter types of wrapped method (shared array - must not be modified)
+     */
+    public Class<?>[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    /**
+     * Creates new instance of result type
+     * (used when deserializing results derived from Promise)
+     *
+     * @return New instance
+     */
+    public Object newResultInstance() throws Exception {
+        if (resultFactory == null) {
+            return resultType.newInstance();
+        }
+        try {
+            return (Object)resultFactory.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
+        }
     }
 
     /**
@@ -112,4 +397,108 @@ public class Method {
         return promiseType;
     }
 
+    /**
+     * @return Type of values in stream if method returns ResultStream - NULL otherwise
+     */
+    public Class<?> getStreamType() {
+        return streamType;
+    }
+
+
+    /**
+     * Statistics on incoming calls of a method (calls from other runtime environments).
+     * Queue times are only recorded if calls are executed by an RPCExecutor.
+     */
+    public static class Statistics {
+
+        /** Number of executed and rejected calls */
+        private final AtomicLong executedCalls = new AtomicLong(), rejectedCalls = new AtomicLong();
+
+        /** Total and maximum service time in ns */
+        private final AtomicLong totalServiceTime = new AtomicLong(), maxServiceTime = new AtomicLong();
+
+        /** Number of calls that were queued; total and maximum queue time in ns */
+        private final AtomicLong queuedCalls = new AtomicLong(), totalQueueTime = new AtomicLong(), maxQueueTime = new AtomicLong();
+
+        /**
+         * @param serviceTime Service time of executed call in ns
+         */
+        public void addServiceTime(long serviceTime) {
+            executedCalls.incrementAndGet();
+            totalServiceTime.addAndGet(serviceTime);
+            updateMax(maxServiceTime, serviceTime);
+        }
+
+        /**
+         * @param queueTime Time that call spent in execution queue in ns
+         */
+        public void addQueueTime(long queueTime) {
+            queuedCalls.incrementAndGet();
+            totalQueueTime.addAndGet(queueTime);
+            updateMax(maxQueueTime, queueTime);
+        }
+
+        /**
+         * Count rejected call
+         */
+        public void addRejectedCall() {
+            rejectedCalls.incrementAndGet();
+        }
+
+        /**
+         * @return Number of executed calls
+         */
+        public long getExecutedCallCount() {
+            return executedCalls.get();
+        }
+
+        /**
+         * @return Number of rejected calls
+         */
+        public long getRejectedCallCount() {
+            return rejectedCalls.get();
+        }
+
+        /**
+         * @return Average service time in ns
+         */
+        public long getAverageServiceTime() {
+            long calls = executedCalls.get();
+            return calls == 0 ? 0 : totalServiceTime.get() / calls;
+        }
+
+        /**
+         * @return Maximum service time in ns
+         */
+        public long getMaxServiceTime() {
+            return maxServiceTime.get();
+        }
+
+        /**
+         * @return Average queue time in ns
+         */
+        public long getAverageQueueTime() {
+            long calls = queuedCalls.get();
+            return calls == 0 ? 0 : totalQueueTime.get() / calls;
+        }
+
+        /**
+         * @return Maximum queue time in ns
+         */
+        public long getMaxQueueTime() {
+            return maxQueueTime.get();
+        }
+
+        private static void updateMax(AtomicLong max, long value) {
+            long current = max.get();
+            while (value > current && (!max.compareAndSet(current, value))) {
+                current = max.get();
+            }
+        }
+
+        public String toString() {
+            return "executed: " + executedCalls.get() + ", rejected: " + rejectedCalls.get() + ", avg. service time: " + (getAverageServiceTime() / 1000) +
+                   " us, max. service time: " + (getMaxServiceTime() / 1000) + " us, avg. queue time: " + (getAverageQueueTime() / 1000) + " us, max. queue time: " + (getMaxQueueTime() / 1000) + " us";
+        }
+    }
 }
@@ -85,28 +85,14 @@ public class Promise {
      * (see promise::setValue)
      */
     public void setValue(Object value) {
-        FutureStatus current = FutureStatus.values()[storage.futureStatus.get()];
-        if (current != FutureStatus.PENDING) {
-            Log.log(LogLevel.WARNING, this, "Call already has status " + current.toString() + ". Ignoring.");
-            return;
-        }
-
-        synchronized (storage) {
-            resultBuffer = value;
-            storage.futureStatus.set(FutureStatus.READY.ordinal());
-            storage.notify();
-        }
-        if (storage.responseHandler != null) {
-            storage.responseHandler.handleResponse(storage.method, resultBuffer);
+        if (!storage.complete(FutureStatus.READY, value)) {
+            Log.log(LogLevel.WARNING, this, "Call already has status " + FutureStatus.values()[storage.futureStatus.get()].toString() + ". Ignoring.");
         }
     }
 
 
     private class StorageContents extends AbstractCall {
 
-        /** Buffer with result */
-        Object resultBuffer;
-
         /** Id of remote promise - if this is a remote promise */
         long remotePromiseCallId;
 
@@ -129,9 +115,6 @@ public class Promise {
     /** Pointer to shared storage */
     private StorageContents storage = new StorageContents();
 
-    /** Pointer to buffer with result */
-    private Object resultBuffer = storage.resultBuffer;
-
 
     /**
      * Mark/init this promise a remote promise
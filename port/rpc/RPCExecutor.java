@@ -0,0 +1,282 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.rpc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.finroc.core.port.ThreadLocalCache;
+import org.finroc.core.port.rpc.internal.AbstractCall;
+import org.rrlib.logging.Log;
+import org.rrlib.logging.LogLevel;
+
+/**
+ * @author Max Reichardt
+ *
+ * Executes incoming RPC calls (calls from other runtime environments)
+ * in a pool of worker threads - instead of in the thread that receives them.
+ *
+ * Per RPC interface, the number of concurrently executed calls and the number
+ * of queued calls is bounded. Calls that exceed the queue capacity are rejected
+ * (caller receives FutureStatus.REJECTED).
+ * Additionally, the number of concurrently executed calls can be limited per method
+ * (see Method.setConcurrencyLimit). Queued calls of different methods are dispatched
+ * round-robin - so that a method with many slow calls does not starve the others.
+ */
+public class RPCExecutor {
+
+    /** Thread pool that executes calls */
+    private final ExecutorService threadPool;
+
+    /** Execution lanes of interface types that this executor is responsible for */
+    private final ConcurrentHashMap<RPCInterfaceType, Lane> lanes = new ConcurrentHashMap<RPCInterfaceType, Lane>();
+
+    /**
+     * @param name Name of executor (used for naming threads)
+     * @param threadCount Number of worker threads
+     */
+    public RPCExecutor(final String name, int threadCount) {
+        if (threadCount <= 0) {
+            throw new RuntimeException("Thread count must be positive");
+        }
+        threadPool = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            private final AtomicInteger threadIndex = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        ThreadLocalCache.get();
+                        r.run();
+                    }
+                }, name + " " + threadIndex.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Makes this executor execute incoming calls of the specified interface type
+     *
+     * @param type RPC interface type
+     * @param concurrencyLimit Maximum number of calls of this interface type that are executed concurrently
+     * @param queueCapacity Maximum number of queued calls of this interface type - further calls are rejected
+     */
+    public void addInterface(RPCInterfaceType type, int concurrencyLimit, int queueCapacity) {
+        if (concurrencyLimit <= 0 || queueCapacity < 0) {
+            throw new RuntimeException("Invalid limits");
+        }
+        lanes.put(type, new Lane(type, concurrencyLimit, queueCapacity));
+        type.setExecutor(this);
+    }
+
+    /**
+     * Enqueues call for execution.
+     * Call is rejected if queue capacity of its interface type is exceeded.
+     *
+     * @param call Call to execute (executeCall() or rejectCall() will be invoked on it)
+     */
+    public void execute(AbstractCall call) {
+        call.enqueueTime = System.nanoTime();
+        Method method = call.method;
+        Lane lane = lanes.get(method.getInterfaceType());
+        if (lane == null) {
+            call.executeCall();
+            return;
+        }
+
+        ArrayList<AbstractCall> toStart;
+        synchronized (lane) {
+            boolean canStart = lane.runningCalls < lane.concurrencyLimit && lane.runningPerMethod[method.getMethodID()] < method.getConcurrencyLimit();
+            if (lane.queuedCalls >= lane.queueCapacity && (!canStart)) {
+                toStart = null;
+            } else {
+                lane.queues[method.getMethodID()].add(call);
+                lane.queuedCalls++;
+                toStart = lane.dispatch();
+            }
+        }
+        if (toStart == null) {
+            method.getStatistics().addRejectedCall();
+            call.rejectCall();
+            return;
+        }
+        start(lane, toStart);
+    }
+
+    /**
+     * Stops worker threads (calls still queued are rejected).
+     * Interface types are detached from this executor - so that subsequent calls are executed by the thread that receives them.
+     */
+    public void shutdown() {
+        for (RPCInterfaceType type : lanes.keySet()) {
+            if (type.getExecutor() == this) {
+                type.setExecutor(null);
+            }
+        }
+        threadPool.shutdown();
+        ArrayList<Lane> removedLanes = new ArrayList<Lane>(lanes.values());
+        lanes.clear();
+        for (Lane lane : removedLanes) {
+            ArrayList<AbstractCall> rejected = new ArrayList<AbstractCall>();
+            synchronized (lane) {
+                for (ArrayDeque<AbstractCall> queue : lane.queues) {
+                    rejected.addAll(queue);
+                    queue.clear();
+                }
+                lane.queuedCalls = 0;
+            }
+            for (AbstractCall call : rejected) {
+                call.rejectCall();
+            }
+        }
+    }
+
+    /**
+     * Submits calls to thread pool
+     * (calls are rejected if thread pool has been shut down in the meantime)
+     */
+    private void start(Lane lane, ArrayList<AbstractCall> calls) {
+        for (AbstractCall call : calls) {
+            try {
+                threadPool.execute(new Task(lane, call));
+            } catch (RejectedExecutionException e) {
+                Method method = call.method;
+                synchronized (lane) {
+                    lane.runningCalls--;
+                    lane.runningPerMethod[method.getMethodID()]--;
+                }
+                method.getStatistics().addRejectedCall();
+                call.rejectCall();
+            }
+        }
+    }
+
+    /**
+     * Execution lane of one RPC interface type
+     */
+    private static class Lane {
+
+        /** Queued calls - one queue per method (index is method id) */
+        private final ArrayDeque<AbstractCall>[] queues;
+
+        /** Number of running calls per method (index is method id) */
+        private final int[] runningPerMethod;
+
+        /** Limits */
+        private final int concurrencyLimit, queueCapacity;
+
+        /** Number of running and queued calls */
+        private int runningCalls, queuedCalls;
+
+        /** Method queue to check first in next dispatch (round-robin) */
+        private int nextQueue;
+
+        /** Methods of interface type (index is method id) */
+        private final Method[] methods;
+
+        @SuppressWarnings("unchecked")
+        private Lane(RPCInterfaceType type, int concurrencyLimit, int queueCapacity) {
+            this.concurrencyLimit = concurrencyLimit;
+            this.queueCapacity = queueCapacity;
+            methods = new Method[type.getMethodCount()];
+            queues = new ArrayDeque[methods.length];
+            runningPerMethod = new int[methods.length];
+            for (int i = 0; i < methods.length; i++) {
+                methods[i] = type.getMethod(i);
+                queues[i] = new ArrayDeque<AbstractCall>();
+            }
+        }
+
+        /**
+         * Removes calls from queues that may be started now (lane lock must be held)
+         *
+         * @return Calls to start (null if there are none)
+         */
+        private ArrayList<AbstractCall> dispatch() {
+            ArrayList<AbstractCall> result = null;
+            boolean progress = true;
+            while (queuedCalls > 0 && runningCalls < concurrencyLimit && progress) {
+                progress = false;
+                for (int i = 0; i < queues.length && runningCalls < concurrencyLimit; i++) {
+                    int index = (nextQueue + i) % queues.length;
+                    if (queues[index].isEmpty() || runningPerMethod[index] >= methods[index].getConcurrencyLimit()) {
+                        continue;
+                    }
+                    if (result == null) {
+                        result = new ArrayList<AbstractCall>();
+                    }
+                    result.add(queues[index].poll());
+                    queuedCalls--;
+                    runningCalls++;
+                    runningPerMethod[index]++;
+                    nextQueue = (index + 1) % queues.length;
+                    progress = true;
+                }
+            }
+            return result == null ? new ArrayList<AbstractCall>(0) : result;
+        }
+    }
+
+    /**
+     * Executes one call in worker thread
+     */
+    private class Task implements Runnable {
+
+        private final Lane lane;
+        private final AbstractCall call;
+
+        private Task(Lane lane, AbstractCall call) {
+            this.lane = lane;
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            Method method = call.method;
+            method.getStatistics().addQueueTime(System.nanoTime() - call.enqueueTime);
+            try {
+                call.executeCall();
+            } catch (Exception e) {
+                Log.log(LogLevel.ERROR, this, "Executing RPC call failed: ", e);
+            }
+            ArrayList<AbstractCall> toStart;
+            synchronized (lane) {
+                lane.runningCalls--;
+                lane.runningPerMethod[method.getMethodID()]--;
+                toStart = lane.dispatch();
+            }
+            start(lane, toStart);
+        }
+    }
+}
@@ -37,6 +37,9 @@ public class RPCInterfaceType extends DataTypeBase {
     /** Methods in interface */
     private Method[] methods;
 
+    /** Executor for incoming calls from other runtime environments (null if calls are executed by the thread that receives them) */
+    private volatile RPCExecutor executor;
+
     /**
      * @param name Name of RPC Interface
      * @param methods Methods in interface
@@ -49,6 +52,7 @@ public class RPCInterfaceType extends DataTypeBase {
         for (int i = 0; i < methods.length; i++) {
             methods[i].methodID = (byte)i;
             methods[i].interfaceType = this;
+            methods[i].initInvoker();
         }
     }
 
@@ -61,4 +65,27 @@ public class RPCInterfaceType extends DataTypeBase {
     public Method getMethod(int methodId) {
         return methods[methodId];
     }
+
+    /**
+     * @return Number of methods in interface
+     */
+    public int getMethodCount() {
+        return methods.length;
+    }
+
+    /**
+     * @return Executor for incoming calls from other runtime environments (null if calls are executed by the thread that receives them)
+     */
+    public RPCExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * (called by RPCExecutor)
+     *
+     * @param executor Executor for incoming calls from other runtime environments
+     */
+    void setExecutor(RPCExecutor executor) {
+        this.executor = executor;
+    }
 }
@@ -0,0 +1,440 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.rpc;
+
+import java.util.ArrayDeque;
+
+import org.finroc.core.port.rpc.internal.RPCStreamMessage;
+import org.finroc.core.port.rpc.internal.RPCStreamMessage.Command;
+import org.finroc.core.port.rpc.internal.ResponseSender;
+import org.finroc.core.thread.TimerWheel;
+import org.rrlib.logging.Log;
+import org.rrlib.logging.LogLevel;
+
+
+/**
+ * @author Max Reichardt
+ *
+ * Stream of results that an RPC method returns incrementally
+ * (e.g. map tiles or iterations of a planner).
+ *
+ * Server creates a ResultStream, returns it from the RPC method and then
+ * pushes values - followed by complete() or fail().
+ * Client obtains values via next() and may cancel() the stream at any time.
+ * Methods returning a ResultStream must be annotated with StreamType.
+ *
+ * Flow control is credit-based: The producer may only have 'capacity' values
+ * that were not consumed yet. If the client is in another runtime environment,
+ * it grants credits to the server as it consumes values - so that values are
+ * only sent when the client is ready to receive them.
+ *
+ * Remote streams expire if there is no activity for the idle timeout
+ * (no message from the other side - and, on the client side, no call to next()).
+ * This way, streams whose other side disappeared (e.g. with its connection) are
+ * cancelled (server side) or failed with FutureStatus.TIMEOUT (client side) and unregistered.
+ */
+public class ResultStream implements RPCStreamMessage.Endpoint {
+
+    /** Default capacity of streams */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /** Timeout of push(value) in ms */
+    public static final long DEFAULT_PUSH_TIMEOUT = 10000;
+
+    /** Default idle timeout of remote streams in ms (on the server side, the response timeout of the call is used if it is longer) */
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    /** Holds timer wheel for expiry of remote streams (created and started when needed - stopped on runtime shutdown) */
+    private static class TimerWheelHolder {
+        static final TimerWheel instance = new TimerWheel("RPC Stream Expiry", 1024, 100, new TimerWheel.Callback() {
+            @Override
+            public void timerExpired(Object owner) {
+                ((ResultStream)owner).checkExpiry();
+            }
+        });
+        static {
+            instance.start();
+        }
+    }
+
+    /** Values that were pushed and not consumed yet (or not sent yet - on the server side of remote streams) */
+    private final ArrayDeque<Object> buffer = new ArrayDeque<Object>();
+
+    /** Maximum number of values in buffer (and maximum number of credits) */
+    private final int capacity;
+
+    /** Final status of stream: null while stream is open; READY when completed; otherwise error */
+    private FutureStatus finalStatus;
+
+    /** Has stream been cancelled by consumer? */
+    private boolean cancelled;
+
+    /** Method that returned stream (remote streams only) */
+    private Method method;
+
+    /** Sends messages to other side (remote streams only) */
+    private ResponseSender responseSender;
+
+    /** Stream id in this and in remote runtime environment (remote streams only - 0 if unknown) */
+    private long localStreamId, remoteStreamId;
+
+    /** Is producer or consumer in another runtime environment? */
+    private boolean remoteProducer, remoteConsumer;
+
+    /** Credits granted by remote consumer (server side) */
+    private int credits;
+
+    /** Number of values consumed since credits were last granted to remote producer (client side) */
+    private int consumedSinceGrant;
+
+    /** Has final signal been sent to remote consumer? */
+    private boolean finalSignalSent;
+
+    /** Idle timeout of remote stream in ms */
+    private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    /** Time of last activity (remote streams only) */
+    private long lastActivity;
+
+    /** Is stream currently registered as endpoint? */
+    private boolean registered;
+
+    /** Entry for scheduling expiry check */
+    private final TimerWheel.Entry expiryEntry = new TimerWheel.Entry(this);
+
+    public ResultStream() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Maximum number of values that were pushed and not consumed yet
+     */
+    public ResultStream(int capacity) {
+        if (capacity <= 0) {
+            throw new RuntimeException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Pushes value to stream.
+     * Blocks while stream has reached its capacity - at most DEFAULT_PUSH_TIMEOUT.
+     *
+     * @param value Value to push
+     * @return False if stream was cancelled or completed - or timeout expired
+     */
+    public boolean push(Object value) {
+        return push(value, DEFAULT_PUSH_TIMEOUT);
+    }
+
+    /**
+     * Pushes value to stream.
+     * Blocks while stream has reached its capacity - until timeout expires.
+     *
+     * @param value Value to push
+     * @param timeout Timeout in ms (0 means no timeout)
+     * @return False if stream was cancelled or completed - or timeout expired (or thread was interrupted - interrupt flag remains set)
+     */
+    public synchronized boolean push(Object value, long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (buffer.size() >= capacity && (!cancelled) && finalStatus == null) {
+            long wait = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+            if (timeout != 0 && wait <= 0) {
+                return false;
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (cancelled || finalStatus != null) {
+            return false;
+        }
+        buffer.add(value);
+        notifyAll();
+        sendValues();
+        return true;
+    }
+
+    /**
+     * Completes stream (consumer receives all values pushed so far)
+     */
+    public synchronized void complete() {
+        finish(FutureStatus.READY);
+    }
+
+    /**
+     * Fails stream (consumer receives all values pushed so far - then the error)
+     *
+     * @param status Error status
+     */
+    public synchronized void fail(FutureStatus status) {
+        if (status == FutureStatus.PENDING || status == FutureStatus.READY) {
+            throw new RuntimeException("Invalid value for exception");
+        }
+        finish(status);
+    }
+
+    /**
+     * @return Has stream been cancelled by consumer?
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Obtains next value from stream.
+     * Blocks until value is available, stream is finished or timeout expires.
+     *
+     * @param timeout Timeout in ms (0 means no timeout)
+     * @return Next value - or null if stream was completed (or cancelled) and all values have been consumed
+     *         (also null if thread was interrupted while waiting - interrupt flag remains set and stream may still be used)
+     * @throws RPCException If stream failed (and all values have been consumed) - or timeout expired (FutureStatus.TIMEOUT)
+     */
+    public synchronized Object next(long timeout) throws RPCException {
+        long deadline = System.currentTimeMillis() + timeout;
+        lastActivity = System.currentTimeMillis();
+        while (buffer.isEmpty() && finalStatus == null && (!cancelled)) {
+            long wait = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+            if (timeout != 0 && wait <= 0) {
+                throw new RPCException(FutureStatus.TIMEOUT);
+            }
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        if (!buffer.isEmpty()) {
+            Object value = buffer.poll();
+            notifyAll();
+            if (remoteProducer) {
+                consumedSinceGrant++;
+                if (consumedSinceGrant >= Math.max(1, capacity / 2) && finalStatus == null) {
+                    sendMessage(Command.CREDIT, consumedSinceGrant, null, null);
+                    consumedSinceGrant = 0;
+                }
+            }
+            return value;
+        }
+        if (finalStatus != null && finalStatus != FutureStatus.READY) {
+            throw new RPCException(finalStatus);
+        }
+        return null;
+    }
+
+    /**
+     * @return True if stream was completed, failed or cancelled - and all values have been consumed
+     */
+    public synchronized boolean isFinished() {
+        return buffer.isEmpty() && (finalStatus != null || cancelled);
+    }
+
+    /**
+     * Cancels stream (producer is notified; values not consumed yet are discarded)
+     */
+    public synchronized void cancel() {
+        if (cancelled || finalStatus != null) {
+            return;
+        }
+        cancelled = true;
+        buffer.clear();
+        notifyAll();
+        if (remoteProducer) {
+            sendMessage(Command.CANCEL, 0, null, null);
+            unregister();
+        }
+    }
+
+    /**
+     * Connect this stream to consumer in another runtime environment
+     * (only to be called by internal classes - on server side)
+     *
+     * @param method Method that returned stream
+     * @param responseSender Sends messages to consumer
+     * @param callTimeout Response timeout of call that returned stream (idle timeout is at least this long)
+     */
+    public synchronized void connectRemoteConsumer(Method method, ResponseSender responseSender, long callTimeout) {
+        this.method = method;
+        this.responseSender = responseSender;
+        remoteConsumer = true;
+        idleTimeout = Math.max(idleTimeout, callTimeout);
+        register();
+    }
+
+    /**
+     * Connect this stream to producer in another runtime environment
+     * (only to be called by internal classes - on client side)
+     *
+     * @param method Method that returned stream
+     * @param remoteStreamId Stream id of producer
+     * @param responseSender Sends messages to producer
+     */
+    public synchronized void connectRemoteProducer(Method method, long remoteStreamId, ResponseSender responseSender) {
+        this.method = method;
+        this.responseSender = responseSender;
+        this.remoteStreamId = remoteStreamId;
+        remoteProducer = true;
+        register();
+        sendMessage(Command.CREDIT, capacity, null, null);
+    }
+
+    /**
+     * @param idleTimeout Idle timeout of remote stream in ms (see class description)
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        if (registered) {
+            checkExpiry();
+        }
+    }
+
+    /**
+     * Registers stream as endpoint and schedules expiry check (stream lock must be held)
+     */
+    private void register() {
+        localStreamId = RPCStreamMessage.register(this);
+        registered = true;
+        lastActivity = System.currentTimeMillis();
+        TimerWheelHolder.instance.schedule(expiryEntry, idleTimeout);
+    }
+
+    /**
+     * Unregisters stream endpoint (stream lock must be held)
+     */
+    private void unregister() {
+        if (registered) {
+            registered = false;
+            RPCStreamMessage.unregister(localStreamId);
+            TimerWheelHolder.instance.cancel(expiryEntry);
+        }
+    }
+
+    /**
+     * Checks whether remote stream has expired (called by timer wheel)
+     */
+    private synchronized void checkExpiry() {
+        if (!registered) {
+            return;
+        }
+        long idle = System.currentTimeMillis() - lastActivity;
+        if (idle < idleTimeout) {
+            TimerWheelHolder.instance.schedule(expiryEntry, idleTimeout - idle);
+            return;
+        }
+        Log.log(LogLevel.DEBUG, this, "Remote stream " + localStreamId + " expired (no activity for " + idle + " ms)");
+        if (remoteConsumer) {
+            cancelled = true;
+            buffer.clear();
+        } else if (finalStatus == null) {
+            finalStatus = FutureStatus.TIMEOUT;
+            if (!cancelled) {
+                sendMessage(Command.CANCEL, 0, null, null); // in case producer still exists
+            }
+        }
+        notifyAll();
+        unregister();
+    }
+
+    /**
+     * @return Stream id in this runtime environment (only valid for remote streams)
+     */
+    public long getStreamId() {
+        return localStreamId;
+    }
+
+    @Override
+    public synchronized void handleStreamMessage(Command command, long senderStreamId, int credits, Object value, FutureStatus status) {
+        lastActivity = System.currentTimeMillis();
+        switch (command) {
+        case CREDIT:
+            remoteStreamId = senderStreamId;
+            this.credits += credits;
+            sendValues();
+            break;
+        case CANCEL:
+            cancelled = true;
+            buffer.clear();
+            notifyAll();
+            unregister();
+            break;
+        case VALUE:
+            if (!cancelled) {
+                buffer.add(value);
+                notifyAll();
+            }
+            break;
+        case COMPLETE:
+        case ERROR:
+            finalStatus = command == Command.COMPLETE ? FutureStatus.READY : status;
+            notifyAll();
+            unregister();
+            break;
+        }
+    }
+
+    /**
+     * Sets final status of stream (stream lock must be held)
+     */
+    private void finish(FutureStatus status) {
+        if (finalStatus != null || cancelled) {
+            return;
+        }
+        finalStatus = status;
+        notifyAll();
+        sendValues();
+    }
+
+    /**
+     * Sends values and final signal to remote consumer - as far as credits allow (stream lock must be held)
+     * (sending while holding the lock ensures that values are sent in order)
+     */
+    private void sendValues() {
+        if ((!remoteConsumer) || remoteStreamId == 0 || finalSignalSent || cancelled) {
+            return;
+        }
+        while (credits > 0 && (!buffer.isEmpty())) {
+            sendMessage(Command.VALUE, 0, buffer.poll(), null);
+            credits--;
+            notifyAll();
+        }
+        if (buffer.isEmpty() && finalStatus != null) {
+            sendMessage(finalStatus == FutureStatus.READY ? Command.COMPLETE : Command.ERROR, 0, null, finalStatus);
+            finalSignalSent = true;
+            unregister();
+        }
+    }
+
+    /**
+     * Sends message to other side of remote stream
+     */
+    private void sendMessage(Command command, int credits, Object value, FutureStatus status) {
+        RPCStreamMessage message = RPCStreamMessage.getUnused(method, remoteStreamId, localStreamId, command);
+        message.setCredits(credits);
+        message.setValue(value);
+        message.setStatus(status);
+        responseSender.sendResponse(message);
+    }
+}
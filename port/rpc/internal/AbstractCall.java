@@ -21,14 +21,22 @@
 //----------------------------------------------------------------------
 package org.finroc.core.port.rpc.internal;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
+import org.finroc.core.datatype.Duration;
 import org.finroc.core.port.rpc.FutureStatus;
 import org.finroc.core.port.rpc.Method;
+import org.finroc.core.port.rpc.RPCExecutor;
+import org.finroc.core.port.rpc.RPCInterfaceType;
 import org.finroc.core.port.rpc.ResponseHandler;
 import org.rrlib.finroc_core_utils.jc.container.Queueable;
+import org.rrlib.finroc_core_utils.jc.container.WonderQueue;
 import org.rrlib.logging.Log;
 import org.rrlib.logging.LogLevel;
+import org.rrlib.serialization.BinaryInputStream;
 import org.rrlib.serialization.BinaryOutputStream;
 
 
@@ -39,6 +47,15 @@ import org.rrlib.serialization.BinaryOutputStream;
  * For calls within the same runtime environment they are not required.
  * They are used to temporarily store such calls in queues for network threads
  * and to serialize calls.
+ *
+ * Calls obtained via the getUnused() methods of derived classes are pooled.
+ * Every party using such a call (network transport, future) holds one reference.
+ * When the last reference is released, the call is reset and returned to its pool.
+ * Calls that are never released are simply garbage collected.
+ *
+ * Completion is lock-free: the first thread to complete a call (with value or exception)
+ * wins. Any number of threads may wait for completion (they are parked - not blocked on
+ * a monitor) and any number of continuations may be registered.
  */
 public class AbstractCall extends Queueable {
 
@@ -46,12 +63,10 @@ public class AbstractCall extends Queueable {
         RPC_MESSAGE,
         RPC_REQUEST,
         RPC_RESPONSE,
+        RPC_STREAM,
         UNSPECIFIED
     }
 
-    /** True while thread is waiting on condition variable */
-    public boolean waiting;
-
     /** Status for future */
     public final AtomicInteger futureStatus = new AtomicInteger();
 
@@ -89,6 +104,134 @@ public class AbstractCall extends Queueable {
     /** Buffer with result */
     public Object resultBuffer;
 
+    /**
+     * Result that call was completed with. In contrast to resultBuffer, this is not cleared when
+     * the result is consumed (e.g. by Future.get()) - only when call is reset.
+     * Continuations added after completion receive this value.
+     */
+    private Object completedResult;
+
+    /** Pool that this call is returned to when last reference is released (null if call is not pooled) */
+    private WonderQueue<AbstractCall> ownerPool;
+
+    /** Number of parties (network transport, future) that still use this call */
+    private final AtomicInteger referenceCount = new AtomicInteger();
+
+    /** Reusable buffer for call parameters (used when deserializing calls) */
+    private Object[] parameterBuffer;
+
+    /** Set by the thread that completes this call (ensures that a call is only completed once) */
+    private final AtomicBoolean completing = new AtomicBoolean();
+
+    /**
+     * Stack of waiting threads and continuations (added lock-free).
+     * Contains COMPLETED once call has been completed.
+     */
+    private final AtomicReference<Waiter> waiters = new AtomicReference<Waiter>();
+
+    /** Marks completed calls in waiter stack */
+    private static final Waiter COMPLETED = new Waiter(null, null);
+
+    /** Time when call was enqueued in an RPCExecutor (System.nanoTime()) */
+    public long enqueueTime;
+
+    /** Reusable buffer for (de)serializing response timeout */
+    final Duration timeoutBuffer = new Duration();
+
+    /**
+     * Obtains unused call from pool
+     *
+     * @param pool Pool to obtain call from
+     * @return Unused call with one reference - or null if pool is empty (new call should then be created and attached via attachToPool())
+     */
+    protected static AbstractCall getUnused(WonderQueue<AbstractCall> pool) {
+        AbstractCall call = pool.dequeue();
+        if (call != null) {
+            call.referenceCount.set(1);
+        }
+        return call;
+    }
+
+    /**
+     * Attaches newly created call to pool (initializes it with one reference)
+     *
+     * @param pool Pool that call will be returned to when it is released
+     */
+    protected void attachToPool(WonderQueue<AbstractCall> pool) {
+        ownerPool = pool;
+        referenceCount.set(1);
+    }
+
+    /**
+     * Adds reference to this call (e.g. when a future is obtained)
+     */
+    protected void addReference() {
+        referenceCount.incrementAndGet();
+    }
+
+    /**
+     * Releases one reference to this call.
+     * Once all references are released, call is reset and returned to pool.
+     *
+     * Network transports should call this when they no longer need a call object:
+     * after a message or response has been serialized and sent, or after the response
+     * to a request has been processed (or the request has been given up).
+     * The call object must not be accessed after releasing the reference.
+     */
+    public void release() {
+        if (ownerPool == null) {
+            return;
+        }
+        int references = referenceCount.decrementAndGet();
+        assert(references >= 0) : "Call released too often";
+        if (references == 0) {
+            reset();
+            ownerPool.enqueue(this);
+        }
+    }
+
+    /**
+     * Resets call so that it can be reused
+     * (may be overridden by derived classes to reset additional fields)
+     */
+    protected void reset() {
+        futureStatus.set(FutureStatus.PENDING.ordinal());
+        completing.set(false);
+        waiters.set(null);
+        callReadyForSending = null;
+        responseHandler = null;
+        responseTimeout = -1;
+        callId = 0;
+        localPortHandle = 0;
+        remotePortHandle = 0;
+        method = null;
+        resultBuffer = null;
+        completedResult = null;
+        clearParameterBuffer();
+    }
+
+    /**
+     * Clears reusable parameter buffer (so that no references to parameters are kept)
+     */
+    protected void clearParameterBuffer() {
+        if (parameterBuffer != null) {
+            for (int i = 0; i < parameterBuffer.length; i++) {
+                parameterBuffer[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @param length Number of parameters
+     * @return Reusable parameter buffer with the specified length
+     */
+    protected Object[] getParameterBuffer(int length) {
+        if (parameterBuffer == null || parameterBuffer.length != length) {
+            parameterBuffer = new Object[length];
+        }
+        return parameterBuffer;
+    }
+
     /**
      * @return Does this contain a call that expects a response?
      */
@@ -148,6 +291,67 @@ public class AbstractCall extends Queueable {
         return (callReadyForSending == null) || (callReadyForSending.get() != FutureStatus.PENDING.ordinal());
     }
 
+    /**
+     * Executes incoming call from another runtime environment
+     * (implemented by calls that can be queued in an RPCExecutor)
+     */
+    public void executeCall() {}
+
+    /**
+     * Rejects incoming call from another runtime environment (e.g. because an RPCExecutor's queue is full)
+     * (implemented by calls that can be queued in an RPCExecutor)
+     */
+    public void rejectCall() {}
+
+    /**
+     * Executes incoming call - in the RPCExecutor of the method's interface type if
+     * one has been set - otherwise directly in the current thread
+     */
+    void dispatchExecution() {
+        RPCExecutor executor = method.getInterfaceType().getExecutor();
+        if (executor != null) {
+            executor.execute(this);
+        } else {
+            executeCall();
+        }
+    }
+
+    /**
+     * Deserializes and executes incoming call of any type (messages, requests, responses and stream messages).
+     * Network transports that do not dispatch call types themselves may call this with the call type
+     * (written via writeEnum()) followed by the serialized call (see serialize()).
+     *
+     * @param stream Stream to deserialize call from
+     * @param port Port that requests and messages are executed on
+     * @param responseSender Sends responses and stream messages back to caller
+     */
+    public static void deserializeAndExecuteCall(BinaryInputStream stream, RPCPort port, ResponseSender responseSender) {
+        try {
+            CallType callType = stream.readEnum(CallType.class);
+            RPCInterfaceType type = (RPCInterfaceType)stream.readType();
+            byte methodId = stream.readByte();
+            switch (callType) {
+            case RPC_MESSAGE:
+                RPCMessage.deserializeAndExecuteCallImplementation(stream, port, methodId);
+                break;
+            case RPC_REQUEST:
+                RPCRequest.deserializeAndExecuteCallImplementation(stream, port, methodId, responseSender);
+                break;
+            case RPC_RESPONSE:
+                long callId = stream.readLong();
+                RPCResponse.deserializeAndExecuteCallImplementation(stream, type.getMethod(methodId), responseSender, PendingCalls.getInstance().get(callId));
+                break;
+            case RPC_STREAM:
+                RPCStreamMessage.deserializeAndExecuteCallImplementation(stream, type.getMethod(methodId), responseSender);
+                break;
+            default:
+                throw new Exception("Invalid call type " + callType);
+            }
+        } catch (Exception e) {
+            Log.log(LogLevel.DEBUG, "Incoming RPC call caused exception: ", e);
+        }
+    }
+
     /**
      * Serializes call to stream
      */
@@ -168,22 +372,155 @@ public class AbstractCall extends Queueable {
      * @param newStatus Type of exception
      */
     public void setException(FutureStatus newStatus) {
-        FutureStatus current = FutureStatus.values()[futureStatus.get()];
-        if (current != FutureStatus.PENDING) {
+        if (newStatus == FutureStatus.PENDING || newStatus == FutureStatus.READY) {
+            throw new RuntimeException("Invalid value for exception");
+        }
+        if (!complete(newStatus, null)) {
             Log.log(LogLevel.WARNING, this, "Exception cannot be set twice. Ignoring.");
-            return;
         }
+    }
 
-        if (newStatus == FutureStatus.PENDING || newStatus == FutureStatus.READY) {
-            throw new RuntimeException("Invalid value for exception");
+    /**
+     * Completes call: stores result, sets status, wakes up waiting threads and
+     * notifies response handler and continuations.
+     *
+     * @param status Final status of call (READY or exception)
+     * @param result Result of call (if status is READY)
+     * @return False if call had already been completed (nothing is changed in this case)
+     */
+    public boolean complete(FutureStatus status, Object result) {
+        if (futureStatus.get() != FutureStatus.PENDING.ordinal() || (!completing.compareAndSet(false, true))) {
+            return false;
         }
+        resultBuffer = result;
+        completedResult = result;
+        futureStatus.set(status.ordinal()); // publishes result
 
-        synchronized (this) {
-            futureStatus.set(newStatus.ordinal());
-            this.notify();
+        // reverse stack so that continuations are called in the order they were added
+        Waiter waiter = waiters.getAndSet(COMPLETED);
+        Waiter ordered = null;
+        while (waiter != null) {
+            Waiter next = waiter.next;
+            waiter.next = ordered;
+            ordered = waiter;
+            waiter = next;
         }
+
         if (responseHandler != null) {
-            responseHandler.handleException(method, newStatus);
+            notifyHandler(responseHandler, status, result);
+        }
+        for (waiter = ordered; waiter != null; waiter = waiter.next) {
+            if (waiter.thread != null) {
+                LockSupport.unpark(waiter.thread);
+            } else {
+                notifyHandler(waiter.continuation, status, result);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits until call is completed.
+     * Waiting threads are parked, so any number of threads may wait.
+     *
+     * @param timeout Timeout in ms (0 waits without timeout)
+     * @return Status of call - PENDING if timeout expired (or thread was interrupted)
+     */
+    public FutureStatus waitForCompletion(long timeout) {
+        int status = futureStatus.get();
+        if (status != FutureStatus.PENDING.ordinal()) {
+            return FutureStatus.values()[status];
+        }
+        Waiter waiter = new Waiter(Thread.currentThread(), null);
+        if (push(waiter)) {
+            long deadline = System.nanoTime() + timeout * 1000000L;
+            while (futureStatus.get() == FutureStatus.PENDING.ordinal()) {
+                if (timeout > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+            }
+        }
+        return FutureStatus.values()[futureStatus.get()];
+    }
+
+    /**
+     * Adds continuation that is notified when call is completed.
+     * If call is already completed, continuation is notified immediately (in calling thread) -
+     * with the result the call was completed with (also if this has already been consumed via resultBuffer).
+     * Caller must hold a reference to this call (continuations cannot be added to released calls).
+     *
+     * @param continuation Continuation to add
+     */
+    public void addContinuation(ResponseHandler continuation) {
+        if (!push(new Waiter(null, continuation))) {
+            int status = futureStatus.get();
+            if (status == FutureStatus.PENDING.ordinal()) { // call has been reset in the meantime - so it was released by caller
+                throw new RuntimeException("Cannot add continuation to released call");
+            }
+            notifyHandler(continuation, FutureStatus.values()[status], completedResult);
+        }
+    }
+
+    /**
+     * Pushes waiter on waiter stack
+     *
+     * @param waiter Waiter to add
+     * @return False if call has already been completed (waiter is not added in this case)
+     */
+    private boolean push(Waiter waiter) {
+        while (true) {
+            Waiter head = waiters.get();
+            if (head == COMPLETED) {
+                return false;
+            }
+            waiter.next = head;
+            if (waiters.compareAndSet(head, waiter)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Notifies response handler about result of call
+     */
+    private void notifyHandler(ResponseHandler handler, FutureStatus status, Object result) {
+        try {
+            if (status == FutureStatus.READY) {
+                handler.handleResponse(method, result);
+            } else {
+                handler.handleException(method, status);
+            }
+        } catch (Exception e) {
+            Log.log(LogLevel.ERROR, this, "Response handler threw exception: ", e);
+        }
+    }
+
+    /**
+     * Thread waiting for completion of call - or continuation
+     */
+    private static class Waiter {
+
+        /** Waiting thread (null if this is a continuation) */
+        final Thread thread;
+
+        /** Continuation (null if this is a waiting thread) */
+        final ResponseHandler continuation;
+
+        /** Next waiter in stack */
+        Waiter next;
+
+        Waiter(Thread thread, ResponseHandler continuation) {
+            this.thread = thread;
+            this.continuation = continuation;
         }
     }
 
@@ -0,0 +1,211 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.rpc.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.finroc.core.port.rpc.FutureStatus;
+import org.finroc.core.thread.TimerWheel;
+
+
+/**
+ * @author Max Reichardt
+ *
+ * Runtime-wide table of RPC requests that were sent to other runtime
+ * environments and are waiting for a response.
+ *
+ * Requests are indexed by call id. If a network transport assigns another
+ * call id to a pending request (via setCallId()), the request is re-indexed.
+ * Requests with a response timeout are
+ * scheduled in a timer wheel. If no response arrives in time, they are
+ * failed with FutureStatus.TIMEOUT (which notifies futures and response handlers)
+ * and removed from the table. This way, calls that are never answered
+ * do not accumulate.
+ */
+public class PendingCalls implements TimerWheel.Callback {
+
+    /** Number of slots in timer wheel */
+    private static final int TIMER_WHEEL_SLOTS = 512;
+
+    /** Tick duration of timer wheel in ms */
+    private static final int TIMER_WHEEL_TICK = 10;
+
+    /** Singleton instance */
+    private static PendingCalls instance;
+
+    /** Pending requests by call id */
+    private final ConcurrentHashMap<Long, RPCRequest> calls = new ConcurrentHashMap<Long, RPCRequest>();
+
+    /** Timer wheel for timeouts */
+    private final TimerWheel timerWheel;
+
+    /** Counter for call ids */
+    private final AtomicLong callIdCounter = new AtomicLong();
+
+    /** Statistics: Number of requests that were registered, that timed out, and that were completed otherwise */
+    private final AtomicLong registeredCount = new AtomicLong(), timeoutCount = new AtomicLong(), completedCount = new AtomicLong();
+
+
+    private PendingCalls() {
+        timerWheel = new TimerWheel("RPC Timeouts", TIMER_WHEEL_SLOTS, TIMER_WHEEL_TICK, this);
+        timerWheel.start();
+    }
+
+    /**
+     * @return Singleton instance
+     */
+    public synchronized static PendingCalls getInstance() {
+        if (instance == null) {
+            instance = new PendingCalls();
+        }
+        return instance;
+    }
+
+    /**
+     * Registers request as pending.
+     * Assigns a new call id to the request and schedules its timeout
+     * (if request has one). Table holds a reference to the request
+     * until it has been completed.
+     *
+     * @param request Request to register
+     * @return Call id that was assigned to request
+     */
+    public long add(RPCRequest request) {
+        long callId = nextCallId();
+        request.setCallId(callId);
+        request.addReference(); // reference of table
+        synchronized (request) {
+            request.pendingCallId = callId;
+            request.pending = true;
+            calls.put(callId, request);
+        }
+        registeredCount.incrementAndGet();
+        if (request.getResponseTimeout() > 0) {
+            request.addReference(); // reference of timer wheel
+            timerWheel.schedule(request.timeoutEntry, request.getResponseTimeout());
+        }
+        return callId;
+    }
+
+    /**
+     * @return New call id that is unique in this runtime environment (also used for other ids, such as stream ids)
+     */
+    public long nextCallId() {
+        return callIdCounter.incrementAndGet();
+    }
+
+    /**
+     * (To be used by network transports to match incoming responses with requests)
+     *
+     * @param callId Call id
+     * @return Pending request with this call id - or null if there is no such request (e.g. because it has timed out)
+     */
+    public RPCRequest get(long callId) {
+        return calls.get(callId);
+    }
+
+    /**
+     * Removes request from table (called automatically when request is completed)
+     *
+     * @param request Request to remove
+     */
+    void remove(RPCRequest request) {
+        if (timerWheel.cancel(request.timeoutEntry)) {
+            request.release();
+        }
+        if (removeFromTable(request)) {
+            completedCount.incrementAndGet();
+            request.release();
+        }
+    }
+
+    /**
+     * Re-indexes pending request after its call id was changed
+     * (called automatically when setCallId() is called on pending request)
+     *
+     * @param request Request whose call id changed
+     */
+    void changeCallId(RPCRequest request) {
+        synchronized (request) {
+            if (request.pending && request.pendingCallId != request.getCallId() && calls.remove(request.pendingCallId, request)) {
+                request.pendingCallId = request.getCallId();
+                calls.put(request.pendingCallId, request);
+            }
+        }
+    }
+
+    /**
+     * Removes request from table - using the call id it was registered with
+     *
+     * @param request Request to remove
+     * @return True if request was in table (and the table's reference needs to be released)
+     */
+    private boolean removeFromTable(RPCRequest request) {
+        synchronized (request) {
+            if (request.pending && calls.remove(request.pendingCallId, request)) {
+                request.pending = false;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void timerExpired(Object owner) {
+        RPCRequest request = (RPCRequest)owner; // we hold the reference of the timer wheel: request cannot be recycled meanwhile
+        if (removeFromTable(request)) {
+            timeoutCount.incrementAndGet();
+            request.setException(FutureStatus.TIMEOUT);
+            request.release();
+        }
+        request.release();
+    }
+
+    /**
+     * @return Number of requests currently waiting for a response
+     */
+    public int getPendingCallCount() {
+        return calls.size();
+    }
+
+    /**
+     * @return Number of requests that were registered so far
+     */
+    public long getRegisteredCallCount() {
+        return registeredCount.get();
+    }
+
+    /**
+     * @return Number of requests that timed out so far
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * @return Number of requests that were completed with a response (or exception other than timeout) so far
+     */
+    public long getCompletedCallCount() {
+        return completedCount.get();
+    }
+}
@@ -24,6 +24,7 @@ package org.finroc.core.port.rpc.internal;
 import org.finroc.core.port.rpc.ClientPort;
 import org.finroc.core.port.rpc.Method;
 import org.finroc.core.port.rpc.RPCInterfaceType;
+import org.rrlib.finroc_core_utils.jc.container.WonderQueue;
 import org.rrlib.logging.Log;
 import org.rrlib.logging.LogLevel;
 import org.rrlib.serialization.BinaryInputStream;
@@ -49,22 +50,106 @@ public class RPCMessage extends AbstractCall {
     /** Parameters of RPC call */
     Object[] parameters;
 
+    /** Port that incoming message is executed on (server side) */
+    private RPCPort executionPort;
+
+    /** Pool with unused messages */
+    private static final WonderQueue<AbstractCall> unused = new WonderQueue<AbstractCall>();
+
+
+    /**
+     * Obtains (pooled) message.
+     * Network transport should release() message after sending it.
+     *
+     * @param method Method to call
+     * @param arguments Arguments for function call
+     * @return Message with one reference
+     */
+    public static RPCMessage getUnused(Method method, Object[] arguments) {
+        RPCMessage message = (RPCMessage)AbstractCall.getUnused(unused);
+        if (message == null) {
+            message = new RPCMessage(method, arguments);
+            message.attachToPool(unused);
+            return message;
+        }
+        message.method = method;
+        message.parameters = arguments;
+        return message;
+    }
 
     public static void deserializeAndExecuteCallImplementation(BinaryInputStream stream, RPCPort port, byte methodId) {
+        RPCMessage message = deserializeCall(stream, port, methodId);
+        if (message != null) {
+            message.dispatchExecution();
+        }
+    }
+
+    /**
+     * Deserializes incoming message
+     *
+     * @param stream Stream to deserialize message from
+     * @param port Port that message is executed on
+     * @param methodId Id of method to call
+     * @return Message that is prepared for execution (null if deserialization failed)
+     */
+    static RPCMessage deserializeCall(BinaryInputStream stream, RPCPort port, byte methodId) {
+        RPCMessage message = null;
         try {
             RPCInterfaceType type = (RPCInterfaceType) port.getDataType();
             Method method = type.getMethod(methodId);
-            Object[] parameters = new Object[method.getNativeMethod().getParameterTypes().length];
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            message = getUnused(method, null);
+
+            // parameter array may only be reused if call is not forwarded to another network port
+            RPCPort serverPort = port.getServer(true);
+            Object[] parameters = (serverPort != null && serverPort.getCallHandler() != null) ?
+                                  message.getParameterBuffer(parameterTypes.length) : new Object[parameterTypes.length];
             for (int i = 0; i < parameters.length; i++) {
-                parameters[i] = stream.readObject(method.getNativeMethod().getParameterTypes()[i]);
+                parameters[i] = stream.readObject(parameterTypes[i]);
             }
-            ClientPort clientPort = ClientPort.wrap(port, true);
-            clientPort.call(method, parameters);
+            message.parameters = parameters;
+            message.executionPort = port;
+            return message;
         } catch (Exception e) {
             Log.log(LogLevel.DEBUG, "Incoming RPC message caused exception: ", e);
+            if (message != null) {
+                message.release();
+            }
+            return null;
         }
     }
 
+    /**
+     * Executes incoming message
+     */
+    @Override
+    public void executeCall() {
+        long startTime = System.nanoTime();
+        try {
+            ClientPort clientPort = ClientPort.wrap(executionPort, true);
+            clientPort.call(method, parameters);
+            method.getStatistics().addServiceTime(System.nanoTime() - startTime);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Rejects incoming message (it is dropped)
+     */
+    @Override
+    public void rejectCall() {
+        Log.log(LogLevel.DEBUG_WARNING, this, "Execution queue is full. Dropping incoming RPC message.");
+        release();
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        parameters = null;
+        executionPort = null;
+    }
+
     @Override
     public void serialize(BinaryOutputStream stream) {
         // Deserialized by network transport implementation
@@ -73,7 +158,7 @@ public class RPCMessage extends AbstractCall {
 
         // Deserialized by this class
         for (int i = 0; i < parameters.length; i++) {
-            stream.writeObject(parameters[i], method.getNativeMethod().getParameterTypes()[i]);
+            stream.writeObject(parameters[i], method.getParameterTypes()[i]);
         }
     }
 }
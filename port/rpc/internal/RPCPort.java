@@ -96,6 +96,8 @@ public class RPCPort extends AbstractPort {
     /**
      * Sends call to somewhere else
      * (Meant to be called on network ports that forward calls to other runtime environments)
+     * (Network port takes over one reference to the call and should release() it when it is no longer needed)
+     * (Requests are already registered in PendingCalls with a call id assigned - responses can be matched using PendingCalls.get())
      *
      * @param callToSend Call that is sent
      */
@@ -22,13 +22,13 @@
 package org.finroc.core.port.rpc.internal;
 
 import org.finroc.core.datatype.Duration;
-import org.finroc.core.port.rpc.ClientPort;
 import org.finroc.core.port.rpc.Future;
 import org.finroc.core.port.rpc.FutureStatus;
 import org.finroc.core.port.rpc.Method;
-import org.finroc.core.port.rpc.RPCException;
 import org.finroc.core.port.rpc.RPCInterfaceType;
 import org.finroc.core.port.rpc.ResponseHandler;
+import org.finroc.core.thread.TimerWheel;
+import org.rrlib.finroc_core_utils.jc.container.WonderQueue;
 import org.rrlib.logging.Log;
 import org.rrlib.logging.LogLevel;
 import org.rrlib.serialization.BinaryInputStream;
@@ -53,6 +53,34 @@ public class RPCRequest extends AbstractCall {
         super.localPortHandle = serverPort.getHandle();
     }
 
+    /**
+     * Obtains (pooled) request.
+     * Network transport should release() request when the response has been processed.
+     * Any future obtained via getFuture() holds another reference that is released when
+     * the future's result has been obtained.
+     * (note: requests only return to the pool if the network transport does release() them - otherwise,
+     *  as with all transports in finroc_core (the NIO transport does not transfer RPC calls), every call allocates a new request)
+     *
+     * @param serverPort Port that call is sent from
+     * @param method Method to call
+     * @param timeout Timeout for response in ms
+     * @param arguments Arguments for function call
+     * @return Request with one reference
+     */
+    public static RPCRequest getUnused(RPCPort serverPort, Method method, long timeout, Object[] arguments) {
+        RPCRequest request = (RPCRequest)AbstractCall.getUnused(unused);
+        if (request == null) {
+            request = new RPCRequest(serverPort, method, timeout, arguments);
+            request.attachToPool(unused);
+            return request;
+        }
+        request.method = method;
+        request.responseTimeout = timeout;
+        request.parameters = arguments;
+        request.localPortHandle = serverPort.getHandle();
+        return request;
+    }
+
     /**
      * @return Future to wait for result
      */
@@ -62,6 +90,7 @@ public class RPCRequest extends AbstractCall {
         }
         futureObtained = true;
         super.futureStatus.set(FutureStatus.PENDING.ordinal());
+        super.addReference();
         return new Future(super.obtainFuturePointer());
     }
 
@@ -75,39 +104,85 @@ public class RPCRequest extends AbstractCall {
     /** Has future been obtained? */
     boolean futureObtained;
 
+    /** Pool with unused requests */
+    private static final WonderQueue<AbstractCall> unused = new WonderQueue<AbstractCall>();
+
+    /** Is request currently registered in PendingCalls table? */
+    volatile boolean pending;
+
+    /** Call id that request is registered with in PendingCalls table (valid while pending) */
+    long pendingCallId;
+
+    /** Entry for scheduling timeout in PendingCalls' timer wheel */
+    final TimerWheel.Entry timeoutEntry = new TimerWheel.Entry(this);
+
+    @Override
+    protected void reset() {
+        super.reset();
+        parameters = null;
+        futureObtained = false;
+        pending = false;
+    }
+
+    @Override
+    public void setCallId(long callId) {
+        super.setCallId(callId);
+        if (pending) {
+            PendingCalls.getInstance().changeCallId(this);
+        }
+    }
+
+    @Override
+    public boolean complete(FutureStatus status, Object result) {
+        if (pending) {
+            PendingCalls.getInstance().remove(this);
+        }
+        return super.complete(status, result);
+    }
+
     public static void deserializeAndExecuteCallImplementation(BinaryInputStream stream, RPCPort port, byte methodId, ResponseSender responseSender) {
+        RPCResponse response = deserializeCall(stream, port, methodId, responseSender);
+        if (response != null) {
+            response.dispatchExecution();
+        }
+    }
+
+    /**
+     * Deserializes incoming request
+     *
+     * @param stream Stream to deserialize request from
+     * @param port Port that request is executed on
+     * @param methodId Id of method to call
+     * @param responseSender Sends response back to caller after request has been executed
+     * @return Response object that is prepared for execution of request (null if deserialization failed)
+     */
+    static RPCResponse deserializeCall(BinaryInputStream stream, RPCPort port, byte methodId, ResponseSender responseSender) {
+        RPCResponse response = null;
         try {
             RPCInterfaceType type = (RPCInterfaceType) port.getDataType();
             Method method = type.getMethod(methodId);
             long remoteCallId = stream.readLong();
-            Duration duration = new Duration();
+            response = RPCResponse.getUnused(method);
+            Duration duration = response.timeoutBuffer;
             duration.deserialize(stream);
-            Object[] parameters = new Object[method.getNativeMethod().getParameterTypes().length];
+            Class<?>[] parameterTypes = method.getParameterTypes();
+
+            // parameter array may only be reused if call is not forwarded to another network port
+            RPCPort serverPort = port.getServer(true);
+            Object[] parameters = (serverPort != null && serverPort.getCallHandler() != null) ?
+                                  response.getParameterBuffer(parameterTypes.length) : new Object[parameterTypes.length];
             for (int i = 0; i < parameters.length; i++) {
-                parameters[i] = stream.readObject(method.getNativeMethod().getParameterTypes()[i]);
+                parameters[i] = stream.readObject(parameterTypes[i]);
             }
-            ClientPort clientPort = ClientPort.wrap(port, true);
-            boolean nativeFutureFunction = method.getNativeMethod().getReturnType().equals(Future.class);
-
-            //typename tCallStorage::tPointer call_storage = tCallStorage::GetUnused();
-            //tRPCResponse<TReturn>& response = call_storage->Emplace<tRPCResponse<TReturn>>(*call_storage, client_port.GetDataType(), function_id);
-            RPCResponse response = new RPCResponse(method);
             response.setClientCallId(remoteCallId);
-            try {
-                if (nativeFutureFunction) {
-                    response.setReturnValue(clientPort.nativeFutureCall(method, parameters));
-                } else {
-                    response.setReturnValue(clientPort.callSynchronous(duration.getInMs(), method, parameters));
-                }
-                response.localPortHandle = clientPort.getWrapped().getHandle();
-            } catch (RPCException e) {
-                response.setException(e.getType());
-            }
-            responseSender.sendResponse(response);
-
-            // clientPort.call(method, parameters);
+            response.prepareExecution(port, parameters, duration.getInMs(), responseSender);
+            return response;
         } catch (Exception e) {
             Log.log(LogLevel.DEBUG, "Incoming RPC request caused exception: ", e);
+            if (response != null) {
+                response.release();
+            }
+            return null;
         }
     }
 
@@ -118,19 +193,8 @@ public class RPCRequest extends AbstractCall {
      * @param returnValue Returned value
      */
     public void returnValue(Object returnValue) {
-        FutureStatus current = FutureStatus.values()[futureStatus.get()];
-        if (current != FutureStatus.PENDING) {
-            Log.log(LogLevel.WARNING, this, "Call already has status " + current.toString() + ". Ignoring.");
-            return;
-        }
-
-        synchronized (this) {
-            resultBuffer = returnValue;
-            futureStatus.set(FutureStatus.READY.ordinal());
-            this.notify();
-        }
-        if (responseHandler != null) {
-            responseHandler.handleResponse(method, returnValue);
+        if (!complete(FutureStatus.READY, returnValue)) {
+            Log.log(LogLevel.WARNING, this, "Call already has status " + FutureStatus.values()[futureStatus.get()].toString() + ". Ignoring.");
         }
     }
 
@@ -142,11 +206,10 @@ public class RPCRequest extends AbstractCall {
 
         // Deserialized by this class
         stream.writeLong(callId);
-        Duration duration = new Duration();
-        duration.set(super.responseTimeout);
-        duration.serialize(stream);
+        timeoutBuffer.set(super.responseTimeout);
+        timeoutBuffer.serialize(stream);
         for (int i = 0; i < parameters.length; i++) {
-            stream.writeObject(parameters[i], method.getNativeMethod().getParameterTypes()[i]);
+            stream.writeObject(parameters[i], method.getParameterTypes()[i]);
         }
     }
 
@@ -21,11 +21,14 @@
 //----------------------------------------------------------------------
 package org.finroc.core.port.rpc.internal;
 
+import org.finroc.core.port.rpc.ClientPort;
 import org.finroc.core.port.rpc.Future;
 import org.finroc.core.port.rpc.FutureStatus;
 import org.finroc.core.port.rpc.Method;
 import org.finroc.core.port.rpc.Promise;
 import org.finroc.core.port.rpc.RPCException;
+import org.finroc.core.port.rpc.ResultStream;
+import org.rrlib.finroc_core_utils.jc.container.WonderQueue;
 import org.rrlib.logging.Log;
 import org.rrlib.logging.LogLevel;
 import org.rrlib.serialization.BinaryInputStream;
@@ -59,6 +62,113 @@ public class RPCResponse extends AbstractCall {
     /** future for response */
     Future responseFuture;
 
+    /** Port that incoming request is executed on (server side) */
+    private RPCPort executionPort;
+
+    /** Parameters for executing incoming request (server side) */
+    private Object[] executionParameters;
+
+    /** Timeout for executing incoming request (server side) */
+    private long executionTimeout;
+
+    /** Sends response back to caller after incoming request has been executed (server side) */
+    private ResponseSender responseSender;
+
+    /** Pool with unused responses */
+    private static final WonderQueue<AbstractCall> unused = new WonderQueue<AbstractCall>();
+
+
+    /**
+     * Obtains (pooled) response.
+     * Network transport should release() response after sending it.
+     * (note: responses only return to the pool if the network transport does release() them - otherwise,
+     *  as with all transports in finroc_core (the NIO transport does not transfer RPC calls), every call allocates a new response)
+     *
+     * @param method Method that response belongs to
+     * @return Response with one reference
+     */
+    public static RPCResponse getUnused(Method method) {
+        RPCResponse response = (RPCResponse)AbstractCall.getUnused(unused);
+        if (response == null) {
+            response = new RPCResponse(method);
+            response.attachToPool(unused);
+            return response;
+        }
+        response.method = method;
+        return response;
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        resultBuffer = null;
+        futureObtained = false;
+        clientCallId = 0;
+        responseFuture = null;
+        executionPort = null;
+        executionParameters = null;
+        responseSender = null;
+    }
+
+    /**
+     * Prepares execution of incoming request (server side)
+     *
+     * @param port Port that request is executed on
+     * @param parameters Deserialized parameters
+     * @param timeout Timeout for call
+     * @param responseSender Sends response back to caller after request has been executed
+     */
+    void prepareExecution(RPCPort port, Object[] parameters, long timeout, ResponseSender responseSender) {
+        this.executionPort = port;
+        this.executionParameters = parameters;
+        this.executionTimeout = timeout;
+        this.responseSender = responseSender;
+    }
+
+    /**
+     * Executes incoming request and sends response back to caller
+     */
+    @Override
+    public void executeCall() {
+        long startTime = System.nanoTime();
+        ClientPort clientPort = ClientPort.wrap(executionPort, true);
+        try {
+            if (method.hasFutureReturn()) {
+                setReturnValue(clientPort.nativeFutureCall(executionTimeout, method, executionParameters));
+            } else {
+                setReturnValue(clientPort.callSynchronous(executionTimeout, method, executionParameters));
+                if (resultBuffer instanceof ResultStream) {
+                    ((ResultStream)resultBuffer).connectRemoteConsumer(method, responseSender, executionTimeout);
+                }
+            }
+            localPortHandle = clientPort.getWrapped().getHandle();
+        } catch (RPCException e) {
+            setException(e.getType());
+        }
+        method.getStatistics().addServiceTime(System.nanoTime() - startTime);
+        sendResponse();
+    }
+
+    /**
+     * Rejects incoming request (sends FutureStatus.REJECTED to caller)
+     */
+    @Override
+    public void rejectCall() {
+        setException(FutureStatus.REJECTED);
+        sendResponse();
+    }
+
+    /**
+     * Sends response to executed incoming request back to caller
+     */
+    private void sendResponse() {
+        clearParameterBuffer();
+        executionParameters = null;
+        executionPort = null;
+        ResponseSender sender = responseSender;
+        responseSender = null;
+        sender.sendResponse(this);
+    }
 
     public static void deserializeAndExecuteCallImplementation(BinaryInputStream stream, Method method, ResponseSender responseSender, AbstractCall request) {
         try {
@@ -73,6 +183,8 @@ public class RPCResponse extends AbstractCall {
                         Object object = Serialization.returnDeserialization(stream, responseSender, method, promiseResponse); // if (HasFuture etc.)
                         if (object instanceof Promise) {
                             ((Promise)object).breakPromise();
+                        } else if (object instanceof ResultStream) {
+                            ((ResultStream)object).cancel();
                         }
                     } else {
                         Serialization.returnDeserialization(stream, responseSender, method, promiseResponse); // getPromiseType()
@@ -105,7 +217,7 @@ public class RPCResponse extends AbstractCall {
         if (!method.hasFutureReturn()) {
             stream.writeEnum(status);
             if (status == FutureStatus.READY) {
-                Serialization.returnSerialization(stream, resultBuffer, method.getNativeMethod().getReturnType(), this);
+                Serialization.returnSerialization(stream, resultBuffer, method, this);
             }
         } else {
             if (status == FutureStatus.READY) {
@@ -120,7 +232,7 @@ public class RPCResponse extends AbstractCall {
                     Log.log(LogLevel.ERROR, this, "This must not happen");
                     throw new RuntimeException(e);
                 }
-                Serialization.returnSerialization(stream, this.resultBuffer, method.getFutureType(), this);
+                Serialization.returnSerialization(stream, this.resultBuffer, method, this);
             }
         }
     }
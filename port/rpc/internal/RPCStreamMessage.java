@@ -0,0 +1,227 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.port.rpc.internal;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.finroc.core.port.rpc.FutureStatus;
+import org.finroc.core.port.rpc.Method;
+import org.rrlib.finroc_core_utils.jc.container.WonderQueue;
+import org.rrlib.logging.Log;
+import org.rrlib.logging.LogLevel;
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+
+
+/**
+ * @author Max Reichardt
+ *
+ * Message of a result stream (see ResultStream) that is transferred between
+ * runtime environments.
+ *
+ * Producer sends values and a final completion or error signal.
+ * Consumer sends credits (number of values it is ready to receive) and
+ * cancellation.
+ *
+ * Messages are addressed to stream ids that are unique in the receiving runtime environment.
+ * Every message also contains the stream id of the sender - so that messages
+ * to unknown streams can be answered with cancellation.
+ */
+public class RPCStreamMessage extends AbstractCall {
+
+    /** Commands in stream messages */
+    public enum Command {
+        CREDIT,   //!< Consumer grants producer credits for additional values
+        CANCEL,   //!< Consumer cancels stream
+        VALUE,    //!< Producer sends value
+        COMPLETE, //!< Producer completed stream
+        ERROR     //!< Producer failed stream
+    }
+
+    /**
+     * Endpoint of a stream in this runtime environment
+     */
+    public interface Endpoint {
+
+        /**
+         * Called when message for this stream endpoint was received
+         *
+         * @param command Command
+         * @param senderStreamId Stream id of sender
+         * @param credits Credits (CREDIT command)
+         * @param value Value (VALUE command)
+         * @param status Error status (ERROR command)
+         */
+        public void handleStreamMessage(Command command, long senderStreamId, int credits, Object value, FutureStatus status);
+    }
+
+    /** Stream id of receiver and sender */
+    private long streamId, senderStreamId;
+
+    /** Command in message */
+    private Command command;
+
+    /** Payload */
+    private int credits;
+    private Object value;
+    private FutureStatus status;
+
+    /** Stream endpoints in this runtime environment by stream id (endpoints unregister when finished - or expired, see ResultStream) */
+    private static final ConcurrentHashMap<Long, Endpoint> endpoints = new ConcurrentHashMap<Long, Endpoint>();
+
+    /** Pool with unused messages */
+    private static final WonderQueue<AbstractCall> unused = new WonderQueue<AbstractCall>();
+
+    public RPCStreamMessage() {
+        super.callType = CallType.RPC_STREAM;
+    }
+
+    /**
+     * Obtains (pooled) stream message
+     * (network transport should release() it after it has been sent)
+     *
+     * @param method Method that returned stream
+     * @param streamId Stream id of receiver
+     * @param senderStreamId Stream id of sender
+     * @param command Command
+     * @return Message with one reference
+     */
+    public static RPCStreamMessage getUnused(Method method, long streamId, long senderStreamId, Command command) {
+        RPCStreamMessage message = (RPCStreamMessage)AbstractCall.getUnused(unused);
+        if (message == null) {
+            message = new RPCStreamMessage();
+            message.attachToPool(unused);
+        }
+        message.method = method;
+        message.streamId = streamId;
+        message.senderStreamId = senderStreamId;
+        message.command = command;
+        return message;
+    }
+
+    /**
+     * Registers stream endpoint
+     *
+     * @param endpoint Endpoint
+     * @return Stream id assigned to endpoint
+     */
+    public static long register(Endpoint endpoint) {
+        long id = PendingCalls.getInstance().nextCallId();
+        endpoints.put(id, endpoint);
+        return id;
+    }
+
+    /**
+     * Unregisters stream endpoint
+     *
+     * @param streamId Stream id of endpoint
+     */
+    public static void unregister(long streamId) {
+        endpoints.remove(streamId);
+    }
+
+    /**
+     * @return Number of registered stream endpoints in this runtime environment
+     */
+    public static int getActiveStreamCount() {
+        return endpoints.size();
+    }
+
+    /**
+     * @param credits Credits (CREDIT command)
+     */
+    public void setCredits(int credits) {
+        this.credits = credits;
+    }
+
+    /**
+     * @param value Value (VALUE command)
+     */
+    public void setValue(Object value) {
+        this.value = value;
+    }
+
+    /**
+     * @param status Error status (ERROR command)
+     */
+    public void setStatus(FutureStatus status) {
+        this.status = status;
+    }
+
+    @Override
+    protected void reset() {
+        super.reset();
+        streamId = 0;
+        senderStreamId = 0;
+        command = null;
+        credits = 0;
+        value = null;
+        status = null;
+    }
+
+    @Override
+    public void serialize(BinaryOutputStream stream) {
+        // Deserialized by network transport implementation
+        stream.writeType(method.getInterfaceType());
+        stream.writeByte(method.getMethodID());
+
+        // Deserialized by this class
+        stream.writeLong(streamId);
+        stream.writeLong(senderStreamId);
+        stream.writeEnum(command);
+        if (command == Command.CREDIT) {
+            stream.writeInt(credits);
+        } else if (command == Command.VALUE) {
+            stream.writeObject(value, method.getStreamType());
+        } else if (command == Command.ERROR) {
+            stream.writeEnum(status);
+        }
+    }
+
+    public static void deserializeAndExecuteCallImplementation(BinaryInputStream stream, Method method, ResponseSender responseSender) {
+        try {
+            long streamId = stream.readLong();
+            long senderStreamId = stream.readLong();
+            Command command = stream.readEnum(Command.class);
+            int credits = 0;
+            Object value = null;
+            FutureStatus status = null;
+            if (command == Command.CREDIT) {
+                credits = stream.readInt();
+            } else if (command == Command.VALUE) {
+                value = stream.readObject(method.getStreamType());
+            } else if (command == Command.ERROR) {
+                status = stream.readEnum(FutureStatus.class);
+            }
+
+            Endpoint endpoint = endpoints.get(streamId);
+            if (endpoint != null) {
+                endpoint.handleStreamMessage(command, senderStreamId, credits, value, status);
+            } else if (command == Command.CREDIT || command == Command.VALUE) {
+                // stream no longer exists: tell other side to stop
+                responseSender.sendResponse(getUnused(method, senderStreamId, streamId, Command.CANCEL));
+            }
+        } catch (Exception e) {
+            Log.log(LogLevel.DEBUG, "Incoming RPC stream message caused exception: ", e);
+        }
+    }
+}
@@ -31,6 +31,7 @@ public interface ResponseSender {
 
     /**
      * Called with any responses that need to be returned to caller
+     * (response should be released via AbstractCall.release() after it has been sent)
      *
      * @param responseToSend Response to send back to caller
      */
@@ -23,6 +23,7 @@ package org.finroc.core.port.rpc.internal;
 
 import org.finroc.core.port.rpc.Method;
 import org.finroc.core.port.rpc.Promise;
+import org.finroc.core.port.rpc.ResultStream;
 import org.rrlib.serialization.BinaryInputStream;
 import org.rrlib.serialization.BinaryOutputStream;
 import org.rrlib.serialization.BinarySerializable;
@@ -36,51 +37,65 @@ import org.rrlib.serialization.BinarySerializable;
 public class Serialization {
 
     /**
-     * Serializes return values of specified type
+     * Serializes return value of specified method
      *
      * @param stream Stream to serialize to
      * @param object Object to serialize
-     * @param type Type object must have
+     * @param method Method that returned object
      * @param storage Abstract Call
      */
-    public static void returnSerialization(BinaryOutputStream stream, Object object, Class<?> type, AbstractCall storage) {
-        assert(object != null && object.getClass() == type);
-        if (type == Promise.class) {
+    public static void returnSerialization(BinaryOutputStream stream, Object object, Method method, AbstractCall storage) {
+        assert(object != null && object.getClass() == method.getResultType());
+        switch (method.getResultEncoding()) {
+        case PROMISE:
             stream.writeLong(storage.callId);
-        } else if (Promise.class.isAssignableFrom(type)) {
+            break;
+        case PROMISE_SUBCLASS:
             stream.writeLong(storage.callId);
-            stream.writeObject(object, type);
-        } else {
-            stream.writeObject(object, type);
+            stream.writeObject(object, method.getResultType());
+            break;
+        case STREAM:
+            stream.writeLong(((ResultStream)object).getStreamId());
+            break;
+        default:
+            stream.writeObject(object, method.getResultType());
         }
     }
 
     /**
-     * Serializes return values of specified type
+     * Deserializes return value of specified method
+     * (uses the result encoding precomputed in Method - no reflection)
      *
-     * @param stream Stream to serialize to
-     * @param object Object to serialize
-     * @param type Type object must have
-     * @param storage Abstract Call
+     * @param stream Stream to deserialize from
+     * @param responseSender Sends responses back (used by remote promises and streams)
+     * @param method Method that returned value
+     * @param promiseResponse Is this a response to a promise?
+     * @return Deserialized value
      */
     public static Object returnDeserialization(BinaryInputStream stream, ResponseSender responseSender, Method method, boolean promiseResponse) throws Exception {
         if (promiseResponse) {
             return stream.readObject(method.getPromiseType());
-        } else {
-            Class<?> type = method.hasFutureReturn() ? method.getFutureType() : method.getNativeMethod().getReturnType();
-            if (type == Promise.class) {
-                Promise result = new Promise();
-                result.setRemotePromise(method, stream.readLong(), responseSender);
-                return result;
-            } else if (Promise.class.isAssignableFrom(type)) {
-                BinarySerializable result = (BinarySerializable)type.newInstance();
-                long callId = stream.readLong();
-                result.deserialize(stream);
-                ((Promise)result).setRemotePromise(method, callId, responseSender);
-                return result;
-            } else {
-                return stream.readObject(type);
-            }
+        }
+        switch (method.getResultEncoding()) {
+        case PROMISE: {
+            Promise result = new Promise();
+            result.setRemotePromise(method, stream.readLong(), responseSender);
+            return result;
+        }
+        case PROMISE_SUBCLASS: {
+            BinarySerializable result = (BinarySerializable)method.newResultInstance();
+            long callId = stream.readLong();
+            result.deserialize(stream);
+            ((Promise)result).setRemotePromise(method, callId, responseSender);
+            return result;
+        }
+        case STREAM: {
+            ResultStream result = new ResultStream();
+            result.connectRemoteProducer(method, stream.readLong(), responseSender);
+            return result;
+        }
+        default:
+            return stream.readObject(method.getResultType());
         }
     }
 }
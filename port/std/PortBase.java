@@ -33,6 +33,7 @@ import org.finroc.core.port.MultiTypePortDataBufferPool;
 import org.finroc.core.port.PortCreationInfo;
 import org.finroc.core.port.PortListener;
 import org.finroc.core.port.PortListenerManager;
+import org.finroc.core.port.PublishFilter;
 import org.finroc.core.port.ThreadLocalCache;
 import org.finroc.core.portdatabase.FinrocTypeInfo;
 import org.finroc.core.remote.RemoteType;
@@ -286,6 +287,11 @@ public class PortBase extends AbstractPort { /*implements Callable<PullCall>*/
             return;
         }
 
+        PublishFilter filter = publishFilter;
+        if (filter != null && !reverse && !browserPublish && !filter.accept(this, data)) {
+            return;
+        }
+
         // assign
         ArrayWrapper<PortBase> dests = reverse ? edgesDest.getIterable() : edgesSrc.getIterable();
 
@@ -31,6 +31,10 @@ package org.finroc.core.remote;
  *
  * The model this handler manages must only be modified using the methods provided here.
  * All methods are thread-safe (may be called from any thread - possibly concurrently)
+ *
+ * Many modifications can be combined into a single updateModel() transaction using ModelUpdateBatch.
+ * Implementations should therefore execute operations directly when they are called from within
+ * one of their update tasks (instead of dispatching them again).
  */
 public interface ModelHandler {
 
@@ -24,6 +24,7 @@ package org.finroc.core.remote;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 
 
 /**
@@ -31,15 +32,30 @@ import java.util.Comparator;
  *
  * Base class for all (tree) elements in the model of the remote runtime
  * environment.
+ *
+ * Nodes with many children maintain a hashed index of their children's names,
+ * so that lookups by name and qualified name do not need to scan the children.
  */
 public class ModelNode {
 
+    /** Nodes with at least this number of children maintain a child name index */
+    private static final int CHILD_INDEX_THRESHOLD = 8;
+
     /** Name of node - as displayed in tree */
     private String name;
 
     /** Children of node */
     private ArrayList<ModelNode> children;
 
+    /** Index of children by name - maps to first child with name (null if not created yet or invalidated) */
+    private HashMap<String, ModelNode> childIndex;
+
+    /** Are there children with identical names? (only valid while childIndex exists) */
+    private boolean duplicateChildNames;
+
+    /** Incremented whenever children are added, removed or replaced */
+    int childModificationCount;
+
     /** Node's parent */
     private ModelNode parent;
 
@@ -113,6 +129,16 @@ public class ModelNode {
      * @param name New name of model node
      */
     public void setName(String name) {
+        if (parent != null && parent.childIndex != null && !name.equals(this.name)) {
+            if (parent.duplicateChildNames || parent.childIndex.containsKey(name)) {
+                parent.childIndex = null; // rebuild (order of children with identical names matters)
+            } else {
+                if (parent.childIndex.get(this.name) == this) {
+                    parent.childIndex.remove(this.name);
+                }
+                parent.childIndex.put(name, this);
+            }
+        }
         this.name = name;
     }
 
@@ -125,6 +151,9 @@ public class ModelNode {
     public void sortChildren(Comparator<ModelNode> comparator) {
         if (this.children != null) {
             Collections.sort(this.children, comparator);
+            if (duplicateChildNames) {
+                childIndex = null;
+            }
         }
     }
 
@@ -233,14 +262,88 @@ public class ModelNode {
      * @return Child with specified name - or NULL if no child with specified name exists
      */
     public ModelNode getChildByName(String name) {
+        HashMap<String, ModelNode> index = getChildIndex();
+        if (index != null) {
+            return index.get(name);
+        }
         for (int i = 0; i < getChildCount(); i++) {
-            if (getChildAt(i).toString().equals(name)) {
+            if (getChildAt(i).name.equals(name)) {
                 return (ModelNode)getChildAt(i);
             }
         }
         return null;
     }
 
+    /**
+     * @return Index of children by name - or null if this node has only few children
+     */
+    private HashMap<String, ModelNode> getChildIndex() {
+        if (children == null || children.size() < CHILD_INDEX_THRESHOLD) {
+            return null;
+        }
+        if (childIndex == null) {
+            HashMap<String, ModelNode> index = new HashMap<String, ModelNode>(children.size() * 2);
+            duplicateChildNames = false;
+            for (ModelNode child : children) {
+                if (index.containsKey(child.name)) {
+                    duplicateChildNames = true;
+                } else {
+                    index.put(child.name, child);
+                }
+            }
+            childIndex = index;
+        }
+        return childIndex;
+    }
+
+    /**
+     * Updates child index after child was appended
+     *
+     * @param child New child
+     */
+    private void childAppended(ModelNode child) {
+        childModificationCount++;
+        if (childIndex != null) {
+            if (childIndex.containsKey(child.name)) {
+                duplicateChildNames = true;
+            } else {
+                childIndex.put(child.name, child);
+            }
+        }
+    }
+
+    /**
+     * Updates child index after child was inserted (possibly before a child with the same name)
+     *
+     * @param child New child
+     */
+    private void childInserted(ModelNode child) {
+        childModificationCount++;
+        if (childIndex != null) {
+            if (childIndex.containsKey(child.name)) {
+                childIndex = null; // rebuild
+            } else {
+                childIndex.put(child.name, child);
+            }
+        }
+    }
+
+    /**
+     * Updates child index after child was removed
+     *
+     * @param child Removed child
+     */
+    private void childRemoved(ModelNode child) {
+        childModificationCount++;
+        if (childIndex != null) {
+            if (duplicateChildNames) {
+                childIndex = null; // rebuild - another child with the same name might become the first one
+            } else if (childIndex.get(child.name) == child) {
+                childIndex.remove(child.name);
+            }
+        }
+    }
+
     /**
      * Returns a child with the specified qualified name
      *
@@ -264,6 +367,26 @@ public class ModelNode {
         if (children == null) {
             return null;
         }
+        HashMap<String, ModelNode> index = getChildIndex();
+        if (index != null && !duplicateChildNames) {
+            // child names may contain separator - so try all possible lengths of first name
+            int length = qualifiedName.length();
+            for (int end = qualifiedName.indexOf(separator, qualifiedNameStartIndex); ; end = qualifiedName.indexOf(separator, end + 1)) {
+                ModelNode child = index.get(qualifiedName.substring(qualifiedNameStartIndex, end < 0 ? length : end));
+                if (child != null) {
+                    if (end < 0) {
+                        return child;
+                    }
+                    ModelNode result = child.getChildByQualifiedName(qualifiedName, end + 1, separator);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+                if (end < 0) {
+                    return null;
+                }
+            }
+        }
         for (ModelNode child : children) {
             if (qualifiedName.regionMatches(qualifiedNameStartIndex, child.name, 0, child.name.length())) {
                 if (child.name.length() == qualifiedName.length() - qualifiedNameStartIndex) {
@@ -300,6 +423,7 @@ public class ModelNode {
             children = new ArrayList<ModelNode>();
         }
         children.add(newChild);
+        childAppended(newChild);
     }
 
     /**
@@ -315,6 +439,7 @@ public class ModelNode {
         if (child.parent == this) {
             children.remove(child);
             child.parent = null;
+            childRemoved(child);
         }
     }
 
@@ -340,6 +465,8 @@ public class ModelNode {
             }
             children.set(i, newChild).parent = null;
             newChild.parent = this;
+            childRemoved(oldChild);
+            childInserted(newChild);
         }
     }
 
@@ -369,6 +496,7 @@ public class ModelNode {
             children = new ArrayList<ModelNode>();
         }
         children.add(i, newChild);
+        childInserted(newChild);
     }
 
     @Override
@@ -0,0 +1,148 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.remote;
+
+import java.util.ArrayList;
+
+/**
+ * @author Max Reichardt
+ *
+ * Collects model modifications and passes them to a ModelHandler in a single
+ * updateModel() transaction (see flush()).
+ *
+ * When building or updating large models (e.g. thousands of elements received on connect),
+ * this avoids dispatching every single node operation to the model thread separately.
+ * Operations are executed in the order they were added - from within one update task.
+ * The wrapped handler should therefore execute operations directly when called from
+ * its own update tasks (e.g. when already on the Swing UI thread).
+ *
+ * (not thread-safe - use one batch per thread)
+ */
+public class ModelUpdateBatch implements ModelHandler {
+
+    /** Operation codes */
+    private static final byte ADD = 0, CHANGE_NAME = 1, REMOVE = 2, REPLACE = 3, SET_ROOT = 4, UPDATE = 5;
+
+    /** Single model operation */
+    private static class Operation {
+
+        /** Operation code */
+        final byte opcode;
+
+        /** Parameters */
+        final Object parameter1, parameter2;
+
+        Operation(byte opcode, Object parameter1, Object parameter2) {
+            this.opcode = opcode;
+            this.parameter1 = parameter1;
+            this.parameter2 = parameter2;
+        }
+    }
+
+    /** Handler that operations are passed to */
+    private final ModelHandler handler;
+
+    /** Operations collected since last flush */
+    private ArrayList<Operation> operations = new ArrayList<Operation>();
+
+    /**
+     * @param handler Handler that operations are passed to
+     */
+    public ModelUpdateBatch(ModelHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void addNode(ModelNode parent, ModelNode newChild) {
+        operations.add(new Operation(ADD, parent, newChild));
+    }
+
+    @Override
+    public void changeNodeName(ModelNode node, String newName) {
+        operations.add(new Operation(CHANGE_NAME, node, newName));
+    }
+
+    @Override
+    public void removeNode(ModelNode childToRemove) {
+        operations.add(new Operation(REMOVE, childToRemove, null));
+    }
+
+    @Override
+    public void replaceNode(ModelNode oldNode, ModelNode newNode) {
+        operations.add(new Operation(REPLACE, oldNode, newNode));
+    }
+
+    @Override
+    public void setModelRoot(ModelNode root) {
+        operations.add(new Operation(SET_ROOT, root, null));
+    }
+
+    @Override
+    public void updateModel(Runnable updateTask) {
+        operations.add(new Operation(UPDATE, updateTask, null));
+    }
+
+    /**
+     * @return Number of operations collected since last flush
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * Passes all collected operations to handler - in a single updateModel() call
+     */
+    public void flush() {
+        if (operations.isEmpty()) {
+            return;
+        }
+        final ArrayList<Operation> batch = operations;
+        operations = new ArrayList<Operation>();
+        handler.updateModel(new Runnable() {
+            @Override
+            public void run() {
+                for (Operation op : batch) {
+                    switch (op.opcode) {
+                    case ADD:
+                        handler.addNode((ModelNode)op.parameter1, (ModelNode)op.parameter2);
+                        break;
+                    case CHANGE_NAME:
+                        handler.changeNodeName((ModelNode)op.parameter1, (String)op.parameter2);
+                        break;
+                    case REMOVE:
+                        handler.removeNode((ModelNode)op.parameter1);
+                        break;
+                    case REPLACE:
+                        handler.replaceNode((ModelNode)op.parameter1, (ModelNode)op.parameter2);
+                        break;
+                    case SET_ROOT:
+                        handler.setModelRoot((ModelNode)op.parameter1);
+                        break;
+                    case UPDATE:
+                        ((Runnable)op.parameter1).run();
+                        break;
+                    }
+                }
+            }
+        });
+    }
+}
@@ -59,6 +59,9 @@ public class RemoteFrameworkElement extends ModelNode {
     /** List of editable interfaces of this element - if it has any (lazily initialized). List may contain empty, not-yet-existent interfaces (that could be created). They have remoteHandle 0. */
     private ArrayList<RemoteFrameworkElement> editableInterfaces;
 
+    /** Value of childModificationCount when ports of interface were last checked for classification (-1 if they have not been checked with current flags of interface and children) */
+    private int classifiedChildModificationCount = -1;
+
 
     /**
      * @param remoteHandle Handle of remote framework element handle
@@ -95,6 +98,10 @@ public class RemoteFrameworkElement extends ModelNode {
      */
     public void setFlags(int flags) {
         this.flags = flags;
+        classifiedChildModificationCount = -1;
+        if (getParent() instanceof RemoteFrameworkElement) {
+            ((RemoteFrameworkElement)getParent()).classifiedChildModificationCount = -1; // flags of child port are relevant for parent's interface classification
+        }
     }
 
     /**
@@ -346,7 +353,8 @@ public class RemoteFrameworkElement extends ModelNode {
                     flags |= FrameworkElementFlags.CONTROLLER_DATA;
                 }
             }
-            if ((flags & FrameworkElementFlags.FINAL_INTERFACE_CLASSIFICATION) == 0) {
+            if ((flags & FrameworkElementFlags.FINAL_INTERFACE_CLASSIFICATION) == 0 && classifiedChildModificationCount != childModificationCount) {
+                classifiedChildModificationCount = childModificationCount; // children only need to be checked again if they changed
                 for (int i = 0; i < getChildCount(); i++) {
                     if (getChildAt(i) instanceof RemotePort) {
                         RemotePort remotePort = (RemotePort)getChildAt(i);
@@ -24,6 +24,7 @@ package org.finroc.core.remote;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 
 import org.finroc.core.FinrocAnnotation;
 import org.finroc.core.FrameworkElement;
@@ -47,6 +48,12 @@ public class RemotePort extends RemoteFrameworkElement implements HasUid, PortWr
 
     public static final DataTypeBase TYPE = new DataType<RemotePortLink>(RemotePortLink.class);
 
+    /** Data type of edge index annotation */
+    private static final DataTypeBase EDGE_INDEX_TYPE = new DataType<EdgeIndex>(EdgeIndex.class);
+
+    /** Lock for all edge indexes */
+    private static final Object edgeIndexLock = new Object();
+
     /**
      * @param remoteHandle Remote handle of port
      * @param name Name of port
@@ -103,6 +110,114 @@ public class RemotePort extends RemoteFrameworkElement implements HasUid, PortWr
         }
     }
 
+    /**
+     * Forward and reverse edge index of a port
+     * (attached to ports whose remote edges are indexed - and to their destinations)
+     */
+    private static class EdgeIndex extends FinrocAnnotation {
+
+        /** Destinations of port's remote edges (as of last index update) */
+        final ArrayList<AbstractPort> destinations = new ArrayList<AbstractPort>(2);
+
+        /** Ports whose remote edges lead to this port */
+        final ArrayList<AbstractPort> sources = new ArrayList<AbstractPort>(2);
+
+        @Override
+        protected void annotatedObjectToBeDeleted() {
+            synchronized (edgeIndexLock) {
+                for (AbstractPort destination : destinations) {
+                    EdgeIndex index = getEdgeIndex(destination, false);
+                    if (index != null) {
+                        index.sources.remove(getAnnotated());
+                    }
+                }
+                for (AbstractPort source : sources) {
+                    EdgeIndex index = getEdgeIndex(source, false);
+                    if (index != null) {
+                        index.destinations.remove(getAnnotated());
+                    }
+                }
+                destinations.clear();
+                sources.clear();
+            }
+        }
+    }
+
+    /**
+     * @param port Port
+     * @param create Create index if port has none?
+     * @return Edge index of port (null if it has none and create is false)
+     */
+    private static EdgeIndex getEdgeIndex(AbstractPort port, boolean create) {
+        EdgeIndex index = (EdgeIndex)port.getAnnotation(EDGE_INDEX_TYPE);
+        if (index == null && create) {
+            index = new EdgeIndex();
+            port.addAnnotation(index);
+        }
+        return index;
+    }
+
+    /**
+     * Updates forward and reverse edge index after remote edges of a network port changed (or were received initially).
+     * Network transports that do this for all ports of a remote runtime should mark it via
+     * RemoteRuntime.setEdgeIndexMaintained() - then getIncomingConnections() takes incoming connections from
+     * these ports from the index instead of searching the runtime's part of the model.
+     *
+     * @param netPort Network port whose remote edges changed
+     */
+    public static void updateEdgeIndex(NetPort netPort) {
+        AbstractPort source = netPort.getPort();
+        List<AbstractPort> newDestinations = netPort.getRemoteEdgeDestinations();
+        synchronized (edgeIndexLock) {
+            EdgeIndex index = getEdgeIndex(source, true);
+            for (AbstractPort oldDestination : index.destinations) {
+                if (!newDestinations.contains(oldDestination)) {
+                    EdgeIndex destinationIndex = getEdgeIndex(oldDestination, false);
+                    if (destinationIndex != null) {
+                        destinationIndex.sources.remove(source);
+                    }
+                }
+            }
+            for (AbstractPort newDestination : newDestinations) {
+                if (!index.destinations.contains(newDestination)) {
+                    EdgeIndex destinationIndex = getEdgeIndex(newDestination, true);
+                    if (!destinationIndex.sources.contains(source)) {
+                        destinationIndex.sources.add(source);
+                    }
+                }
+            }
+            index.destinations.clear();
+            index.destinations.addAll(newDestinations);
+        }
+    }
+
+    /**
+     * Updates edge index for all network ports in specified part of remote model - called recursively
+     *
+     * @param node Current node
+     */
+    static void updateEdgeIndex(ModelNode node) {
+        if (node.getClass() == RemotePort.class) {
+            NetPort netPort = ((RemotePort)node).getPort().asNetPort();
+            if (netPort != null) {
+                updateEdgeIndex(netPort);
+            }
+        }
+
+        for (int i = 0; i < node.getChildCount(); i++) {
+            updateEdgeIndex(node.getChildAt(i));
+        }
+    }
+
+    /**
+     * @param remotePort Remote port
+     * @return Is edge index of remote port's runtime maintained? (see updateEdgeIndex())
+     */
+    private static boolean isEdgeIndexMaintained(RemotePort remotePort) {
+        RemoteRuntime runtime = RemoteRuntime.find(remotePort);
+        return runtime != null && runtime.isEdgeIndexMaintained();
+    }
+
     @Override
     public String getUid() {
         StringBuilder sb = new StringBuilder();
@@ -131,23 +246,43 @@ public class RemotePort extends RemoteFrameworkElement implements HasUid, PortWr
     }
 
     /**
-     * (note: this can be quite computationally expensive - O(n) with n being the number of connections in the remote model (searches through all connections))
+     * (note: this can be quite computationally expensive - O(n) with n being the number of connections in the remote model
+     *  (searches through all connections) - except of connections from runtimes whose edge index is maintained (see updateEdgeIndex()))
      *
      * @return Incoming connections in remote runtime and also outgoing network connections initiated by some other remote runtime
      */
     public Collection<RemotePort> getIncomingConnections() {
         final HashSet<RemotePort> result = new HashSet<RemotePort>();
+        synchronized (edgeIndexLock) {
+            EdgeIndex index = getEdgeIndex(getPort(), false);
+            if (index != null) {
+                for (AbstractPort source : index.sources) {
+                    RemotePort[] remotePorts = RemotePort.get(source);
+                    if (remotePorts != null && source != this.getPort()) {
+                        for (RemotePort remotePort : remotePorts) {
+                            if (remotePort != null && isEdgeIndexMaintained(remotePort)) {
+                                result.add(remotePort);
+                            }
+                        }
+                    }
+                }
+            }
+        }
         getIncomingConnectionsHelper(result, this.getRoot());
         return result;
     }
 
     /**
      * Helper for getIncomingConnections() - called recursively
+     * (skips runtimes whose edge index is maintained)
      *
      * @param result List with result
      * @param node Current node
      */
     private void getIncomingConnectionsHelper(HashSet<RemotePort> result, ModelNode node) {
+        if (node instanceof RemoteRuntime && ((RemoteRuntime)node).isEdgeIndexMaintained()) {
+            return;
+        }
         if (node.getClass() == RemotePort.class) {
             AbstractPort otherPort = ((RemotePort)node).getPort();
             NetPort netPort = otherPort.asNetPort();
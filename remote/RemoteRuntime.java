@@ -21,10 +21,11 @@
 //----------------------------------------------------------------------
 package org.finroc.core.remote;
 
-import java.util.HashMap;
+import java.util.Map;
 
 import org.finroc.core.admin.AdminClient;
 import org.finroc.core.port.net.NetPort;
+import org.finroc.core.util.IntHashMap;
 
 /**
  * @author Max Reichardt
@@ -42,13 +43,21 @@ public class RemoteRuntime extends RemoteFrameworkElement {
 
     /**
      * Lookup for remote framework elements: remote handle => remote framework element
-     * (should only be accessed by model thread)
+     * (should only be accessed by model thread; handles are not boxed)
+     *
+     * Note: This used to be a HashMap<Integer, RemoteFrameworkElement>. Changing the field's type is a breaking change:
+     * Code compiled against the old type must be recompiled - and code using other java.util.Map methods
+     * (e.g. values() or entrySet()) or assigning the field to a Map must use getElementLookupMap() instead.
+     * The get/put/remove methods remain source-compatible for int handles.
      */
-    public final HashMap<Integer, RemoteFrameworkElement> elementLookup = new HashMap<Integer, RemoteFrameworkElement>();
+    public final IntHashMap<RemoteFrameworkElement> elementLookup = new IntHashMap<RemoteFrameworkElement>(1024);
 
     /** Remote Runtime's UUID */
     public final String uuid;
 
+    /** Does network transport keep edge index of this runtime's ports up to date? (see RemotePort.updateEdgeIndex()) */
+    private volatile boolean edgeIndexMaintained;
+
     public RemoteRuntime(String name, String uuid, AdminClient adminInterface, RemoteTypes remoteTypes) {
         super(0, name);
         this.uuid = uuid;
@@ -78,6 +87,25 @@ public class RemoteRuntime extends RemoteFrameworkElement {
         return remoteTypes;
     }
 
+    /**
+     * @return Does network transport keep edge index of this runtime's ports up to date? (see RemotePort.updateEdgeIndex())
+     */
+    public boolean isEdgeIndexMaintained() {
+        return edgeIndexMaintained;
+    }
+
+    /**
+     * @param edgeIndexMaintained Does network transport keep edge index of this runtime's ports up to date?
+     *                            (it needs to call RemotePort.updateEdgeIndex() whenever remote edges of a port change -
+     *                            when enabled, index is built from the ports currently in this runtime's model)
+     */
+    public void setEdgeIndexMaintained(boolean edgeIndexMaintained) {
+        if (edgeIndexMaintained && !this.edgeIndexMaintained) {
+            RemotePort.updateEdgeIndex(this);
+        }
+        this.edgeIndexMaintained = edgeIndexMaintained;
+    }
+
     /**
      * Find RemoteRuntime to which specified port belongs to
      *
@@ -107,6 +135,13 @@ public class RemoteRuntime extends RemoteFrameworkElement {
         return null;
     }
 
+    /**
+     * @return Map view of elementLookup (for code that requires a java.util.Map - see IntHashMap.asMap(); should only be accessed by model thread)
+     */
+    public Map<Integer, RemoteFrameworkElement> getElementLookupMap() {
+        return elementLookup.asMap();
+    }
+
     /**
      * @param handle Remote handle
      * @return Framework element that represents remote framework element with this remote handle
@@ -21,7 +21,16 @@
 //----------------------------------------------------------------------
 package org.finroc.core.remote;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import org.rrlib.finroc_core_utils.jc.ArrayWrapper;
@@ -40,6 +49,13 @@ import org.finroc.core.portdatabase.FinrocTypeInfo;
  * @author Max Reichardt
  *
  * This class aggregates information about types used in remote runtime environments.
+ *
+ * Type tables received from remote runtime environments may be cached on disk
+ * (see enableTypeTableCache()). On connect, the receiving side tells its partner the
+ * hash and size of the table it has cached (getCachedTypeTableHash(), getCachedTypeTableSize()
+ * - transferred by the network transport's handshake). If the partner's first types match
+ * this table (setPeerTypeTableCache()), the partner only sends a reference to the cached table
+ * followed by the types that were added since.
  */
 public class RemoteTypes implements TypeEncoder {
 
@@ -66,6 +82,166 @@ public class RemoteTypes implements TypeEncoder {
         }
     }
 
+    /** Information on a single type as transferred over the network (and stored in type table cache) */
+    private static class TypeRecord {
+
+        /** Type uid in runtime environment that sends type */
+        short uid;
+
+        /** Default update time of type */
+        short time;
+
+        /** Finroc type (ordinal of FinrocTypeInfo.Type) */
+        byte type;
+
+        /** Type name */
+        String name;
+
+        /** Type traits */
+        byte traits;
+
+        /** Enum constant strings (possibly with value appended after '|') - null if type is no enum */
+        String[] enumStrings;
+
+        /**
+         * @param uid Uid of local type
+         * @return Record describing local type
+         */
+        static TypeRecord fromLocalType(short uid) {
+            DataTypeBase dt = DataTypeBase.getType(uid);
+            TypeRecord r = new TypeRecord();
+            r.uid = dt.getUid();
+            r.time = FinrocTypeInfo.get(uid).getUpdateTime();
+            r.type = (byte)FinrocTypeInfo.get(uid).getType().ordinal();
+            r.name = dt.getName();
+            r.traits = (byte)dt.getTypeTraits();
+            Object[] enumConstants = dt.getEnumConstants();
+            if (enumConstants != null) {
+                assert(enumConstants.length <= Short.MAX_VALUE);
+                r.enumStrings = new String[enumConstants.length];
+                for (int j = 0; j < enumConstants.length; j++) {
+                    r.enumStrings[j] = enumConstants[j].toString();
+                }
+            }
+            return r;
+        }
+
+        /**
+         * Reads record from network stream
+         *
+         * @param uid Uid (already read)
+         * @param ci Stream to read remaining data from
+         */
+        static TypeRecord read(short uid, BinaryInputStream ci) {
+            TypeRecord r = new TypeRecord();
+            r.uid = uid;
+            r.time = ci.readShort();
+            r.type = ci.readByte();
+            r.name = ci.readString();
+            r.traits = ci.readByte();
+            if ((r.traits & DataTypeBase.IS_ENUM) != 0) {
+                r.enumStrings = new String[ci.readShort()];
+                for (int i = 0; i < r.enumStrings.length; i++) {
+                    r.enumStrings[i] = ci.readString();
+                }
+            }
+            return r;
+        }
+
+        /**
+         * Writes record to network stream
+         */
+        void write(BinaryOutputStream co) {
+            co.writeShort(uid);
+            co.writeShort(time);
+            co.writeByte(type);
+            co.writeString(name);
+            co.writeByte(traits);
+            if (enumStrings != null) {
+                co.writeShort(enumStrings.length);
+                for (String s : enumStrings) {
+                    co.writeString(s);
+                }
+            }
+        }
+
+        /**
+         * Reads record from cache file
+         */
+        static TypeRecord read(DataInputStream in) throws IOException {
+            TypeRecord r = new TypeRecord();
+            r.uid = in.readShort();
+            r.time = in.readShort();
+            r.type = in.readByte();
+            r.name = in.readUTF();
+            r.traits = in.readByte();
+            if ((r.traits & DataTypeBase.IS_ENUM) != 0) {
+                r.enumStrings = new String[in.readShort()];
+                for (int i = 0; i < r.enumStrings.length; i++) {
+                    r.enumStrings[i] = in.readUTF();
+                }
+            }
+            return r;
+        }
+
+        /**
+         * Writes record to cache file
+         */
+        void write(DataOutputStream out) throws IOException {
+            out.writeShort(uid);
+            out.writeShort(time);
+            out.writeByte(type);
+            out.writeUTF(name);
+            out.writeByte(traits);
+            if (enumStrings != null) {
+                out.writeShort(enumStrings.length);
+                for (String s : enumStrings) {
+                    out.writeUTF(s);
+                }
+            }
+        }
+
+        /**
+         * @param hash Hash of preceding records
+         * @return Hash including this record (64 bit FNV-1a)
+         */
+        long hash(long hash) {
+            hash = hash(hash, uid);
+            hash = hash(hash, time);
+            hash = hash(hash, type);
+            hash = hash(hash, name);
+            hash = hash(hash, traits);
+            if (enumStrings != null) {
+                hash = hash(hash, enumStrings.length);
+                for (String s : enumStrings) {
+                    hash = hash(hash, s);
+                }
+            }
+            return hash;
+        }
+
+        private static long hash(long hash, int value) {
+            for (int i = 0; i < 4; i++) {
+                hash = (hash ^ ((value >>> (8 * i)) & 0xFF)) * FNV_PRIME;
+            }
+            return hash;
+        }
+
+        private static long hash(long hash, String s) {
+            hash = hash(hash, s.length());
+            for (int i = 0; i < s.length(); i++) {
+                hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+            }
+            return hash;
+        }
+    }
+
+    /** Constants for FNV-1a hashing of type tables */
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L, FNV_PRIME = 0x100000001b3L;
+
+    /** Identifies type table cache files (and their format version) */
+    private static final int CACHE_FILE_MAGIC = 0x46545431;
+
     /** List with remote types - index is remote type id (=> mapping: remote type id => local type id) */
     private SafeConcurrentlyIterableList<Entry> types = new SafeConcurrentlyIterableList<Entry>(200, 2);
 
@@ -78,6 +254,20 @@ public class RemoteTypes implements TypeEncoder {
     /** Remote Global default update time */
     private short globalDefault = 0;
 
+    /** Cache file for type table of connection partner (null if caching is disabled) */
+    private File cacheFile;
+
+    /** Records of type table cached in cache file - and hash of this table (null/0 if there is no cached table) */
+    private List<TypeRecord> cachedRecords;
+    private long cachedHash;
+
+    /** Records of all types received from connection partner (only maintained if caching is enabled) */
+    private final ArrayList<TypeRecord> receivedRecords = new ArrayList<TypeRecord>();
+
+    /** Hash and size of type table (of local types) that connection partner has cached (size 0 if it has none) */
+    private long peerCachedHash;
+    private short peerCachedSize;
+
     public RemoteTypes() {
     }
 
@@ -88,6 +278,120 @@ public class RemoteTypes implements TypeEncoder {
         return globalDefault;
     }
 
+    /**
+     * Enables caching of connection partner's type table on disk (in RuntimeSettings.getTypeCacheDir()).
+     * Loads any type table cached for this partner.
+     * (call before any types are received)
+     *
+     * @param partnerId Unique identifier of connection partner (e.g. its uuid)
+     */
+    public synchronized void enableTypeTableCache(String partnerId) {
+        File dir = RuntimeSettings.getTypeCacheDir();
+        if (dir == null) {
+            return;
+        }
+        cacheFile = new File(dir, partnerId.replaceAll("[^A-Za-z0-9_.-]", "_") + ".types");
+        cachedRecords = null;
+        cachedHash = 0;
+        if (!cacheFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            if (in.readInt() != CACHE_FILE_MAGIC) {
+                throw new IOException("Invalid cache file format");
+            }
+            long hash = in.readLong();
+            int size = in.readShort();
+            ArrayList<TypeRecord> records = new ArrayList<TypeRecord>(size);
+            long check = FNV_OFFSET_BASIS;
+            for (int i = 0; i < size; i++) {
+                TypeRecord r = TypeRecord.read(in);
+                check = r.hash(check);
+                records.add(r);
+            }
+            if (check != hash) {
+                throw new IOException("Hash mismatch");
+            }
+            cachedRecords = records;
+            cachedHash = hash;
+        } catch (Exception e) {
+            Log.log(LogLevel.WARNING, this, "Ignoring type table cache file '" + cacheFile + "': " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * @return Hash of connection partner's type table that is cached locally (to be sent to connection partner on connect)
+     */
+    public synchronized long getCachedTypeTableHash() {
+        return cachedRecords == null ? 0 : cachedHash;
+    }
+
+    /**
+     * @return Number of types in connection partner's type table that is cached locally (0 if there is no cached table)
+     */
+    public synchronized short getCachedTypeTableSize() {
+        return cachedRecords == null ? 0 : (short)cachedRecords.size();
+    }
+
+    /**
+     * Sets information on type table of local types that connection partner has cached.
+     * If it matches the local types, only the types added since are sent.
+     * (call before any types are sent)
+     *
+     * @param hash Hash of cached type table (as obtained by connection partner's getCachedTypeTableHash())
+     * @param size Number of types in cached type table (as obtained by connection partner's getCachedTypeTableSize())
+     */
+    public synchronized void setPeerTypeTableCache(long hash, short size) {
+        peerCachedHash = hash;
+        peerCachedSize = size;
+    }
+
+    /**
+     * @param count Number of local types to include
+     * @return Hash of table containing the first 'count' local types
+     */
+    private static long getLocalTypeTableHash(short count) {
+        long hash = FNV_OFFSET_BASIS;
+        for (short i = 0; i < count; i++) {
+            hash = TypeRecord.fromLocalType(i).hash(hash);
+        }
+        return hash;
+    }
+
+    /**
+     * Init remote data type information from type table cached on disk.
+     * Table was referenced by connection partner (call only once!)
+     *
+     * @param ci Input Stream Buffer to read reference from
+     */
+    private void deserializeCached(BinaryInputStream ci) {
+        assert(!initialized()) : "Already initialized";
+        long hash = ci.readLong();
+        short size = ci.readShort();
+        globalDefault = ci.readShort();
+        List<TypeRecord> records;
+        synchronized (this) {
+            records = cachedRecords;
+            if (records == null || cachedHash != hash || records.size() != size) {
+                Log.log(LogLevel.ERROR, this, "Connection partner referenced type table that is not cached locally");
+                throw new RuntimeException("Connection partner referenced type table that is not cached locally");
+            }
+        }
+        HashMap<String, DataTypeBase> localTypes = getLocalTypesByName();
+        for (TypeRecord r : records) {
+            addType(r, localTypes, null);
+        }
+        Log.log(LogLevel.DEBUG_VERBOSE_1, this, "Connection Partner knows " + size + " types (from type table cache)");
+    }
+
     /**
      * Init remote data type information from input stream buffer.
      * (call only once!)
@@ -103,15 +407,43 @@ public class RemoteTypes implements TypeEncoder {
         } else {
             ls.appendln("Connection Partner knows more types:");
         }
+        HashMap<String, DataTypeBase> localTypes = getLocalTypesByName();
         short next = ci.readShort();
         while (next != -1) {
-            short time = ci.readShort();
+            addType(TypeRecord.read(next, ci), localTypes, ls);
+            next = ci.readShort();
+        }
+        ls.close();
+        saveTypeTableCache();
+    }
 
-            FinrocTypeInfo.Type type = FinrocTypeInfo.Type.values()[ci.readByte()];
-            String name = ci.readString();
-            short checkedTypes = DataTypeBase.getTypeCount();
-            DataTypeBase local = DataTypeBase.findType(name);
-            ls.append("- ").append(name).append(" (").append(next).append(") - ");
+    /**
+     * @return Index of local types by name (avoids linear search for each remote type)
+     */
+    private static HashMap<String, DataTypeBase> getLocalTypesByName() {
+        short count = DataTypeBase.getTypeCount();
+        HashMap<String, DataTypeBase> result = new HashMap<String, DataTypeBase>(count * 2);
+        for (short i = 0; i < count; i++) {
+            DataTypeBase dt = DataTypeBase.getType(i);
+            if (dt != null && !result.containsKey(dt.getName())) {
+                result.put(dt.getName(), dt);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds remote type
+     *
+     * @param r Information on remote type
+     * @param localTypes Index of local types by name (types created for remote types are added)
+     * @param ls Log stream to append information on type to (null if not to be logged)
+     */
+    private void addType(TypeRecord r, HashMap<String, DataTypeBase> localTypes, LogStream ls) {
+        short checkedTypes = DataTypeBase.getTypeCount();
+        DataTypeBase local = localTypes.get(r.name);
+        if (ls != null) {
+            ls.append("- ").append(r.name).append(" (").append(r.uid).append(") - ");
             if (local == null) {
                 ls.appendln("not available here");
             } else if (local instanceof RemoteType) {
@@ -119,55 +451,99 @@ public class RemoteTypes implements TypeEncoder {
             } else {
                 ls.appendln("available here");
             }
-            int typesSize = types.size(); // to avoid warning
-            assert(next == typesSize);
-            Entry e = new Entry(local);
-            byte traits = ci.readByte();
-            e.typesChecked = checkedTypes;
-
-            // remote enum type?
-            ArrayList<String> enumConstants = null;
-            long[] enumValues = null;
-            if ((traits & DataTypeBase.IS_ENUM) != 0) {
-                enumConstants = new ArrayList<String>();
-                short n = ci.readShort();
-                for (int i = 0; i < n; i++) {
-                    String s = ci.readString();
-                    if (s.contains("|")) {
-                        if (enumValues == null) {
-                            enumValues = new long[n];
-                        }
-                        String[] strings = s.split("\\|");
-                        enumConstants.add(strings[0]);
-                        enumValues[i] = Long.parseLong(strings[1]);
-                    } else {
-                        enumConstants.add(s);
+        }
+        int typesSize = types.size(); // to avoid warning
+        assert(r.uid == typesSize);
+        Entry e = new Entry(local);
+        e.typesChecked = checkedTypes;
+
+        // remote enum type?
+        ArrayList<String> enumConstants = null;
+        long[] enumValues = null;
+        if (r.enumStrings != null) {
+            enumConstants = new ArrayList<String>();
+            for (int i = 0; i < r.enumStrings.length; i++) {
+                String s = r.enumStrings[i];
+                if (s.contains("|")) {
+                    if (enumValues == null) {
+                        enumValues = new long[r.enumStrings.length];
                     }
+                    String[] strings = s.split("\\|");
+                    enumConstants.add(strings[0]);
+                    enumValues[i] = Long.parseLong(strings[1]);
+                } else {
+                    enumConstants.add(s);
                 }
             }
+        }
 
-            e.name = name;
-            if (local == null) {
-                synchronized (DataTypeBase.class) {
-                    local = DataTypeBase.findType(name);
-                    if (local == null) {
-                        local = new RemoteType(name, enumConstants != null ? enumConstants.toArray() : null, enumValues, traits);
-                        FinrocTypeInfo.get(local).init(type);
-                    }
-                    e.localDataType = local;
+        e.name = r.name;
+        if (local == null) {
+            synchronized (DataTypeBase.class) {
+                local = DataTypeBase.findType(r.name);
+                if (local == null) {
+                    local = new RemoteType(r.name, enumConstants != null ? enumConstants.toArray() : null, enumValues, r.traits);
+                    FinrocTypeInfo.get(local).init(FinrocTypeInfo.Type.values()[r.type]);
                 }
+                e.localDataType = local;
             }
+            localTypes.put(r.name, local);
+        }
 
-            types.add(e, true);
-            if (local != null) {
-                while ((short)updateTimes.size() < DataTypeBase.getTypeCount()) {
-                    updateTimes.add((short) - 1, true);
+        types.add(e, true);
+        if (local != null) {
+            while ((short)updateTimes.size() < DataTypeBase.getTypeCount()) {
+                updateTimes.add((short) - 1, true);
+            }
+            updateTimes.getIterable().set(local.getUid(), r.time);
+        }
+        if (cacheFile != null) {
+            receivedRecords.add(r);
+        }
+    }
+
+    /**
+     * Stores all types received from connection partner in type table cache (if enabled)
+     */
+    private synchronized void saveTypeTableCache() {
+        if (cacheFile == null || (cachedRecords != null && cachedRecords.size() == receivedRecords.size())) {
+            return;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for (TypeRecord r : receivedRecords) {
+            hash = r.hash(hash);
+        }
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            cacheFile.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(CACHE_FILE_MAGIC);
+            out.writeLong(hash);
+            out.writeShort(receivedRecords.size());
+            for (TypeRecord r : receivedRecords) {
+                r.write(out);
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(cacheFile)) {
+                cacheFile.delete();
+                if (!tempFile.renameTo(cacheFile)) {
+                    throw new IOException("Cannot rename '" + tempFile + "'");
                 }
-                updateTimes.getIterable().set(local.getUid(), time);
             }
-            next = ci.readShort();
+            cachedRecords = new ArrayList<TypeRecord>(receivedRecords);
+            cachedHash = hash;
+        } catch (Exception e) {
+            Log.log(LogLevel.WARNING, this, "Could not write type table cache file '" + cacheFile + "': " + e.getMessage());
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {}
+                tempFile.delete();
+            }
         }
-        ls.close();
     }
 
     /**
@@ -182,26 +558,13 @@ public class RemoteTypes implements TypeEncoder {
         }
         short typeCount = DataTypeBase.getTypeCount();
         for (short i = localTypesSent, n = typeCount; i < n; i++) {
-            DataTypeBase dt = DataTypeBase.getType(i);
 
 //            //JavaOnlyBlock
 //            if (FinrocTypeInfo.isUnknownType(dt)) {
 //                continue; // don't serialize unknown types
 //            }
 
-            co.writeShort(dt.getUid());
-            co.writeShort(FinrocTypeInfo.get(i).getUpdateTime());
-            co.writeByte(FinrocTypeInfo.get(i).getType().ordinal());
-            co.writeString(dt.getName());
-            Object[] enumConstants = dt.getEnumConstants();
-            co.writeByte(dt.getTypeTraits()); // type traits
-            if (enumConstants != null) {
-                assert(enumConstants.length <= Short.MAX_VALUE);
-                co.writeShort(enumConstants.length);
-                for (int j = 0; j < enumConstants.length; j++) {
-                    co.writeString(enumConstants[j].toString());
-                }
-            }
+            TypeRecord.fromLocalType(i).write(co);
         }
         co.writeShort(-1); // terminator
         localTypesSent = typeCount;
@@ -269,7 +632,12 @@ public class RemoteTypes implements TypeEncoder {
     @Override
     public DataTypeBase readType(BinaryInputStream is) {
         short uid = is.readShort();
-        if (uid == -2) {
+        if (uid == -3) {
+            // connection partner references type table that we have cached - followed by any types added since
+            deserializeCached(is);
+            deserialize(is);
+            uid = is.readShort();
+        } else if (uid == -2) {
             // we get info on more data
             deserialize(is);
             uid = is.readShort();
@@ -296,9 +664,19 @@ public class RemoteTypes implements TypeEncoder {
 
     @Override
     public void writeType(BinaryOutputStream os, DataTypeBase dt) {
-        int count = DataTypeBase.getTypeCount();
+        short count = DataTypeBase.getTypeCount();
         if (count > localTypesSent) {
-            os.writeShort(-2);
+            if (localTypesSent == 0 && peerCachedSize > 0 && peerCachedSize <= count && getLocalTypeTableHash(peerCachedSize) == peerCachedHash) {
+                // connection partner has cached our first types - only send reference and types added since
+                int t = RuntimeSettings.DEFAULT_MINIMUM_NETWORK_UPDATE_TIME.getValue();
+                os.writeShort(-3);
+                os.writeLong(peerCachedHash);
+                os.writeShort(peerCachedSize);
+                os.writeShort((short)t);
+                localTypesSent = peerCachedSize;
+            } else {
+                os.writeShort(-2);
+            }
             serializeLocalDataTypes(os);
         }
         os.writeShort(dt.getUid());
@@ -0,0 +1,88 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import java.nio.ByteBuffer;
+
+import org.finroc.core.port.net.AdaptiveUpdateRateController;
+import org.finroc.core.port.net.PrioritySendQueue;
+
+/**
+ * @author Max Reichardt
+ *
+ * Checks that a PrioritySendQueue feeds its AdaptiveUpdateRateController:
+ * Queueing delays of messages taken with both nextFragment() variants must be
+ * reflected in the controller's measurements.
+ */
+public class AdaptiveUpdateRateControllerTest {
+
+    static final int MESSAGE_SIZE = 1000, TARGET_DELAY = 20, SAMPLE_PERIOD = 50;
+
+    public static void main(String[] args) throws Exception {
+        AdaptiveUpdateRateController controller = new AdaptiveUpdateRateController(10, 1000, TARGET_DELAY, SAMPLE_PERIOD);
+        PrioritySendQueue queue = new PrioritySendQueue();
+        queue.setRateController(controller);
+        byte[] buffer = new byte[queue.getMaxFragmentLength()];
+
+        // congested: messages wait in queue for longer than the sample period
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(PrioritySendQueue.Lane.BULK, new byte[MESSAGE_SIZE], MESSAGE_SIZE);
+        }
+        Thread.sleep(2 * SAMPLE_PERIOD);
+        while (queue.nextFragment(buffer) >= 0) {}
+        check(controller.getAverageQueueDelay() >= SAMPLE_PERIOD, "Queueing delay not reported (average delay: " + controller.getAverageQueueDelay() + " ms)");
+        check(controller.getThroughput() > 0, "Sent bytes not reported");
+
+        // idle: messages are taken (without copying) right after they were enqueued
+        PrioritySendQueue.Fragment fragment = new PrioritySendQueue.Fragment();
+        ByteBuffer header = ByteBuffer.allocate(PrioritySendQueue.FRAGMENT_HEADER_SIZE);
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start <= 2 * SAMPLE_PERIOD) {
+            queue.enqueue(PrioritySendQueue.Lane.EXPRESS, ByteBuffer.allocate(MESSAGE_SIZE), null);
+            header.clear();
+            while (queue.nextFragment(header, fragment)) {
+                header.clear();
+                fragment.release();
+            }
+            Thread.sleep(5);
+        }
+        check(controller.getAverageQueueDelay() < TARGET_DELAY, "Delay of sent messages not reported (average delay: " + controller.getAverageQueueDelay() + " ms)");
+
+        // messages enqueued without controller are not reported
+        queue.setRateController(null);
+        queue.enqueue(PrioritySendQueue.Lane.BULK, new byte[MESSAGE_SIZE], MESSAGE_SIZE);
+        Thread.sleep(2 * SAMPLE_PERIOD);
+        queue.setRateController(controller);
+        while (queue.nextFragment(buffer) >= 0) {}
+        queue.enqueue(PrioritySendQueue.Lane.BULK, new byte[MESSAGE_SIZE], MESSAGE_SIZE);
+        while (queue.nextFragment(buffer) >= 0) {}
+        check(controller.getAverageQueueDelay() < TARGET_DELAY, "Message enqueued without controller was reported (average delay: " + controller.getAverageQueueDelay() + " ms)");
+
+        System.out.println("AdaptiveUpdateRateControllerTest passed");
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new RuntimeException(message);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.finroc.core.port.net.CompactWireFormat;
+import org.finroc.core.port.net.DirectBufferPool;
+import org.finroc.core.port.net.SharedBuffer;
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.MemoryBuffer;
+
+/**
+ * @author Max Reichardt
+ *
+ * Tests compact wire encoding: Variable-length and zigzag integers (edge cases and
+ * malformed input) as well as round-trips of frames with multiple values.
+ */
+public class CompactWireFormatTest {
+
+    static final Random random = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+
+        // unsigned varints
+        long[] values = new long[] { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, 0xFFFFFFFFL, 1L << 56, Long.MAX_VALUE, Long.MIN_VALUE, -1 };
+        for (long value : values) {
+            MemoryBuffer buffer = new MemoryBuffer();
+            BinaryOutputStream os = new BinaryOutputStream(buffer);
+            CompactWireFormat.writeVarint(os, value);
+            os.close();
+            check(buffer.getSize() <= CompactWireFormat.MAX_VARINT_SIZE, "Varint too long: " + value);
+            check(CompactWireFormat.readVarint(new BinaryInputStream(buffer)) == value, "Varint round trip failed: " + value);
+
+            byte[] array = new byte[CompactWireFormat.MAX_VARINT_SIZE];
+            int length = CompactWireFormat.writeVarint(array, 0, value);
+            check(length == buffer.getSize(), "Array varint has different length: " + value);
+            for (int i = 0; i < length; i++) {
+                check(array[i] == buffer.getBuffer().getByte(i), "Array varint differs: " + value);
+            }
+        }
+
+        // signed (zigzag) varints
+        long[] signedValues = new long[] { 0, 1, -1, 63, -64, 64, -65, Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1 };
+        for (long value : signedValues) {
+            MemoryBuffer buffer = new MemoryBuffer();
+            BinaryOutputStream os = new BinaryOutputStream(buffer);
+            CompactWireFormat.writeSignedVarint(os, value);
+            os.close();
+            check(CompactWireFormat.readSignedVarint(new BinaryInputStream(buffer)) == value, "Signed varint round trip failed: " + value);
+            if (value >= -64 && value <= 63) {
+                check(buffer.getSize() == 1, "Small signed varint not encoded in one byte: " + value);
+            }
+        }
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >> random.nextInt(64);
+            MemoryBuffer buffer = new MemoryBuffer();
+            BinaryOutputStream os = new BinaryOutputStream(buffer);
+            CompactWireFormat.writeSignedVarint(os, value);
+            CompactWireFormat.writeVarint(os, value);
+            os.close();
+            BinaryInputStream is = new BinaryInputStream(buffer);
+            check(CompactWireFormat.readSignedVarint(is) == value && CompactWireFormat.readVarint(is) == value, "Random varint round trip failed: " + value);
+        }
+
+        // malformed varints: bits beyond 64, more than 10 bytes, out of int range
+        checkRejected(new byte[] { (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x02 }, false);
+        checkRejected(new byte[] { (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x81, 0x00 }, false);
+        checkRejected(new byte[] { (byte)0x80, (byte)0x80, (byte)0x80, (byte)0x80, 0x08 }, true); // 2^31
+        checkRejected(new byte[] { (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF, 0x01 }, true); // -1
+
+        // frames (with heap and pooled direct buffers)
+        CompactWireFormat.FrameWriter heapWriter = new CompactWireFormat.FrameWriter();
+        CompactWireFormat.FrameWriter pooledWriter = new CompactWireFormat.FrameWriter(new DirectBufferPool());
+        CompactWireFormat.FrameHeader header = new CompactWireFormat.FrameHeader();
+        for (int round = 0; round < 100; round++) {
+            boolean timestamps = round % 2 == 0;
+            CompactWireFormat.FrameWriter writer = round % 3 == 0 ? pooledWriter : heapWriter;
+            int count = random.nextInt(20);
+            int[] handles = new int[count];
+            byte[] changeTypes = new byte[count];
+            long[] times = new long[count];
+            byte[][] contents = new byte[count][];
+            long base = timestamps ? System.currentTimeMillis() * 1000000L : 0;
+            writer.clear();
+            for (int i = 0; i < count; i++) {
+                handles[i] = random.nextInt(Integer.MAX_VALUE);
+                changeTypes[i] = (byte)random.nextInt(4);
+                times[i] = timestamps ? base + random.nextInt(2000000000) - 1000000000 : 0;
+                contents[i] = new byte[random.nextInt(i == 3 ? 100000 : 200)];
+                random.nextBytes(contents[i]);
+                check(writer.canAdd(timestamps), "Frame does not accept value");
+                BinaryOutputStream os = writer.beginValue();
+                os.write(contents[i], 0, contents[i].length);
+                writer.endValue(handles[i], changeTypes[i], timestamps, times[i]);
+            }
+            check(count == 0 || !writer.canAdd(!timestamps), "Frame accepts values with and without timestamps");
+
+            MemoryBuffer buffer = new MemoryBuffer();
+            BinaryOutputStream os = new BinaryOutputStream(buffer);
+            writer.writeHeader(os);
+            SharedBuffer frameValues = writer.detachValues();
+            byte[] valueBytes = new byte[frameValues.getLength()];
+            frameValues.getData().get(valueBytes);
+            frameValues.release();
+            os.write(valueBytes, 0, valueBytes.length);
+            os.close();
+            BinaryInputStream is = new BinaryInputStream(buffer);
+            header.read(is);
+            check(header.getCount() == count, "Wrong value count in frame");
+            check(header.hasTimestamps() == timestamps || count == 0, "Wrong timestamp flag in frame");
+            for (int i = 0; i < count; i++) {
+                check(header.getChangeType(i) == changeTypes[i], "Wrong change type in frame");
+                check(!timestamps || header.getTimestamp(i) == times[i], "Wrong timestamp in frame");
+                check(CompactWireFormat.readVarint32(is) == handles[i], "Wrong handle in frame");
+                int length = CompactWireFormat.readVarint32(is);
+                check(length == contents[i].length, "Wrong value length in frame");
+                byte[] content = new byte[length];
+                is.readFully(content, 0, length);
+                check(Arrays.equals(content, contents[i]), "Wrong value in frame");
+            }
+            check(is.remaining() == 0, "Unread data after frame");
+        }
+
+        System.out.println("CompactWireFormatTest passed");
+    }
+
+    /**
+     * Checks that malformed integer is rejected
+     *
+     * @param data Encoded integer
+     * @param as32 Read as 32 bit integer?
+     */
+    static void checkRejected(byte[] data, boolean as32) {
+        MemoryBuffer buffer = new MemoryBuffer();
+        BinaryOutputStream os = new BinaryOutputStream(buffer);
+        os.write(data, 0, data.length);
+        os.close();
+        try {
+            if (as32) {
+                CompactWireFormat.readVarint32(new BinaryInputStream(buffer));
+            } else {
+                CompactWireFormat.readVarint(new BinaryInputStream(buffer));
+            }
+        } catch (Exception e) {
+            return;
+        }
+        throw new RuntimeException("Malformed integer was not rejected");
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new RuntimeException(message);
+        }
+    }
+}
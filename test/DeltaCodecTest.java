@@ -0,0 +1,129 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.finroc.core.port.net.DeltaCodec;
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.MemoryBuffer;
+import org.rrlib.serialization.Serialization.DataEncoding;
+import org.rrlib.serialization.rtti.GenericObject;
+
+/**
+ * @author Max Reichardt
+ *
+ * Round-trip test for DeltaCodec: values with sparse changes, growing and shrinking values,
+ * lost values (detected via sequence numbers) and explicit commits.
+ */
+public class DeltaCodecTest {
+
+    static final Random random = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+        DeltaCodec sender = new DeltaCodec(DeltaCodec.DEFAULT_KEYFRAME_INTERVAL);
+        DeltaCodec receiver = new DeltaCodec(DeltaCodec.DEFAULT_KEYFRAME_INTERVAL);
+        GenericObject value = MemoryBuffer.TYPE.createInstanceGeneric(null);
+        GenericObject result = MemoryBuffer.TYPE.createInstanceGeneric(null);
+
+        // sparse changes, length changes
+        byte[] data = new byte[100000];
+        random.nextBytes(data);
+        int length = data.length;
+        for (int i = 0; i < 500; i++) {
+            for (int j = 0, n = random.nextInt(20); j < n; j++) {
+                data[random.nextInt(data.length)] = (byte)random.nextInt();
+            }
+            if (i % 37 == 0) {
+                length = 50000 + random.nextInt(data.length - 50000);
+            }
+            byte[] decoded = roundTrip(sender, receiver, value, result, data, length);
+            check(Arrays.equals(Arrays.copyOf(data, length), decoded), "Round trip " + i + " failed");
+        }
+        System.out.println("Compression ratio: " + sender.getCompressionRatio());
+
+        // empty and tiny values
+        roundTrip(sender, receiver, value, result, data, 0);
+        check(roundTrip(sender, receiver, value, result, data, 3).length == 3, "Tiny value failed");
+
+        // lost value must be detected - and keyframe must resynchronize
+        MemoryBuffer lost = new MemoryBuffer();
+        setValue(value, data, length);
+        sender.encode(new BinaryOutputStream(lost), value, DataEncoding.BINARY);
+        data[5]++;
+        boolean detected = false;
+        try {
+            roundTrip(sender, receiver, value, result, data, length);
+        } catch (Exception e) {
+            detected = true;
+        }
+        check(detected, "Lost value was not detected");
+        sender.reset();
+        check(Arrays.equals(Arrays.copyOf(data, length), roundTrip(sender, receiver, value, result, data, length)), "Resynchronization failed");
+
+        // explicit commit: discarded values do not affect receiver
+        sender.setExplicitCommit(true);
+        data[7]++;
+        setValue(value, data, length);
+        sender.encode(new BinaryOutputStream(new MemoryBuffer()), value, DataEncoding.BINARY); // discarded
+        for (int i = 0; i < 10; i++) {
+            data[random.nextInt(length)]++;
+            check(Arrays.equals(Arrays.copyOf(data, length), roundTrip(sender, receiver, value, result, data, length)), "Explicit commit round trip failed");
+            sender.commit();
+        }
+
+        System.out.println("DeltaCodecTest passed");
+    }
+
+    /**
+     * Encodes and decodes value
+     *
+     * @return Decoded value
+     */
+    static byte[] roundTrip(DeltaCodec sender, DeltaCodec receiver, GenericObject value, GenericObject result, byte[] data, int length) throws Exception {
+        setValue(value, data, length);
+        MemoryBuffer transfer = new MemoryBuffer();
+        BinaryOutputStream os = new BinaryOutputStream(transfer);
+        sender.encode(os, value, DataEncoding.BINARY);
+        os.close();
+        receiver.decode(new BinaryInputStream(transfer), result, DataEncoding.BINARY);
+        MemoryBuffer decoded = (MemoryBuffer)result.getData();
+        byte[] bytes = new byte[decoded.getSize()];
+        decoded.getBuffer().get(0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    static void setValue(GenericObject value, byte[] data, int length) {
+        MemoryBuffer buffer = (MemoryBuffer)value.getData();
+        BinaryOutputStream os = new BinaryOutputStream(buffer);
+        os.write(data, 0, length);
+        os.close();
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new RuntimeException(message);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.finroc.core.port.net.LZ4Compressor;
+
+/**
+ * @author Max Reichardt
+ *
+ * Round-trip test for LZ4Compressor: random (incompressible), repetitive and
+ * overlapping-match data of various sizes - as well as rejection of corrupt data.
+ */
+public class LZ4CompressorTest {
+
+    static final Random random = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+        LZ4Compressor compressor = new LZ4Compressor(LZ4Compressor.DEFAULT_THRESHOLD);
+        int[] sizes = new int[] { 0, 1, 12, 13, 14, 100, 1000, 65535, 65536, 70000, 300000 };
+        for (int size : sizes) {
+            for (int kind = 0; kind < 4; kind++) {
+                byte[] data = createData(kind, size);
+                byte[] compressed = new byte[LZ4Compressor.maxCompressedLength(size)];
+                int compressedLength = compressor.compress(data, size, compressed);
+                byte[] decompressed = new byte[size];
+                LZ4Compressor.decompress(compressed, compressedLength, decompressed, size);
+                check(Arrays.equals(data, decompressed), "Round trip failed (kind " + kind + ", size " + size + ")");
+                if (kind > 0 && size >= 1000) {
+                    check(compressedLength < size / 2, "Poor compression (kind " + kind + ", size " + size + "): " + compressedLength);
+                }
+            }
+        }
+
+        // corrupt data must be rejected
+        byte[] data = createData(2, 10000);
+        byte[] compressed = new byte[LZ4Compressor.maxCompressedLength(data.length)];
+        int compressedLength = compressor.compress(data, data.length, compressed);
+        int rejected = 0;
+        for (int i = 0; i < 1000; i++) {
+            byte[] corrupt = Arrays.copyOf(compressed, compressedLength);
+            corrupt[random.nextInt(compressedLength)] ^= (byte)(1 + random.nextInt(255));
+            try {
+                LZ4Compressor.decompress(corrupt, random.nextBoolean() ? corrupt.length : random.nextInt(corrupt.length), new byte[data.length], data.length);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new RuntimeException("Corrupt data caused out of bounds access", e);
+            } catch (Exception e) {
+                rejected++;
+            }
+        }
+        System.out.println("Rejected " + rejected + " of 1000 corrupted blocks");
+
+        System.out.println("LZ4CompressorTest passed");
+    }
+
+    /**
+     * @param kind 0: random, 1: zeros, 2: repeated text with variations, 3: short period (overlapping matches)
+     * @param size Size of data
+     * @return Test data
+     */
+    static byte[] createData(int kind, int size) {
+        byte[] data = new byte[size];
+        if (kind == 0) {
+            random.nextBytes(data);
+        } else if (kind == 2) {
+            byte[] text = "Finroc port value with some repetitive content. ".getBytes();
+            for (int i = 0; i < size; i++) {
+                data[i] = (i % 97 == 0) ? (byte)random.nextInt() : text[i % text.length];
+            }
+        } else if (kind == 3) {
+            for (int i = 0; i < size; i++) {
+                data[i] = (byte)(i % 3);
+            }
+        }
+        return data;
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new RuntimeException(message);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import java.util.ArrayList;
+
+import org.finroc.core.remote.ModelHandler;
+import org.finroc.core.remote.ModelNode;
+import org.finroc.core.remote.ModelUpdateBatch;
+
+/**
+ * @author Max Reichardt
+ *
+ * Tests ModelUpdateBatch: Operations must not reach the handler before flush() -
+ * and must then be executed in order within a single updateModel() call.
+ */
+public class ModelUpdateBatchTest {
+
+    public static void main(String[] args) throws Exception {
+        final RecordingHandler handler = new RecordingHandler();
+        ModelUpdateBatch batch = new ModelUpdateBatch(handler);
+        ModelNode root = new ModelNode("root");
+        ModelNode child = new ModelNode("child");
+        ModelNode replacement = new ModelNode("replacement");
+
+        batch.setModelRoot(root);
+        for (int i = 0; i < 1000; i++) {
+            batch.addNode(root, new ModelNode("node" + i));
+        }
+        batch.addNode(root, child);
+        batch.changeNodeName(child, "renamed");
+        batch.replaceNode(child, replacement);
+        batch.updateModel(new Runnable() {
+            @Override
+            public void run() {
+                handler.operations.add("task");
+            }
+        });
+        batch.removeNode(replacement);
+        check(batch.size() == 1006, "Wrong number of collected operations: " + batch.size());
+        check(handler.operations.isEmpty() && handler.updateCalls == 0, "Operations reached handler before flush()");
+
+        batch.flush();
+        check(handler.updateCalls == 1, "Operations were not passed in a single updateModel() call (" + handler.updateCalls + " calls)");
+        check(handler.operations.size() == 1006, "Wrong number of executed operations: " + handler.operations.size());
+        check(handler.operations.get(0).equals("root root"), "Wrong first operation: " + handler.operations.get(0));
+        check(handler.operations.get(1).equals("add root node0"), "Wrong second operation: " + handler.operations.get(1));
+        String[] last = new String[] { "add root child", "rename child renamed", "replace child replacement", "task", "remove replacement" };
+        for (int i = 0; i < last.length; i++) {
+            String operation = handler.operations.get(1001 + i);
+            check(operation.equals(last[i]), "Wrong operation order: '" + operation + "' instead of '" + last[i] + "'");
+        }
+        check(batch.size() == 0, "Batch not empty after flush()");
+
+        // empty batch: no update task
+        batch.flush();
+        check(handler.updateCalls == 1, "Empty batch was flushed");
+
+        System.out.println("ModelUpdateBatchTest passed");
+    }
+
+    /**
+     * Model handler that records operations (and executes update tasks right away)
+     */
+    static class RecordingHandler implements ModelHandler {
+
+        final ArrayList<String> operations = new ArrayList<String>();
+
+        int updateCalls;
+
+        @Override
+        public void addNode(ModelNode parent, ModelNode newChild) {
+            operations.add("add " + parent.getName() + " " + newChild.getName());
+        }
+
+        @Override
+        public void changeNodeName(ModelNode node, String newName) {
+            operations.add("rename " + node.getName() + " " + newName);
+        }
+
+        @Override
+        public void removeNode(ModelNode childToRemove) {
+            operations.add("remove " + childToRemove.getName());
+        }
+
+        @Override
+        public void replaceNode(ModelNode oldNode, ModelNode newNode) {
+            operations.add("replace " + oldNode.getName() + " " + newNode.getName());
+        }
+
+        @Override
+        public void setModelRoot(ModelNode root) {
+            operations.add("root " + root.getName());
+        }
+
+        @Override
+        public void updateModel(Runnable updateTask) {
+            updateCalls++;
+            updateTask.run();
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new RuntimeException(message);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import org.finroc.core.FrameworkElement;
+import org.finroc.core.FrameworkElementFlags;
+import org.finroc.core.RuntimeEnvironment;
+import org.finroc.core.datatype.CoreNumber;
+import org.finroc.core.port.PortCreationInfo;
+import org.finroc.core.port.ThreadLocalCache;
+import org.finroc.core.port.cc.PortNumeric;
+import org.finroc.core.port.net.nio.NIOConnection;
+import org.finroc.core.port.net.nio.NIOTransport;
+
+/**
+ * @author Max Reichardt
+ *
+ * Tests the NIO reference transport over localhost:
+ * Connects many peer connections to a transport in the same process,
+ * subscribes an output port via each of them and checks whether all
+ * subscribers receive the published values (initial value and a new one).
+ *
+ * The number of connections can be provided via command line arguments.
+ */
+public class NIOTransportTest {
+
+    /** Maximum time to wait for values to arrive at all subscribers (in ms) */
+    static final long TIMEOUT = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int connectionCount = 200;
+        if (args.length > 0) {
+            connectionCount = Integer.parseInt(args[0]);
+        }
+
+        RuntimeEnvironment.getInstance();
+        ThreadLocalCache.get();
+
+        FrameworkElement parent = new FrameworkElement(null, "NIOTransportTest");
+        PortNumeric<Integer> output = new PortNumeric<Integer>(new PortCreationInfo("output", parent, FrameworkElementFlags.SHARED_OUTPUT_PORT));
+        PortNumeric<Integer>[] inputs = createInputs(parent, connectionCount);
+        FrameworkElement.initAll();
+        output.publish(1);
+
+        NIOTransport server = new NIOTransport("server");
+        NIOTransport client = new NIOTransport("client");
+        int port = server.listen(0);
+        for (int i = 0; i < connectionCount; i++) {
+            NIOConnection connection = client.connect("localhost", port);
+            connection.subscribe(output.getWrapped().getQualifiedLink(), CoreNumber.TYPE, "output").connectTo(inputs[i].getWrapped());
+        }
+
+        int initial = waitForValue(inputs, 1);
+        output.publish(42);
+        int received = waitForValue(inputs, 42);
+        System.out.println("Connections: " + server.getConnections().size() + " (" + server.getLoopCount() + " selector threads)");
+        System.out.println("Subscribers that received initial value: " + initial + "/" + connectionCount);
+        System.out.println("Subscribers that received value: " + received + "/" + connectionCount);
+
+        client.shutdown();
+        server.shutdown();
+        if (initial != connectionCount || received != connectionCount) {
+            throw new RuntimeException("Not all subscribers received the published values");
+        }
+        System.out.println("NIOTransportTest passed");
+
+        //JavaOnlyBlock
+        RuntimeEnvironment.getInstance().managedDelete();
+    }
+
+    /**
+     * Polls inputs until all of them have the specified value or TIMEOUT has elapsed
+     *
+     * @return Number of inputs that have the value
+     */
+    private static int waitForValue(PortNumeric<Integer>[] inputs, int value) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (true) {
+            int received = 0;
+            for (PortNumeric<Integer> input : inputs) {
+                if (input.getIntRaw() == value) {
+                    received++;
+                }
+            }
+            if (received == inputs.length || System.currentTimeMillis() > deadline) {
+                return received;
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static PortNumeric<Integer>[] createInputs(FrameworkElement parent, int count) {
+        PortNumeric<Integer>[] result = new PortNumeric[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = new PortNumeric<Integer>(new PortCreationInfo("input" + i, parent, FrameworkElementFlags.INPUT_PORT));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,134 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import org.finroc.core.FrameworkElement;
+import org.finroc.core.FrameworkElementFlags;
+import org.finroc.core.RuntimeEnvironment;
+import org.finroc.core.datatype.CoreNumber;
+import org.finroc.core.datatype.Duration;
+import org.finroc.core.port.AbstractPort;
+import org.finroc.core.port.Port;
+import org.finroc.core.port.PortCreationInfo;
+import org.finroc.core.port.PortListener;
+import org.finroc.core.port.PublishFilter;
+import org.finroc.core.port.ThreadLocalCache;
+import org.finroc.core.port.cc.PortNumeric;
+
+/**
+ * @author Max Reichardt
+ *
+ * Tests publish filters: Dropping of unchanged values (also for a "cheap copy"
+ * type that does not override equals()), deadband and rate limiting with
+ * deferred publishing of the latest value.
+ */
+public class PublishFilterTest {
+
+    /** Minimum interval of rate-limited port in ms */
+    static final int MIN_INTERVAL = 100;
+
+    /** Maximum time to wait for deferred value in ms */
+    static final long TIMEOUT = 2000;
+
+    public static void main(String[] args) throws Exception {
+        RuntimeEnvironment.getInstance();
+        ThreadLocalCache.get();
+
+        FrameworkElement parent = new FrameworkElement(null, "PublishFilterTest");
+        PortNumeric<Integer> unchanged = new PortNumeric<Integer>(new PortCreationInfo("unchanged", parent, FrameworkElementFlags.OUTPUT_PORT));
+        PortNumeric<Double> deadband = new PortNumeric<Double>(new PortCreationInfo("deadband", parent, FrameworkElementFlags.OUTPUT_PORT));
+        PortNumeric<Integer> limited = new PortNumeric<Integer>(new PortCreationInfo("limited", parent, FrameworkElementFlags.OUTPUT_PORT));
+        Port<Duration> duration = new Port<Duration>(new PortCreationInfo("duration", parent, Duration.TYPE, FrameworkElementFlags.OUTPUT_PORT));
+        unchanged.getWrapped().setPublishFilter(new PublishFilter(true, 0, 0));
+        deadband.getWrapped().setPublishFilter(new PublishFilter(false, 0.5, 0));
+        limited.getWrapped().setPublishFilter(new PublishFilter(false, 0, MIN_INTERVAL));
+        duration.getWrapped().setPublishFilter(new PublishFilter(true, 0, 0));
+        Counter<CoreNumber> unchangedCounter = new Counter<CoreNumber>(), deadbandCounter = new Counter<CoreNumber>(), limitedCounter = new Counter<CoreNumber>();
+        Counter<Duration> durationCounter = new Counter<Duration>();
+        unchanged.addPortListener(unchangedCounter);
+        deadband.addPortListener(deadbandCounter);
+        limited.addPortListener(limitedCounter);
+        duration.addPortListener(durationCounter);
+        FrameworkElement.initAll();
+
+        // drop unchanged values
+        for (int value : new int[] { 1, 1, 2, 2, 2, 1 }) {
+            unchanged.publish(value);
+        }
+        check(unchangedCounter.count == 3, "Unchanged values were not dropped (" + unchangedCounter.count + " values published)");
+
+        // drop unchanged values of type without equals()
+        for (long value : new long[] { 5, 5, 7, 7 }) {
+            Duration buffer = duration.getUnusedBuffer();
+            buffer.setNanoseconds(value);
+            duration.publish(buffer);
+        }
+        check(durationCounter.count == 2, "Unchanged durations were not dropped (" + durationCounter.count + " values published)");
+
+        // deadband
+        for (double value : new double[] { 1.0, 1.3, 1.6, 1.2 }) {
+            deadband.publish(value);
+        }
+        check(deadbandCounter.count == 2 && deadband.getDoubleRaw() == 1.6, "Deadband not applied (" + deadbandCounter.count + " values published, current value " + deadband.getDoubleRaw() + ")");
+
+        // rate limit: second and third value are deferred - only the latest one is published when interval has elapsed
+        long start = System.currentTimeMillis();
+        limited.publish(1);
+        limited.publish(2);
+        limited.publish(3);
+        check(limitedCounter.count == 1 && limited.getIntRaw() == 1, "Values were not deferred");
+        while (limitedCounter.count < 2 && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(5);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        check(limitedCounter.count == 2 && limited.getIntRaw() == 3, "Deferred value was not published (current value " + limited.getIntRaw() + ")");
+        check(elapsed >= MIN_INTERVAL, "Deferred value was published too early (after " + elapsed + " ms)");
+        Thread.sleep(2 * MIN_INTERVAL);
+        check(limitedCounter.count == 2, "Superseded value was published");
+        limited.publish(4);
+        check(limitedCounter.count == 3 && limited.getIntRaw() == 4, "Value was deferred after interval had elapsed");
+
+        System.out.println("PublishFilterTest passed");
+
+        //JavaOnlyBlock
+        RuntimeEnvironment.getInstance().managedDelete();
+    }
+
+    /**
+     * Counts values published via port
+     */
+    static class Counter<T> implements PortListener<T> {
+
+        volatile int count;
+
+        @Override
+        public void portChanged(AbstractPort origin, T value) {
+            count++;
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new RuntimeException(message);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import org.finroc.core.RuntimeEnvironment;
+import org.finroc.core.port.rpc.Method;
+import org.finroc.core.port.rpc.RPCInterfaceType;
+
+/**
+ * @author Max Reichardt
+ *
+ * Compares reflective invocation of RPC methods with the method handle
+ * based invokers in rpc.Method (and direct calls on the call handler).
+ */
+public class RPCInvocationBenchmark {
+
+    static final int WARMUP = 2000000;
+    static final int CALLS = 20000000;
+
+    public interface TestInterface {
+        public Integer add(Integer a, Integer b);
+    }
+
+    public static class TestHandler implements TestInterface {
+        public Integer add(Integer a, Integer b) {
+            return a + b;
+        }
+    }
+
+    static Method ADD = new Method(TestInterface.class, "add");
+
+    static RPCInterfaceType TYPE = new RPCInterfaceType("Test Interface", ADD);
+
+    static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        RuntimeEnvironment.getInstance();
+        TestHandler handler = new TestHandler();
+        Integer a = 4, b = 38;
+
+        for (int run = 0; run < 3; run++) {
+            System.out.println("Run " + run);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < WARMUP + CALLS; i++) {
+                if (i == WARMUP) {
+                    start = System.nanoTime();
+                }
+                sink = (Integer)ADD.getNativeMethod().invoke(handler, a, b);
+            }
+            print("reflection", System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < WARMUP + CALLS; i++) {
+                if (i == WARMUP) {
+                    start = System.nanoTime();
+                }
+                sink = (Integer)ADD.invoke(handler, new Object[] {a, b});
+            }
+            print("method handle (Object[])", System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < WARMUP + CALLS; i++) {
+                if (i == WARMUP) {
+                    start = System.nanoTime();
+                }
+                sink = (Integer)ADD.invoke2(handler, a, b);
+            }
+            print("method handle (fixed arity)", System.nanoTime() - start);
+
+            TestInterface stub = handler;
+            start = System.nanoTime();
+            for (int i = 0; i < WARMUP + CALLS; i++) {
+                if (i == WARMUP) {
+                    start = System.nanoTime();
+                }
+                sink = stub.add(a, b);
+            }
+            print("direct call", System.nanoTime() - start);
+        }
+    }
+
+    static void print(String what, long durationNs) {
+        System.out.println("  " + what + ": " + (((double)durationNs) / CALLS) + " ns/call");
+    }
+}
@@ -0,0 +1,130 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import org.finroc.core.RuntimeEnvironment;
+import org.finroc.core.port.rpc.Method;
+import org.finroc.core.port.rpc.Promise;
+import org.finroc.core.port.rpc.RPCInterfaceType;
+import org.finroc.core.port.rpc.internal.Serialization;
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.BinarySerializable;
+import org.rrlib.serialization.MemoryBuffer;
+
+/**
+ * @author Max Reichardt
+ *
+ * Measures deserialization of RPC results with 64 bytes:
+ * reflective type resolution (as done before result encodings were precomputed)
+ * compared to Serialization.returnDeserialization.
+ */
+public class RPCResultDeserializationBenchmark {
+
+    static final int WARMUP = 200000;
+    static final int CALLS = 2000000;
+
+    /** Result with 64 bytes */
+    public static class Result64 implements BinarySerializable {
+        public long a, b, c, d, e, f, g, h;
+
+        @Override
+        public void serialize(BinaryOutputStream stream) {
+            stream.writeLong(a);
+            stream.writeLong(b);
+            stream.writeLong(c);
+            stream.writeLong(d);
+            stream.writeLong(e);
+            stream.writeLong(f);
+            stream.writeLong(g);
+            stream.writeLong(h);
+        }
+
+        @Override
+        public void deserialize(BinaryInputStream stream) {
+            a = stream.readLong();
+            b = stream.readLong();
+            c = stream.readLong();
+            d = stream.readLong();
+            e = stream.readLong();
+            f = stream.readLong();
+            g = stream.readLong();
+            h = stream.readLong();
+        }
+    }
+
+    public interface TestInterface {
+        public Result64 query(Integer key);
+    }
+
+    static Method QUERY = new Method(TestInterface.class, "query");
+
+    static RPCInterfaceType TYPE = new RPCInterfaceType("Result Test Interface", QUERY);
+
+    static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        RuntimeEnvironment.getInstance();
+        MemoryBuffer buffer = new MemoryBuffer();
+        BinaryOutputStream output = new BinaryOutputStream(buffer);
+        new Result64().serialize(output);
+        output.flush();
+
+        for (int run = 0; run < 3; run++) {
+            System.out.println("Run " + run);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < WARMUP + CALLS; i++) {
+                if (i == WARMUP) {
+                    start = System.nanoTime();
+                }
+                sink = reflectiveDeserialization(new BinaryInputStream(buffer), QUERY);
+            }
+            print("reflective type resolution", System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < WARMUP + CALLS; i++) {
+                if (i == WARMUP) {
+                    start = System.nanoTime();
+                }
+                sink = Serialization.returnDeserialization(new BinaryInputStream(buffer), null, QUERY, false);
+            }
+            print("precomputed result encoding", System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Type resolution as performed for every response before result encodings were precomputed
+     */
+    static Object reflectiveDeserialization(BinaryInputStream stream, Method method) throws Exception {
+        boolean futureReturn = org.finroc.core.port.rpc.Future.class.isAssignableFrom(method.getNativeMethod().getReturnType());
+        Class<?> type = futureReturn ? method.getFutureType() : method.getNativeMethod().getReturnType();
+        if (type == Promise.class || Promise.class.isAssignableFrom(type)) {
+            throw new RuntimeException("Not covered by benchmark");
+        }
+        return stream.readObject(type);
+    }
+
+    static void print(String what, long durationNs) {
+        System.out.println("  " + what + ": " + (((double)durationNs) / CALLS) + " ns/result");
+    }
+}
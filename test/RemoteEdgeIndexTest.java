@@ -0,0 +1,177 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import org.finroc.core.FrameworkElement;
+import org.finroc.core.FrameworkElementFlags;
+import org.finroc.core.RuntimeEnvironment;
+import org.finroc.core.port.AbstractPort;
+import org.finroc.core.port.PortCreationInfo;
+import org.finroc.core.port.net.NetPort;
+import org.finroc.core.port.rpc.internal.AbstractCall;
+import org.finroc.core.remote.ModelNode;
+import org.finroc.core.remote.RemotePort;
+import org.finroc.core.remote.RemoteRuntime;
+import org.rrlib.serialization.MemoryBuffer;
+
+/**
+ * @author Max Reichardt
+ *
+ * Tests edge index of remote model: connection queries with runtimes that maintain
+ * the index, runtimes that do not - and a mix of both - as well as edge changes and
+ * deletion of indexed ports.
+ */
+public class RemoteEdgeIndexTest {
+
+    /**
+     * Network port with settable remote edges
+     */
+    static class TestNetPort extends NetPort {
+
+        final ArrayList<AbstractPort> edges = new ArrayList<AbstractPort>();
+
+        RemotePort remotePort;
+
+        TestNetPort(String name) {
+            super(new PortCreationInfo(name, MemoryBuffer.TYPE, FrameworkElementFlags.OUTPUT_PORT), null);
+        }
+
+        @Override
+        protected void sendCall(AbstractCall mc) {}
+
+        @Override
+        protected void propagateStrategyOverTheNet() {}
+
+        @Override
+        public int getRemoteEdgeDestinations(List<AbstractPort> resultList) {
+            resultList.clear();
+            resultList.addAll(edges);
+            return resultList.size();
+        }
+
+        void setEdges(TestNetPort... destinations) {
+            edges.clear();
+            for (TestNetPort destination : destinations) {
+                edges.add(destination.getPort());
+            }
+        }
+    }
+
+    static int nextHandle = 1;
+
+    public static void main(String[] args) {
+        RuntimeEnvironment.getInstance();
+        ModelNode root = new ModelNode("root");
+        RemoteRuntime runtimeA = new RemoteRuntime("A", "a", null, null);
+        RemoteRuntime runtimeB = new RemoteRuntime("B", "b", null, null);
+        root.add(runtimeA);
+        root.add(runtimeB);
+        TestNetPort a1 = createPort(runtimeA, "a1");
+        TestNetPort a2 = createPort(runtimeA, "a2");
+        TestNetPort a3 = createPort(runtimeA, "a3");
+        TestNetPort b1 = createPort(runtimeB, "b1");
+        TestNetPort b2 = createPort(runtimeB, "b2");
+        FrameworkElement.initAll();
+
+        a1.setEdges(a2, b2);
+        a3.setEdges(a2);
+        b1.setEdges(a2);
+
+        // no index
+        checkIncoming(a2, a1, a3, b1);
+        checkIncoming(b2, a1);
+
+        // index for runtime A only (built when enabled) - B is still scanned
+        runtimeA.setEdgeIndexMaintained(true);
+        checkIncoming(a2, a1, a3, b1);
+        checkIncoming(b2, a1);
+        checkIncoming(a1);
+
+        // edge changes
+        a3.setEdges(b2);
+        RemotePort.updateEdgeIndex(a3);
+        checkIncoming(a2, a1, b1);
+        checkIncoming(b2, a1, a3);
+        b1.setEdges(a2, b2);
+        checkIncoming(b2, a1, a3, b1);
+
+        // index for both runtimes
+        runtimeB.setEdgeIndexMaintained(true);
+        checkIncoming(a2, a1, b1);
+        checkIncoming(b2, a1, a3, b1);
+        b1.setEdges();
+        RemotePort.updateEdgeIndex(b1);
+        checkIncoming(a2, a1);
+        checkIncoming(b2, a1, a3);
+
+        // deletion of indexed source and destination ports
+        runtimeA.remove(a1.remotePort);
+        a1.getPort().managedDelete();
+        checkIncoming(a2);
+        checkIncoming(b2, a3);
+        runtimeB.remove(b2.remotePort);
+        b2.getPort().managedDelete();
+        a3.setEdges(a2);
+        RemotePort.updateEdgeIndex(a3);
+        checkIncoming(a2, a3);
+        for (TestNetPort port : new TestNetPort[] { a2, a3, b1 }) {
+            check(port.remotePort.getOutgoingConnections().size() == port.edges.size(), "Wrong number of outgoing connections");
+        }
+
+        System.out.println("RemoteEdgeIndexTest passed");
+    }
+
+    /**
+     * Creates network port and its remote port in specified runtime
+     */
+    static TestNetPort createPort(RemoteRuntime runtime, String name) {
+        TestNetPort port = new TestNetPort(name);
+        port.remotePort = new RemotePort(nextHandle++, name, port.getPort(), 0);
+        runtime.add(port.remotePort);
+        return port;
+    }
+
+    /**
+     * Checks incoming connections of specified port
+     */
+    static void checkIncoming(TestNetPort port, TestNetPort... expectedSources) {
+        HashSet<RemotePort> expected = new HashSet<RemotePort>();
+        for (TestNetPort source : expectedSources) {
+            expected.add(source.remotePort);
+        }
+        Collection<RemotePort> incoming = port.remotePort.getIncomingConnections();
+        check(new HashSet<RemotePort>(incoming).equals(expected) && incoming.size() == expected.size(),
+              "Incoming connections of " + port.remotePort.getName() + ": " + incoming + " (expected " + Arrays.toString(expectedSources) + ")");
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new RuntimeException(message);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.finroc.core.remote.ModelNode;
+import org.finroc.core.util.IntHashMap;
+
+/**
+ * @author Max Reichardt
+ *
+ * Tests indices of the remote model: IntHashMap (compared to HashMap - with many removals
+ * that require moving entries back in their cluster) and the child name index of ModelNode
+ * (duplicate names, renaming, replacing, inserting and removing children).
+ */
+public class RemoteModelIndexTest {
+
+    static final Random random = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+
+        // IntHashMap
+        for (int range : new int[] { 16, 100, 10000, Integer.MAX_VALUE }) {
+            IntHashMap<Integer> map = new IntHashMap<Integer>();
+            HashMap<Integer, Integer> reference = new HashMap<Integer, Integer>();
+            for (int i = 0; i < 200000; i++) {
+                int key = random.nextInt(range) - (range > 100 ? range / 2 : 0);
+                int operation = random.nextInt(3);
+                if (operation == 0) {
+                    check(equal(map.put(key, i), reference.put(key, i)), "put() returned wrong value");
+                } else if (operation == 1) {
+                    check(equal(map.remove(key), reference.remove(key)), "remove() returned wrong value");
+                } else {
+                    check(equal(map.get(key), reference.get(key)), "get() returned wrong value");
+                }
+                check(map.size() == reference.size(), "Wrong size");
+            }
+            for (Map.Entry<Integer, Integer> entry : reference.entrySet()) {
+                check(entry.getValue().equals(map.get(entry.getKey())), "Entry lost");
+            }
+            Map<Integer, Integer> view = map.asMap();
+            check(view.equals(reference) && reference.equals(view), "Map view differs");
+            view.remove(reference.keySet().iterator().next());
+            check(map.size() == reference.size() - 1, "Removal via map view failed");
+            map.clear();
+            check(map.isEmpty() && view.isEmpty() && map.get(0) == null, "clear() failed");
+        }
+
+        // ModelNode child index
+        ModelNode parent = new ModelNode("parent");
+        for (int round = 0; round < 20000; round++) {
+            int operation = random.nextInt(7);
+            int count = parent.getChildCount();
+            if (operation <= 1 || count < 2) {
+                parent.add(new ModelNode(randomName()));
+            } else if (operation == 2) {
+                parent.insertChild(random.nextInt(count), new ModelNode(randomName()));
+            } else if (operation == 3 && count > 10) {
+                parent.remove(parent.getChildAt(random.nextInt(count)));
+            } else if (operation == 4) {
+                parent.getChildAt(random.nextInt(count)).setName(randomName());
+            } else if (operation == 5) {
+                ModelNode newChild = new ModelNode(randomName());
+                newChild.add(new ModelNode("leaf/x"));
+                parent.replace(parent.getChildAt(random.nextInt(count)), newChild);
+            } else {
+                // move child to end (re-adding to the same parent does nothing)
+                ModelNode child = parent.getChildAt(random.nextInt(count));
+                ModelNode other = new ModelNode("other");
+                other.add(child);
+                parent.add(child);
+            }
+            if (parent.getChildCount() > 40) {
+                parent.remove(parent.getChildAt(0));
+            }
+
+            for (int i = 0; i < 5; i++) {
+                String name = randomName();
+                check(parent.getChildByName(name) == findFirst(parent, name), "getChildByName(" + name + ") differs from scan");
+                ModelNode expected = findFirst(parent, name);
+                if (expected != null && expected.getChildCount() > 0) {
+                    check(parent.getChildByQualifiedName(name + "/leaf/x", '/') == expected.getChildAt(0), "getChildByQualifiedName() failed");
+                } else if (expected != null) {
+                    check(parent.getChildByQualifiedName(name, '/') == expected, "getChildByQualifiedName() failed");
+                }
+            }
+        }
+
+        System.out.println("RemoteModelIndexTest passed");
+    }
+
+    /**
+     * @return Random child name (few different names - so that duplicates occur frequently)
+     */
+    static String randomName() {
+        return "child " + random.nextInt(30);
+    }
+
+    /**
+     * @return First child with specified name (reference implementation)
+     */
+    static ModelNode findFirst(ModelNode parent, String name) {
+        for (int i = 0; i < parent.getChildCount(); i++) {
+            if (parent.getChildAt(i).getName().equals(name)) {
+                return parent.getChildAt(i);
+            }
+        }
+        return null;
+    }
+
+    static boolean equal(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new RuntimeException(message);
+        }
+    }
+}
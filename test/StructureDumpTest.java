@@ -0,0 +1,127 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.test;
+
+import java.util.ArrayList;
+
+import org.finroc.core.StructureJournal;
+import org.finroc.core.port.net.ChunkedStructureDump;
+import org.rrlib.serialization.BinaryInputStream;
+import org.rrlib.serialization.BinaryOutputStream;
+import org.rrlib.serialization.MemoryBuffer;
+
+/**
+ * @author Max Reichardt
+ *
+ * Tests StructureJournal (obtaining changes - also after the ring buffer wrapped around)
+ * and round-trips of chunked structure dumps.
+ */
+public class StructureDumpTest {
+
+    public static void main(String[] args) throws Exception {
+
+        // journal wrap-around
+        StructureJournal journal = new StructureJournal(10);
+        ArrayList<StructureJournal.Change> changes = new ArrayList<StructureJournal.Change>();
+        check(journal.getChangesSince(0, changes) && changes.isEmpty(), "Empty journal");
+        for (int i = 1; i <= 25; i++) {
+            check(journal.append((byte)(i % 4), i * 10, i % 3 == 0 ? i : -1) == i, "Wrong version after append");
+        }
+        check(journal.getVersion() == 25 && journal.getOldestAvailableVersion() == 15, "Wrong journal versions");
+        check(!journal.getChangesSince(14, changes) && changes.isEmpty(), "Overwritten changes returned");
+        check(!journal.getChangesSince(26, changes) && changes.isEmpty(), "Future version accepted");
+        check(journal.getChangesSince(25, changes) && changes.isEmpty(), "Changes returned for current version");
+        for (int since = 15; since <= 25; since++) {
+            changes.clear();
+            check(journal.getChangesSince(since, changes), "Available changes not returned");
+            check(changes.size() == 25 - since, "Wrong number of changes");
+            for (int i = 0; i < changes.size(); i++) {
+                StructureJournal.Change change = changes.get(i);
+                int v = since + i + 1;
+                check(change.version == v && change.changeType == (byte)(v % 4) && change.handle == v * 10, "Wrong change " + change);
+                check(change.isEdgeChange() == (v % 3 == 0) && (!change.isEdgeChange() || change.edgeTargetHandle == v), "Wrong edge change " + change);
+            }
+        }
+
+        // chunk round-trips
+        for (int elementCount : new int[] { 0, 1, 6, 7, 8, 50 }) {
+            final ArrayList<MemoryBuffer> chunks = new ArrayList<MemoryBuffer>();
+            ChunkedStructureDump.Writer writer = new ChunkedStructureDump.Writer(4711, 42, 7, new ChunkedStructureDump.ChunkSink() {
+                @Override
+                public void sendChunk(MemoryBuffer chunk, boolean last) {
+                    byte[] copy = new byte[chunk.getSize()];
+                    chunk.getBuffer().get(0, copy, 0, copy.length);
+                    MemoryBuffer buffer = new MemoryBuffer();
+                    BinaryOutputStream stream = new BinaryOutputStream(buffer);
+                    stream.write(copy, 0, copy.length);
+                    stream.close();
+                    chunks.add(buffer);
+                }
+            });
+            for (int i = 0; i < elementCount; i++) {
+                BinaryOutputStream stream = writer.getElementStream();
+                stream.writeInt(i);
+                for (int j = 0; j < 100; j++) { // compressible
+                    stream.writeInt(j);
+                }
+                writer.elementWritten();
+            }
+            writer.finish();
+            check(chunks.size() == elementCount / 7 + 1, "Wrong number of chunks: " + chunks.size());
+
+            ChunkedStructureDump.Reader reader = new ChunkedStructureDump.Reader();
+            int element = 0;
+            for (MemoryBuffer chunk : chunks) {
+                check(!reader.isComplete(), "Dump complete too early");
+                BinaryInputStream stream = reader.readChunk(new BinaryInputStream(chunk));
+                check(reader.getStructureEpoch() == 4711 && reader.getStructureVersion() == 42, "Wrong structure version");
+                for (int i = 0; i < reader.getElementCount(); i++) {
+                    check(stream.readInt() == element, "Wrong element");
+                    for (int j = 0; j < 100; j++) {
+                        check(stream.readInt() == j, "Wrong element content");
+                    }
+                    element++;
+                }
+            }
+            check(reader.isComplete() && element == elementCount, "Incomplete dump");
+
+            // chunks out of order are rejected
+            if (chunks.size() > 1) {
+                boolean rejected = false;
+                try {
+                    new ChunkedStructureDump.Reader().readChunk(new BinaryInputStream(chunks.get(1)));
+                } catch (Exception e) {
+                    rejected = true;
+                }
+                check(rejected, "Chunk out of order was not rejected");
+            }
+        }
+
+        System.out.println("StructureDumpTest passed");
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new RuntimeException(message);
+        }
+    }
+}
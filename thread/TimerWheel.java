@@ -0,0 +1,337 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.thread;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rrlib.logging.Log;
+import org.rrlib.logging.LogLevel;
+
+/**
+ * @author Max Reichardt
+ *
+ * Hashed timer wheel.
+ *
+ * Schedules and cancels timeouts in O(1). The thread processes one slot
+ * per tick and calls the callback for every expired entry.
+ * Timeouts therefore expire with a granularity of one tick.
+ *
+ * Entries are intrusive (objects that want to be scheduled keep an Entry
+ * instance), so scheduling does not allocate any memory.
+ *
+ * While no entries are scheduled, the thread is parked (it does not wake up every tick).
+ * Components that need short delays should use the shared timer wheel (see getShared())
+ * instead of starting a thread of their own.
+ *
+ * Timer threads are stopped when the runtime environment is shut down (see stopAll()).
+ */
+public class TimerWheel extends CoreLoopThreadBase {
+
+    /**
+     * Is notified about expired entries
+     */
+    public interface Callback {
+
+        /**
+         * Called (by timer wheel thread) when entry has expired
+         *
+         * @param owner Owner of entry that expired
+         */
+        public void timerExpired(Object owner);
+    }
+
+    /**
+     * Entry that can be scheduled in timer wheel
+     */
+    public static class Entry {
+
+        /** Object that entry belongs to */
+        private final Object owner;
+
+        /** Absolute time when entry expires (in ms) */
+        private long deadline;
+
+        /** Slot that entry is currently in (-1 if not scheduled) */
+        private volatile int slot = -1;
+
+        /** Neighbours in slot's linked list */
+        private Entry prev, next;
+
+        /**
+         * @param owner Object that entry belongs to
+         */
+        public Entry(Object owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * @return Object that entry belongs to
+         */
+        public Object getOwner() {
+            return owner;
+        }
+
+        /**
+         * @return Is entry currently scheduled?
+         */
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    /**
+     * Slots - each is the sentinel of a doubly-linked list (and lock for this list).
+     * The sentinel's deadline field contains the last tick that the slot was processed for.
+     */
+    private final Entry[] slots;
+
+    /** Mask to obtain slot from tick */
+    private final int slotMask;
+
+    /** Duration of one tick in ms */
+    private final long tickDuration;
+
+    /** Last tick that was processed */
+    private volatile long lastProcessedTick;
+
+    /** Callback for expired entries */
+    private final Callback callback;
+
+    /** Temporary list with owners of expired entries (only used by timer thread) */
+    private final ArrayList<Object> expired = new ArrayList<Object>();
+
+    /** Number of entries that are currently scheduled */
+    private final AtomicInteger scheduledEntries = new AtomicInteger();
+
+    /** Monitor that thread waits on while no entries are scheduled */
+    private final Object idleMonitor = new Object();
+
+    /** Has thread been requested to stop? */
+    private volatile boolean stopRequested;
+
+    /** All timer wheels that have been created */
+    private static final ArrayList<TimerWheel> instances = new ArrayList<TimerWheel>();
+
+    /** Tick duration of shared timer wheel in ms */
+    public static final long SHARED_TICK_DURATION = 5;
+
+    /** Shared timer wheel (created when first needed; stopped by stopAll()) */
+    private static class SharedHolder {
+        static final TimerWheel instance = new TimerWheel("Shared Timer", 512, SHARED_TICK_DURATION, new Callback() {
+            @Override
+            public void timerExpired(Object owner) {
+                ((Callback)owner).timerExpired(owner);
+            }
+        });
+        static {
+            instance.start();
+        }
+    }
+
+
+    /**
+     * @param name Name of timer thread
+     * @param slotCount Number of slots (is rounded up to next power of two)
+     * @param tickDuration Duration of one tick in ms
+     * @param callback Callback for expired entries
+     */
+    public TimerWheel(String name, int slotCount, long tickDuration, Callback callback) {
+        super(tickDuration, false);
+        int size = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+        slots = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Entry(null);
+            slots[i].prev = slots[i];
+            slots[i].next = slots[i];
+        }
+        slotMask = size - 1;
+        this.tickDuration = tickDuration;
+        this.callback = callback;
+        lastProcessedTick = System.currentTimeMillis() / tickDuration;
+        for (int i = 0; i < size; i++) {
+            slots[i].deadline = lastProcessedTick;
+        }
+        setName(name);
+        setDaemon(true);
+        synchronized (instances) {
+            instances.add(this);
+        }
+    }
+
+    /**
+     * Timer wheel shared by components that schedule short delays (e.g. network send scheduling and publish rate limiting).
+     * Delays are rounded up to multiples of SHARED_TICK_DURATION.
+     * Owners of entries scheduled in this wheel must implement Callback (they are notified with themselves as owner).
+     *
+     * @return Shared timer wheel
+     */
+    public static TimerWheel getShared() {
+        return SharedHolder.instance;
+    }
+
+    /**
+     * Stops threads of all timer wheels
+     * (called when runtime environment is shut down)
+     */
+    public static void stopAll() {
+        synchronized (instances) {
+            for (TimerWheel timerWheel : instances) {
+                if (timerWheel.isAlive()) {
+                    timerWheel.stopThread();
+                }
+            }
+            instances.clear();
+        }
+    }
+
+    /**
+     * Schedules entry (entry is rescheduled if it is already scheduled)
+     *
+     * @param entry Entry to schedule
+     * @param delay Delay in ms after which entry expires
+     */
+    public void schedule(Entry entry, long delay) {
+        cancel(entry);
+        long deadline = System.currentTimeMillis() + delay;
+        long tick = Math.max((deadline + tickDuration - 1) / tickDuration, lastProcessedTick + 1);
+        while (true) {
+            Entry head = slots[(int)(tick & slotMask)];
+            synchronized (head) {
+
+                // a single pass of the timer thread may process several ticks: never add to slot that has already been processed for this tick
+                if (head.deadline < tick) {
+                    entry.deadline = deadline;
+                    entry.next = head;
+                    entry.prev = head.prev;
+                    head.prev.next = entry;
+                    head.prev = entry;
+                    entry.slot = (int)(tick & slotMask);
+                    break;
+                }
+            }
+            tick++;
+        }
+        if (scheduledEntries.getAndIncrement() == 0) {
+            synchronized (idleMonitor) {
+                idleMonitor.notify();
+            }
+        }
+    }
+
+    /**
+     * Cancels entry
+     *
+     * @param entry Entry to cancel
+     * @return True if entry was scheduled
+     */
+    public boolean cancel(Entry entry) {
+        while (true) {
+            int slot = entry.slot;
+            if (slot < 0) {
+                return false;
+            }
+            Entry head = slots[slot];
+            synchronized (head) {
+                if (entry.slot == slot) {
+                    unlink(entry);
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes entry from its slot (slot needs to be locked)
+     */
+    private void unlink(Entry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        entry.slot = -1;
+        scheduledEntries.decrementAndGet();
+    }
+
+    /**
+     * @return Duration of one tick in ms
+     */
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    @Override
+    public void stopThread() {
+        stopRequested = true;
+        super.stopThread();
+        synchronized (idleMonitor) {
+            idleMonitor.notifyAll();
+        }
+    }
+
+    @Override
+    public void mainLoopCallback() throws Exception {
+        if (scheduledEntries.get() == 0) {
+            synchronized (idleMonitor) {
+                while (scheduledEntries.get() == 0 && !stopRequested) {
+                    idleMonitor.wait();
+                }
+            }
+        }
+        long now = System.currentTimeMillis();
+        long currentTick = now / tickDuration;
+        long firstTick = Math.max(lastProcessedTick + 1, currentTick - slotMask);
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            processSlot(slots[(int)(tick & slotMask)], tick, now);
+        }
+        lastProcessedTick = currentTick;
+    }
+
+    /**
+     * Processes one slot: removes all expired entries and notifies callback
+     *
+     * @param head Head of slot
+     * @param tick Tick that slot is processed for
+     * @param now Current time
+     */
+    private void processSlot(Entry head, long tick, long now) {
+        synchronized (head) {
+            head.deadline = tick;
+            for (Entry entry = head.next; entry != head;) {
+                Entry next = entry.next;
+                if (entry.deadline <= now) {
+                    unlink(entry);
+                    expired.add(entry.owner);
+                }
+                entry = next;
+            }
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            try {
+                callback.timerExpired(expired.get(i)); // without lock
+            } catch (Exception e) {
+                Log.log(LogLevel.ERROR, this, "Timer callback threw exception: ", e);
+            }
+        }
+        expired.clear();
+    }
+}
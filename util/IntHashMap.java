@@ -0,0 +1,284 @@
+//
+// You received this file as part of Finroc
+// A framework for intelligent robot control
+//
+// Copyright (C) Finroc GbR (finroc.org)
+//
+// This program is free software; you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation; either version 2 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with this program; if not, write to the Free Software Foundation, Inc.,
+// 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+//
+//----------------------------------------------------------------------
+package org.finroc.core.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author Max Reichardt
+ *
+ * Hash map with primitive int keys (open addressing with linear probing).
+ *
+ * Unlike HashMap<Integer, V>, keys are not boxed - so lookups and insertions
+ * create no garbage. Null values are not supported (putting null removes the key).
+ *
+ * (not thread-safe)
+ */
+public class IntHashMap<V> {
+
+    /** Keys and values - slot is free if value is null */
+    private int[] keys;
+    private Object[] values;
+
+    /** Number of entries */
+    private int size;
+
+    /** Number of entries after which table is enlarged */
+    private int threshold;
+
+    public IntHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize Expected number of entries
+     */
+    public IntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * 2 / 3 < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @param key Key
+     * @return Value for key - or null if map contains no such key
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V)values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param key Key
+     * @return Does map contain key?
+     */
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @param key Key
+     * @param value Value (null removes key)
+     * @return Previous value for key - or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if (value == null) {
+            return remove(key);
+        }
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V)values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if (size > threshold) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @param key Key
+     * @return Removed value - or null if map contained no such key
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V)values[i];
+                values[i] = null;
+                size--;
+
+                // move following entries of cluster back (so that probing still finds them)
+                for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                    int home = hash(keys[j]) & mask;
+                    if ((j > i && (home <= i || home > j)) || (j < i && (home <= i && home > j))) {
+                        keys[i] = keys[j];
+                        values[i] = values[j];
+                        values[j] = null;
+                        i = j;
+                    }
+                }
+                return old;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return True if map contains no entries
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return List with all values (snapshot - in no particular order)
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        ArrayList<V> result = new ArrayList<V>(size);
+        for (Object value : values) {
+            if (value != null) {
+                result.add((V)value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * View for code that requires a java.util.Map (keys are boxed - so not meant for performance-critical code).
+     * Changes to the view are reflected in this map and vice versa.
+     * Iterators of the view iterate over a snapshot of the entries and do not support removal.
+     *
+     * @return Map view of this map
+     */
+    public Map<Integer, V> asMap() {
+        return new AbstractMap<Integer, V>() {
+
+            @Override
+            public V get(Object key) {
+                return (key instanceof Integer) ? IntHashMap.this.get((Integer)key) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return (key instanceof Integer) && IntHashMap.this.containsKey((Integer)key);
+            }
+
+            @Override
+            public V put(Integer key, V value) {
+                return IntHashMap.this.put(key, value);
+            }
+
+            @Override
+            public V remove(Object key) {
+                return (key instanceof Integer) ? IntHashMap.this.remove((Integer)key) : null;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public void clear() {
+                IntHashMap.this.clear();
+            }
+
+            @Override
+            public Set<Map.Entry<Integer, V>> entrySet() {
+                return new AbstractSet<Map.Entry<Integer, V>>() {
+
+                    @Override
+                    public int size() {
+                        return size;
+                    }
+
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    public Iterator<Map.Entry<Integer, V>> iterator() {
+                        ArrayList<Map.Entry<Integer, V>> entries = new ArrayList<Map.Entry<Integer, V>>(size);
+                        for (int i = 0; i < values.length; i++) {
+                            if (values[i] != null) {
+                                entries.add(new AbstractMap.SimpleImmutableEntry<Integer, V>(keys[i], (V)values[i]));
+                            }
+                        }
+                        return Collections.unmodifiableList(entries).iterator();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Allocates empty table
+     */
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        threshold = capacity * 2 / 3;
+    }
+
+    /**
+     * Moves all entries to table with new capacity
+     */
+    @SuppressWarnings("unchecked")
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                put(oldKeys[i], (V)oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * @return Hash for key (spreads sequential handles across table)
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}